@@ -42,6 +42,7 @@ public class CapedwarfTransformerMojo {
                 FactoriesTransformer.class.getName(),
                 "(([.]*ApiProxy*)" +
                         "|([.]*ServiceFactory*)" +
+                        "|([.]*datastore.Cursor*)" +
                         "|([.]*datastore.Entity*)" +
                         "|([.]*datastore.Key*))"};
 
@@ -0,0 +1,74 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.bytecode;
+
+import javassist.CannotCompileException;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.NotFoundException;
+
+/**
+ * Turns Cursor into a plain holder of CapeDwarf's web-safe position string.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class CursorTransformer extends JavassistTransformer {
+
+    private static final String CURSOR = "com.google.appengine.api.datastore.Cursor";
+
+    @Override
+    protected void transform(CtClass clazz) throws Exception {
+        clazz.addField(CtField.make("private String capedwarfPosition;", clazz));
+        clazz.addConstructor(CtNewConstructor.make(
+                "private Cursor(String position, boolean capedwarf) {" +
+                        " if (position == null) throw new IllegalArgumentException(\"Null cursor\");" +
+                        " this.capedwarfPosition = position; }", clazz));
+
+        setBody(clazz, "fromWebSafeString", "public static " + CURSOR + " fromWebSafeString(String s)",
+                "{ return new " + CURSOR + "($1, true); }");
+        setBody(clazz, "toWebSafeString", "public String toWebSafeString()",
+                "{ return capedwarfPosition; }");
+        setBody(clazz, "equals", "public boolean equals(Object o)",
+                "{ return ($1 instanceof " + CURSOR + ") && capedwarfPosition.equals(((" + CURSOR + ") $1).capedwarfPosition); }");
+        setBody(clazz, "hashCode", "public int hashCode()",
+                "{ return capedwarfPosition.hashCode(); }");
+        setBody(clazz, "toString", "public String toString()",
+                "{ return \"Cursor:\" + capedwarfPosition; }");
+        setBody(clazz, "writeObject", "private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException",
+                "{ $1.writeUTF(capedwarfPosition); }");
+        setBody(clazz, "readObject", "private void readObject(java.io.ObjectInputStream in) throws java.io.IOException",
+                "{ capedwarfPosition = $1.readUTF(); }");
+    }
+
+    private void setBody(CtClass clazz, String methodName, String signature, String body) throws CannotCompileException {
+        try {
+            CtMethod method = clazz.getDeclaredMethod(methodName);
+            method.setBody(body);
+        } catch (NotFoundException e) {
+            clazz.addMethod(CtNewMethod.make(signature + " " + body, clazz));
+        }
+    }
+}
@@ -30,7 +30,19 @@ import javassist.CtMethod;
  */
 public class DatastoreServiceFactoryTransformer extends JavassistTransformer {
     protected void transform(CtClass clazz) throws Exception {
-        CtMethod method = clazz.getDeclaredMethod("getDatastoreService");
-        method.setBody("return new org.jboss.capedwarf.datastore.JBossDatastoreService();");
+        for (CtMethod method : clazz.getDeclaredMethods()) {
+            if ("getDatastoreService".equals(method.getName()))
+                method.setBody(newInstance("org.jboss.capedwarf.datastore.JBossDatastoreService", method));
+            else if ("getAsyncDatastoreService".equals(method.getName()))
+                method.setBody(newInstance("org.jboss.capedwarf.datastore.JBossAsyncDatastoreService", method));
+        }
+    }
+
+    /**
+     * Pass the config on, if the factory method takes one.
+     */
+    private static String newInstance(String className, CtMethod method) throws Exception {
+        String args = method.getParameterTypes().length > 0 ? "$1" : "";
+        return "return new " + className + "(" + args + ");";
     }
 }
@@ -30,11 +30,21 @@ import javassist.bytecode.AnnotationsAttribute;
 import javassist.bytecode.ClassFile;
 import javassist.bytecode.ConstPool;
 import javassist.bytecode.annotation.Annotation;
+import javassist.bytecode.annotation.AnnotationMemberValue;
+import javassist.bytecode.annotation.ArrayMemberValue;
 import javassist.bytecode.annotation.ClassMemberValue;
 import javassist.bytecode.annotation.EnumMemberValue;
+import javassist.bytecode.annotation.MemberValue;
 import javassist.bytecode.annotation.StringMemberValue;
 import org.hibernate.search.annotations.*;
+import org.hibernate.search.filter.ShardSensitiveOnlyFilter;
+import org.infinispan.marshall.SerializeWith;
+import org.jboss.capedwarf.datastore.marshall.EntityExternalizer;
+import org.jboss.capedwarf.datastore.query.CompositeIndexBridge;
+import org.jboss.capedwarf.datastore.query.EntityShardingStrategy;
+import org.jboss.capedwarf.datastore.query.KeyFieldBridge;
 import org.jboss.capedwarf.datastore.query.PropertyMapBridge;
+import org.jboss.capedwarf.datastore.query.PropertyTypesBridge;
 import org.jboss.capedwarf.datastore.query.QueryConverter;
 
 import java.util.LinkedList;
@@ -48,7 +58,11 @@ public class EntityTransformer extends JavassistTransformer {
     @Override
     protected void transform(CtClass clazz) throws Exception {
         annotateClass(clazz, ProvidedId.class, Indexed.class);
+        annotateClassWithClassBridges(clazz);
+        annotateClassWithExternalizer(clazz);
+        annotateClassWithShardFilter(clazz);
         annotateGetKindMethod(clazz);
+        annotateGetKeyMethod(clazz);
         annotateGetPropertyMapMethod(clazz);
     }
 
@@ -60,6 +74,14 @@ public class EntityTransformer extends JavassistTransformer {
         addAnnotationsToMethod(clazz, "getKind", fieldAnnotation);
     }
 
+    private void annotateGetKeyMethod(CtClass clazz) throws NotFoundException {
+        ConstPool constPool = getConstPool(clazz);
+
+        Annotation fieldAnnotation = createFieldAnnotation(QueryConverter.KEY_PROPERTY_KEY, constPool);
+        Annotation fieldBridgeAnnotation = createFieldBridgeAnnotation(KeyFieldBridge.class, constPool);
+        addAnnotationsToMethod(clazz, "getKey", fieldAnnotation, fieldBridgeAnnotation);
+    }
+
     private void addAnnotationsToMethod(CtClass clazz, String methodName, Annotation... annotations) throws NotFoundException {
         AnnotationsAttribute attribute = createAnnotationAttribute(clazz, annotations);
         clazz.getDeclaredMethod(methodName).getMethodInfo().addAttribute(attribute);
@@ -85,7 +107,7 @@ public class EntityTransformer extends JavassistTransformer {
 //        constPool.addClassInfo(PropertyMapBridge.class.getName());
 
         Annotation fieldAnnotation = createFieldAnnotation(constPool);
-        Annotation fieldBridgeAnnotation = createFieldBridgeAnnotation(constPool);
+        Annotation fieldBridgeAnnotation = createFieldBridgeAnnotation(PropertyMapBridge.class, constPool);
         addAnnotationsToMethod(clazz, "getPropertyMap", fieldAnnotation, fieldBridgeAnnotation);
     }
 
@@ -115,18 +137,97 @@ public class EntityTransformer extends JavassistTransformer {
     }
 
     /**
-     * Creates the following annotation: @FieldBridge(impl=PropertyMapBridge.class)
+     * Creates the following annotation: @FieldBridge(impl=bridgeClass)
      *
-     * @param constPool constant pool
+     * @param bridgeClass the bridge class
+     * @param constPool   constant pool
      * @return the @FieldBridge annotation
      */
-    private Annotation createFieldBridgeAnnotation(ConstPool constPool) {
+    private Annotation createFieldBridgeAnnotation(Class<?> bridgeClass, ConstPool constPool) {
 
         Annotation fieldBridgeAnnotation = new Annotation(FieldBridge.class.getName(), constPool);
-        fieldBridgeAnnotation.addMemberValue("impl", new ClassMemberValue(PropertyMapBridge.class.getName(), constPool));
+        fieldBridgeAnnotation.addMemberValue("impl", new ClassMemberValue(bridgeClass.getName(), constPool));
         return fieldBridgeAnnotation;
     }
 
+    /**
+     * Creates the following annotation:
+     * &#64;ClassBridges({
+     * &#64;ClassBridge(name=COMPOSITE_INDEXES_PROPERTY_KEY, impl=CompositeIndexBridge.class, index=Index.YES, analyze=Analyze.NO, store=Store.NO),
+     * &#64;ClassBridge(name=PROPERTY_TYPES_PROPERTY_KEY, impl=PropertyTypesBridge.class, index=Index.YES, analyze=Analyze.NO, store=Store.NO)
+     * })
+     *
+     * @param clazz the entity class
+     */
+    private void annotateClassWithClassBridges(CtClass clazz) {
+        ConstPool constPool = getConstPool(clazz);
+
+        ArrayMemberValue bridges = new ArrayMemberValue(new AnnotationMemberValue(constPool), constPool);
+        bridges.setValue(new MemberValue[]{
+                new AnnotationMemberValue(createClassBridgeAnnotation(QueryConverter.COMPOSITE_INDEXES_PROPERTY_KEY, CompositeIndexBridge.class, constPool), constPool),
+                new AnnotationMemberValue(createClassBridgeAnnotation(QueryConverter.PROPERTY_TYPES_PROPERTY_KEY, PropertyTypesBridge.class, constPool), constPool)
+        });
+
+        Annotation annotation = new Annotation(ClassBridges.class.getName(), constPool);
+        annotation.addMemberValue("value", bridges);
+
+        AnnotationsAttribute attribute = (AnnotationsAttribute) clazz.getClassFile().getAttribute(AnnotationsAttribute.visibleTag);
+        attribute.addAnnotation(annotation);
+    }
+
+    private Annotation createClassBridgeAnnotation(String name, Class<?> bridgeClass, ConstPool constPool) {
+        constPool.addStringInfo(name);
+
+        int storeEnumClassIndex = constPool.addUtf8Info(Store.class.getName());
+        int noEnumValueIndex = constPool.addUtf8Info(Store.NO.name());
+
+        int indexEnumClassIndex = constPool.addUtf8Info(Index.class.getName());
+        int yesEnumValueIndex = constPool.addUtf8Info(Index.YES.name());
+
+        int analyzeEnumClassIndex = constPool.addUtf8Info(Analyze.class.getName());
+        int noEnumValueAnalyze = constPool.addUtf8Info(Analyze.NO.name());
+
+        Annotation annotation = new Annotation(ClassBridge.class.getName(), constPool);
+        annotation.addMemberValue("name", new StringMemberValue(name, constPool));
+        annotation.addMemberValue("impl", new ClassMemberValue(bridgeClass.getName(), constPool));
+        annotation.addMemberValue("index", new EnumMemberValue(indexEnumClassIndex, yesEnumValueIndex, constPool));
+        annotation.addMemberValue("analyze", new EnumMemberValue(analyzeEnumClassIndex, noEnumValueAnalyze, constPool));
+        annotation.addMemberValue("store", new EnumMemberValue(storeEnumClassIndex, noEnumValueIndex, constPool));
+        return annotation;
+    }
+
+    /**
+     * Creates the following annotation: @SerializeWith(EntityExternalizer.class)
+     *
+     * @param clazz the entity class
+     */
+    private void annotateClassWithExternalizer(CtClass clazz) {
+        ConstPool constPool = getConstPool(clazz);
+
+        Annotation annotation = new Annotation(SerializeWith.class.getName(), constPool);
+        annotation.addMemberValue("value", new ClassMemberValue(EntityExternalizer.class.getName(), constPool));
+
+        AnnotationsAttribute attribute = (AnnotationsAttribute) clazz.getClassFile().getAttribute(AnnotationsAttribute.visibleTag);
+        attribute.addAnnotation(annotation);
+    }
+
+    /**
+     * Creates the following annotation: @FullTextFilterDef(name=SHARD_FILTER, impl=ShardSensitiveOnlyFilter.class)
+     *
+     * @param clazz the entity class
+     */
+    private void annotateClassWithShardFilter(CtClass clazz) {
+        ConstPool constPool = getConstPool(clazz);
+        constPool.addStringInfo(EntityShardingStrategy.SHARD_FILTER);
+
+        Annotation annotation = new Annotation(FullTextFilterDef.class.getName(), constPool);
+        annotation.addMemberValue("name", new StringMemberValue(EntityShardingStrategy.SHARD_FILTER, constPool));
+        annotation.addMemberValue("impl", new ClassMemberValue(ShardSensitiveOnlyFilter.class.getName(), constPool));
+
+        AnnotationsAttribute attribute = (AnnotationsAttribute) clazz.getClassFile().getAttribute(AnnotationsAttribute.visibleTag);
+        attribute.addAnnotation(annotation);
+    }
+
     private void annotateClass(CtClass clazz, Class<? extends java.lang.annotation.Annotation>... annotationClasses) {
         ClassFile ccFile = clazz.getClassFile();
         ConstPool constPool = ccFile.getConstPool();
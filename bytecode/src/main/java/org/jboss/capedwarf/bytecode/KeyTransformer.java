@@ -24,7 +24,9 @@
 
 package org.jboss.capedwarf.bytecode;
 
+import javassist.CannotCompileException;
 import javassist.CtClass;
+import javassist.CtNewMethod;
 import javassist.bytecode.AnnotationsAttribute;
 import javassist.bytecode.ClassFile;
 import javassist.bytecode.ConstPool;
@@ -52,7 +54,30 @@ public class KeyTransformer extends JavassistTransformer {
         annotation.addMemberValue("transformer", new ClassMemberValue(gaeKeyTransformerClassName, constPool));
         attr.addAnnotation(annotation);
 
+        String serializeWithClassName = "org.infinispan.marshall.SerializeWith";
+        String keyExternalizerClassName = "org.jboss.capedwarf.datastore.marshall.KeyExternalizer";
+
+        constPool.addUtf8Info(serializeWithClassName);
+        constPool.addUtf8Info(keyExternalizerClassName);
+
+        Annotation serializeWith = new Annotation(serializeWithClassName, constPool);
+        serializeWith.addMemberValue("value", new ClassMemberValue(keyExternalizerClassName, constPool));
+        attr.addAnnotation(serializeWith);
+
         ccFile.addAttribute(attr);
+
+        addIdSetter(clazz);
+    }
+
+    /**
+     * Implement KeyIdSetter, so datastore can set generated ids without reflection.
+     *
+     * @param clazz the Key class
+     * @throws CannotCompileException for any error
+     */
+    private void addIdSetter(CtClass clazz) throws CannotCompileException {
+        clazz.getClassFile().addInterface("org.jboss.capedwarf.datastore.KeyIdSetter");
+        clazz.addMethod(CtNewMethod.make("public void setKeyId(long id) { setId(id); }", clazz));
     }
 
 }
@@ -22,15 +22,28 @@
 
 package org.jboss.capedwarf.common.reflection;
 
+import java.lang.ref.SoftReference;
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Reflection hacks.
+ * <p/>
+ * Resolved methods and ctors are cached per class, name and signature,
+ * failed lookups included, so repeated calls skip the lookup altogether.
+ * Classes are weakly keyed and their caches softly referenced, since cached members refer back to their class;
+ * the cache never keeps an undeployed app's classloader alive.
  *
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
 public final class ReflectionUtils {
+    private static final Map<Class<?>, SoftReference<ClassCache>> caches = new WeakHashMap<Class<?>, SoftReference<ClassCache>>();
 
     /**
      * Create new instance.
@@ -54,15 +67,35 @@ public final class ReflectionUtils {
         if (clazz == null)
             throw new IllegalArgumentException("Null class");
 
+        Constructor<T> ctor = findConstructor(clazz, types);
+        if (ctor == null)
+            throw new IllegalStateException("No such ctor: " + clazz.getName() + " / " + Arrays.toString(types));
+
         try {
-            Constructor<T> ctor = clazz.getDeclaredConstructor(types);
-            ctor.setAccessible(true);
             return ctor.newInstance(args);
         } catch (Throwable t) {
             throw new RuntimeException(t);
         }
     }
 
+    @SuppressWarnings({"unchecked"})
+    private static <T> Constructor<T> findConstructor(Class<T> clazz, Class[] types) {
+        ConcurrentMap<Signature, Member<Constructor>> ctors = getClassCache(clazz).ctors;
+        Signature signature = new Signature(null, types);
+        Member<Constructor> member = ctors.get(signature);
+        if (member == null) {
+            Constructor ctor = null;
+            try {
+                ctor = clazz.getDeclaredConstructor(types);
+                ctor.setAccessible(true);
+            } catch (NoSuchMethodException ignored) {
+            }
+            member = new Member<Constructor>(ctor);
+            ctors.putIfAbsent(signature, member);
+        }
+        return member.value;
+    }
+
     /**
      * Invoke no-param method.
      *
@@ -146,20 +179,101 @@ public final class ReflectionUtils {
         if (methodName == null)
             throw new IllegalArgumentException("Null method name");
 
+        Method m = findMethod(clazz, methodName, types);
+        if (m == null)
+            throw new IllegalStateException("Couldn't invoke method: " + clazz.getName() + " / " + methodName);
+
         try {
+            return m.invoke(target, args);
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Find method in class hierarchy.
+     *
+     * @param clazz      the class
+     * @param methodName the method name
+     * @param types      the types
+     * @return accessible method or null if no such method
+     */
+    private static Method findMethod(Class<?> clazz, String methodName, Class[] types) {
+        ConcurrentMap<Signature, Member<Method>> methods = getClassCache(clazz).methods;
+        Signature signature = new Signature(methodName, types);
+        Member<Method> member = methods.get(signature);
+        if (member == null) {
+            Method method = null;
             Class<?> current = clazz;
-            while (current != null) {
+            while (current != null && method == null) {
                 try {
-                    Method m = clazz.getDeclaredMethod(methodName, types);
-                    m.setAccessible(true);
-                    return m.invoke(target, args);
-                } catch (Exception ignored) {
+                    method = current.getDeclaredMethod(methodName, types);
+                    method.setAccessible(true);
+                } catch (NoSuchMethodException ignored) {
                 }
                 current = current.getSuperclass();
             }
-        } catch (Throwable t) {
-            throw new RuntimeException(t);
+            member = new Member<Method>(method);
+            methods.putIfAbsent(signature, member);
+        }
+        return member.value;
+    }
+
+    private static ClassCache getClassCache(Class<?> clazz) {
+        synchronized (caches) {
+            SoftReference<ClassCache> ref = caches.get(clazz);
+            ClassCache cache = (ref != null) ? ref.get() : null;
+            if (cache == null) {
+                cache = new ClassCache();
+                caches.put(clazz, new SoftReference<ClassCache>(cache));
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Lookup results of one class.
+     */
+    private static class ClassCache {
+        private final ConcurrentMap<Signature, Member<Method>> methods = new ConcurrentHashMap<Signature, Member<Method>>();
+        private final ConcurrentMap<Signature, Member<Constructor>> ctors = new ConcurrentHashMap<Signature, Member<Constructor>>();
+    }
+
+    /**
+     * Cached lookup result; value is null for a failed lookup.
+     */
+    private static class Member<T extends AccessibleObject> {
+        private final T value;
+
+        private Member(T value) {
+            this.value = value;
+        }
+    }
+
+    private static class Signature {
+        private final String name;
+        private final Class[] types;
+        private final int hash;
+
+        private Signature(String name, Class[] types) {
+            this.name = name;
+            this.types = types.clone(); // callers may reuse their array
+            this.hash = 31 * (name != null ? name.hashCode() : 0) + Arrays.hashCode(types);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Signature == false)
+                return false;
+
+            Signature other = (Signature) obj;
+            return (name != null ? name.equals(other.name) : other.name == null)
+                    && Arrays.equals(types, other.types);
         }
-        throw new IllegalStateException("Couldn't invoke method: " + clazz.getName() + " / " + methodName);
     }
 }
@@ -0,0 +1,113 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.common.reflection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class ReflectionUtilsTestCase {
+
+    @Test
+    public void newInstanceUsesPrivateCtor() throws Exception {
+        Child child = ReflectionUtils.newInstance(Child.class, new Class[]{String.class}, new Object[]{"foo"});
+        assertEquals("foo", child.value);
+    }
+
+    @Test
+    public void invokeInstanceMethodFindsInheritedPrivateMethod() throws Exception {
+        Child child = ReflectionUtils.newInstance(Child.class);
+        assertEquals("parent", ReflectionUtils.invokeInstanceMethod(child, "parentName"));
+        assertEquals("parent", ReflectionUtils.invokeInstanceMethod(child, "parentName"));
+    }
+
+    @Test
+    public void invokeInstanceMethodPassesArgument() throws Exception {
+        Child child = ReflectionUtils.newInstance(Child.class);
+        ReflectionUtils.invokeInstanceMethod(child, "setValue", String.class, "bar");
+        assertEquals("bar", child.value);
+    }
+
+    @Test
+    public void invokeStaticMethod() throws Exception {
+        assertEquals(42, ReflectionUtils.invokeStaticMethod(Child.class, "answer", Integer.TYPE, 42));
+    }
+
+    @Test
+    public void repeatedLookupOfMissingMethodFails() throws Exception {
+        Child child = ReflectionUtils.newInstance(Child.class);
+        for (int i = 0; i < 2; i++) {
+            try {
+                ReflectionUtils.invokeInstanceMethod(child, "noSuchMethod");
+                fail("Expected IllegalStateException");
+            } catch (IllegalStateException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void reusedTypesArrayDoesNotCorruptCache() throws Exception {
+        Child child = ReflectionUtils.newInstance(Child.class);
+        Class[] types = {String.class};
+        ReflectionUtils.invokeInstanceMethod(child, "setValue", types, new Object[]{"foo"});
+
+        types[0] = Integer.TYPE;
+        ReflectionUtils.invokeInstanceMethod(child, "setValue", types, new Object[]{42});
+        assertEquals("42", child.value);
+        ReflectionUtils.invokeInstanceMethod(child, "setValue", new Class[]{String.class}, new Object[]{"bar"});
+        assertEquals("bar", child.value);
+    }
+
+    private static class Parent {
+        private String parentName() {
+            return "parent";
+        }
+    }
+
+    private static class Child extends Parent {
+        private String value;
+
+        private Child() {
+        }
+
+        private Child(String value) {
+            this.value = value;
+        }
+
+        private void setValue(String value) {
+            this.value = value;
+        }
+
+        private void setValue(int value) {
+            this.value = String.valueOf(value);
+        }
+
+        private static int answer(int value) {
+            return value;
+        }
+    }
+}
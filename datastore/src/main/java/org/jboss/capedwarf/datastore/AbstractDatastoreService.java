@@ -23,23 +23,40 @@
 package org.jboss.capedwarf.datastore;
 
 import com.google.appengine.api.datastore.BaseDatastoreService;
+import com.google.appengine.api.datastore.DatastoreAttributes;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Index;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.ReadPolicy;
 import com.google.appengine.api.datastore.Transaction;
 import org.infinispan.Cache;
-import org.infinispan.manager.EmbeddedCacheManager;
-import org.infinispan.query.CacheQuery;
-import org.infinispan.query.Search;
 import org.infinispan.query.SearchManager;
+import org.infinispan.util.concurrent.FutureListener;
+import org.infinispan.util.concurrent.NotifyingFuture;
 import org.jboss.capedwarf.common.app.Application;
-import org.jboss.capedwarf.common.infinispan.InfinispanUtils;
+import org.jboss.capedwarf.common.reflection.ReflectionUtils;
+import org.jboss.capedwarf.datastore.marshall.NameDictionary;
+import org.jboss.capedwarf.datastore.query.AsyncIndexer;
 import org.jboss.capedwarf.datastore.query.PreparedQueryImpl;
 import org.jboss.capedwarf.datastore.query.QueryConverter;
 
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -50,36 +67,245 @@ import java.util.logging.Logger;
  */
 public class AbstractDatastoreService implements BaseDatastoreService {
     protected final Logger log = Logger.getLogger(getClass().getName());
+    final StoreContext context;
     protected final Cache<Key, Entity> store;
     protected final SearchManager searchManager;
-    private final QueryConverter queryConverter;
+    protected final AsyncIndexer indexer;
+    protected final QueryConverter queryConverter;
+    protected final ReadPolicy readPolicy;
+    private volatile DatastoreAttributes datastoreAttributes;
 
     public AbstractDatastoreService() {
+        this(DatastoreServiceConfig.Builder.withDefaults());
+    }
+
+    public AbstractDatastoreService(DatastoreServiceConfig config) {
+        this.readPolicy = config.getReadPolicy();
         ClassLoader classLoader = Application.getAppClassloader();
-        this.store = createStore().getAdvancedCache().with(classLoader);
-        this.searchManager = Search.getSearchManager(store);
-        this.queryConverter = new QueryConverter(searchManager);
+        this.context = StoreContext.get(classLoader);
+        this.store = context.getStore().getAdvancedCache().with(classLoader);
+        this.searchManager = context.getSearchManager();
+        this.indexer = context.getIndexer();
+        this.queryConverter = context.getQueryConverter();
+    }
+
+    /**
+     * Complete the entity's key, if it doesn't have an id or name yet.
+     * The entity is checked here, before anything is stored, see {@link #prepareForStore(Entity)}.
+     *
+     * @param entity the entity to be stored
+     * @return the complete key
+     */
+    protected Key assignIdIfNeeded(Entity entity) {
+        prepareForStore(entity);
+        Key key = entity.getKey();
+        if (key.isComplete() == false) {
+            long id = KeyGenerator.generateKeyId(key);
+            setId(key, id);
+        }
+        return key;
+    }
+
+    /**
+     * Complete the keys of all entities.
+     * Missing ids are allocated per kind, one range for the whole batch.
+     * Entities are checked here, before anything is stored, see {@link #prepareForStore(Entity)}.
+     *
+     * @param entities the entities to be stored
+     * @return entities by their complete keys, in iteration order
+     */
+    protected Map<Key, Entity> assignIdsIfNeeded(List<Entity> entities) {
+        Map<String, List<Key>> incompleteKeys = new HashMap<String, List<Key>>();
+        for (Entity entity : entities) {
+            prepareForStore(entity);
+            Key key = entity.getKey();
+            if (key.isComplete() == false) {
+                List<Key> keys = incompleteKeys.get(key.getKind());
+                if (keys == null) {
+                    keys = new ArrayList<Key>();
+                    incompleteKeys.put(key.getKind(), keys);
+                }
+                keys.add(key);
+            }
+        }
+
+        for (Map.Entry<String, List<Key>> entry : incompleteKeys.entrySet()) {
+            List<Key> keys = entry.getValue();
+            long id = KeyGenerator.generateKeyRange(entry.getKey(), keys.size());
+            for (Key key : keys)
+                setId(key, id++);
+        }
+
+        Map<Key, Entity> result = new LinkedHashMap<Key, Entity>();
+        for (Entity entity : entities)
+            result.put(entity.getKey(), entity);
+        return result;
+    }
+
+    /**
+     * Refuse an entity exploding a composite index, and give its names dictionary ids,
+     * so marshalling it never has to write to the dictionary.
+     *
+     * @param entity the entity to be stored
+     */
+    private void prepareForStore(Entity entity) {
+        context.getCompositeIndexes().checkRows(entity);
+        NameDictionary.register(entity);
+    }
+
+    private static void setId(Key key, long id) {
+        if (key instanceof KeyIdSetter)
+            ((KeyIdSetter) key).setKeyId(id);
+        else
+            ReflectionUtils.invokeInstanceMethod(key, "setId", Long.TYPE, id);
+    }
+
+    /**
+     * Store the whole batch with a single putAll.
+     * If the cache is transactional and no tx is running, the batch is wrapped in its own tx.
+     * Entities are queued for indexing once stored.
+     *
+     * @param entities the entities by their complete keys
+     */
+    protected void putAll(Map<Key, Entity> entities) {
+        TransactionManager tm = store.getAdvancedCache().getTransactionManager();
+        try {
+            if (tm == null || tm.getTransaction() != null) {
+                store.putAll(entities);
+                indexer.changed(entities.keySet());
+                return;
+            }
+        } catch (SystemException e) {
+            throw new DatastoreFailureException("Cannot obtain tx.", e);
+        }
+
+        try {
+            tm.begin();
+        } catch (Exception e) {
+            throw new DatastoreFailureException("Cannot begin tx.", e);
+        }
+        try {
+            store.putAll(entities);
+        } catch (RuntimeException e) {
+            try {
+                tm.rollback();
+            } catch (Exception re) {
+                log.log(Level.WARNING, "Failed to rollback batch put.", re);
+            }
+            throw e;
+        }
+        try {
+            tm.commit();
+        } catch (Exception e) {
+            throw new DatastoreFailureException("Cannot commit tx.", e);
+        }
+        indexer.changed(entities.keySet());
+    }
+
+    /**
+     * Check the explicitly given tx. Operations join the tx associated with the caller's thread,
+     * so the given tx must be the current one, otherwise the caller would not get the isolation it asked for.
+     *
+     * @param transaction the tx, can be null
+     * @return true if the operation runs in the given tx
+     */
+    protected boolean inTransaction(Transaction transaction) {
+        if (transaction == null)
+            return false;
+        if (transaction != JBossTransaction.currentTransaction())
+            throw new IllegalArgumentException("Transaction is not the current transaction: " + transaction);
+        if (transaction.isActive() == false)
+            throw new IllegalStateException("Transaction is not active: " + transaction);
+        return true;
     }
 
-    protected Cache<Key, Entity> createStore() {
-        return getCache(getStoreCacheName());
+    /**
+     * Get entities one by one in the caller's thread, so the reads join its tx.
+     *
+     * @param keyIterable the keys
+     * @return found entities by key
+     */
+    protected Map<Key, Entity> getInTransaction(Iterable<Key> keyIterable) {
+        Map<Key, Entity> result = new HashMap<Key, Entity>();
+        for (Key key : keyIterable) {
+            Entity entity = store.get(key);
+            if (entity != null)
+                result.put(key, entity);
+        }
+        return result;
+    }
+
+    /**
+     * Queue entities for indexing once the async store operation is done.
+     * The returned future makes sure they are queued before get() returns,
+     * so queries issued after get() see the change.
+     *
+     * @param future the store operation's future
+     * @param keys   keys of changed entities
+     * @return future of the same result
+     */
+    protected <T> Future<T> indexWhenDone(NotifyingFuture<T> future, Collection<Key> keys) {
+        final IndexOnce indexOnce = new IndexOnce(keys);
+        future.attachListener(new FutureListener<T>() {
+            public void futureDone(Future<T> done) {
+                indexOnce.run();
+            }
+        });
+        return new FutureWrapper<T, T>(future) {
+            protected T wrap(T result) {
+                indexOnce.run();
+                return result;
+            }
+        };
+    }
+
+    private class IndexOnce implements Runnable {
+        private final Collection<Key> keys;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private IndexOnce(Collection<Key> keys) {
+            this.keys = keys;
+        }
+
+        public void run() {
+            if (done.compareAndSet(false, true))
+                indexer.changed(keys);
+        }
+    }
+
+    /**
+     * Reserve a range of ids.
+     *
+     * @param parent the parent key, can be null
+     * @param kind   the kind
+     * @param num    the number of ids
+     * @return allocated key range
+     */
+    protected KeyRange allocateKeyRange(Key parent, String kind, long num) {
+        if (num <= 0)
+            throw new IllegalArgumentException("Illegal number of ids: " + num);
+
+        long start = KeyGenerator.generateKeyRange(kind, num);
+        return new KeyRange(parent, kind, start, start + num - 1);
     }
 
-    private <K, V> Cache<K, V> getCache(String cacheName) {
-        EmbeddedCacheManager manager = InfinispanUtils.getCacheManager();
-        return manager.getCache(cacheName, true);
+    protected DatastoreAttributes getAttributes() {
+        if (datastoreAttributes == null)
+            datastoreAttributes = ReflectionUtils.newInstance(DatastoreAttributes.class);
+        return datastoreAttributes;
     }
 
-    private String getStoreCacheName() {
-        return "default"; // TODO
+    protected Map<Index, Index.IndexState> getIndexStates() {
+        return context.getCompositeIndexes().getIndexStates();
     }
 
     public PreparedQuery prepare(Query query) {
-        CacheQuery cacheQuery = queryConverter.convert(query);
-        return new PreparedQueryImpl(cacheQuery);
+        boolean strong = readPolicy.getConsistency() == ReadPolicy.Consistency.STRONG;
+        return new PreparedQueryImpl(queryConverter, query, strong);
     }
 
     public PreparedQuery prepare(Transaction transaction, Query query) {
+        inTransaction(transaction);
         return prepare(query);
     }
 
@@ -0,0 +1,93 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Joins the results of multiple futures into a single result.
+ * Like FutureWrapper, the joining happens on the caller's thread.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+abstract class AggregateFuture<F, T> implements Future<T> {
+    private final List<? extends Future<F>> futures;
+
+    AggregateFuture(List<? extends Future<F>> futures) {
+        this.futures = futures;
+    }
+
+    /**
+     * Join the results.
+     *
+     * @param results the results, in the same order as futures
+     * @return joined result
+     * @throws ExecutionException for any failure
+     */
+    protected abstract T aggregate(List<F> results) throws ExecutionException;
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = false;
+        for (Future<F> future : futures)
+            cancelled |= future.cancel(mayInterruptIfRunning);
+        return cancelled;
+    }
+
+    public boolean isCancelled() {
+        for (Future<F> future : futures) {
+            if (future.isCancelled())
+                return true;
+        }
+        return false;
+    }
+
+    public boolean isDone() {
+        for (Future<F> future : futures) {
+            if (future.isDone() == false)
+                return false;
+        }
+        return true;
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+        List<F> results = new ArrayList<F>(futures.size());
+        for (Future<F> future : futures)
+            results.add(future.get());
+        return aggregate(results);
+    }
+
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<F> results = new ArrayList<F>(futures.size());
+        for (Future<F> future : futures) {
+            long remaining = deadline - System.nanoTime();
+            results.add(future.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS));
+        }
+        return aggregate(results);
+    }
+}
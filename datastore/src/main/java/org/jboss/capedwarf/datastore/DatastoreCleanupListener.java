@@ -0,0 +1,49 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.capedwarf.datastore;
+
+import org.jboss.capedwarf.common.app.Application;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Releases the app's datastore resources, its executors and indexing threads, when the app is undeployed.
+ * <p/>
+ * Registered by annotation wherever the datastore jar is scanned; where it is not, the app's resources
+ * are released once its classloader is collected, see {@link StoreContext}.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+@WebListener
+public class DatastoreCleanupListener implements ServletContextListener {
+
+    public void contextInitialized(ServletContextEvent sce) {
+    }
+
+    public void contextDestroyed(ServletContextEvent sce) {
+        StoreContext.release(Application.getAppClassloader());
+    }
+}
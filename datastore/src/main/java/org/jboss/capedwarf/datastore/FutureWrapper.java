@@ -0,0 +1,71 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Converts the result of the delegate future on the caller's thread.
+ * No extra thread is used, the conversion happens in get().
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+abstract class FutureWrapper<F, T> implements Future<T> {
+    private final Future<F> delegate;
+
+    FutureWrapper(Future<F> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Convert delegate's result.
+     *
+     * @param result the delegate's result
+     * @return converted result
+     * @throws ExecutionException for any conversion failure
+     */
+    protected abstract T wrap(F result) throws ExecutionException;
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return delegate.cancel(mayInterruptIfRunning);
+    }
+
+    public boolean isCancelled() {
+        return delegate.isCancelled();
+    }
+
+    public boolean isDone() {
+        return delegate.isDone();
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+        return wrap(delegate.get());
+    }
+
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return wrap(delegate.get(timeout, unit));
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import org.infinispan.Cache;
+import org.infinispan.distexec.DistributedCallable;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Looks up a group of keys on the node that owns them.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+class GetEntitiesTask implements DistributedCallable<Key, Entity, Map<Key, Entity>>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private transient Cache<Key, Entity> cache;
+    private transient Set<Key> keys;
+
+    public void setEnvironment(Cache<Key, Entity> cache, Set<Key> inputKeys) {
+        this.cache = cache;
+        this.keys = inputKeys;
+    }
+
+    public Map<Key, Entity> call() throws Exception {
+        return getLocally(cache, keys);
+    }
+
+    /**
+     * Plain one-by-one lookup, skipping missing keys.
+     *
+     * @param cache the cache
+     * @param keys  the keys
+     * @return found entities
+     */
+    static Map<Key, Entity> getLocally(Cache<Key, Entity> cache, Iterable<Key> keys) {
+        Map<Key, Entity> result = new HashMap<Key, Entity>();
+        for (Key key : keys) {
+            Entity entity = cache.get(key);
+            if (entity != null)
+                result.put(key, entity);
+        }
+        return result;
+    }
+}
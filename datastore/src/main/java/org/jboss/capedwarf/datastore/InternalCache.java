@@ -0,0 +1,100 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.transaction.TransactionMode;
+import org.jboss.capedwarf.common.infinispan.InfinispanUtils;
+
+/**
+ * Lazily resolved cache for the datastore's own bookkeeping.
+ * <p/>
+ * Unless the cache is configured explicitly, it gets a dedicated configuration: non-transactional,
+ * so writing to it never joins the caller's tx, persisted like the default cache, preloaded,
+ * and never evicted nor expired, as its entries are not backed by anything else.
+ * A replicated cache is replicated on a clustered default cache, so every node reads it locally;
+ * a node-local one is always local.
+ * <p/>
+ * The cache is resolved again once it is no longer running, e.g. after its cache manager was restarted.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public final class InternalCache<K, V> {
+
+    private final String cacheName;
+    private final boolean replicated;
+    private volatile Cache<K, V> cache;
+
+    /**
+     * @param cacheName  the cache name
+     * @param replicated true if the cache is shared by the cluster, false if it is node-local
+     */
+    public InternalCache(String cacheName, boolean replicated) {
+        this.cacheName = cacheName;
+        this.replicated = replicated;
+    }
+
+    /**
+     * Get the running cache.
+     *
+     * @return the cache
+     */
+    public Cache<K, V> get() {
+        Cache<K, V> current = cache;
+        if (current == null || current.getStatus().allowInvocations() == false) {
+            synchronized (this) {
+                current = cache;
+                if (current == null || current.getStatus().allowInvocations() == false) {
+                    current = resolve();
+                    cache = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private Cache<K, V> resolve() {
+        EmbeddedCacheManager manager = InfinispanUtils.getCacheManager();
+        if (manager.getCacheConfiguration(cacheName) == null)
+            manager.defineConfiguration(cacheName, createConfiguration(manager));
+        return manager.getCache(cacheName, true);
+    }
+
+    private Configuration createConfiguration(EmbeddedCacheManager manager) {
+        Configuration defaults = manager.getDefaultCacheConfiguration();
+        ConfigurationBuilder builder = new ConfigurationBuilder().read(defaults); // keeps default cache's stores
+        boolean clustered = replicated && defaults.clustering().cacheMode().isClustered();
+        builder.clustering().cacheMode(clustered ? CacheMode.REPL_SYNC : CacheMode.LOCAL);
+        builder.transaction().transactionMode(TransactionMode.NON_TRANSACTIONAL);
+        builder.eviction().strategy(EvictionStrategy.NONE).maxEntries(-1);
+        builder.expiration().lifespan(-1).maxIdle(-1);
+        builder.loaders().preload(true);
+        builder.indexing().disable();
+        return builder.build();
+    }
+}
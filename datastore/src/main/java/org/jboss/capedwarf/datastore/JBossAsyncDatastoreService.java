@@ -24,92 +24,197 @@ package org.jboss.capedwarf.datastore;
 
 import com.google.appengine.api.datastore.AsyncDatastoreService;
 import com.google.appengine.api.datastore.DatastoreAttributes;
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Index;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyRange;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.datastore.TransactionOptions;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 /**
  * JBoss async DatastoreService impl.
+ * <p/>
+ * Uses Infinispan's async cache operations, so no extra thread is taken per call.
+ * Operations given a tx run right away in the caller's thread, which the tx is bound to.
  *
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
  */
 public class JBossAsyncDatastoreService extends AbstractDatastoreService implements AsyncDatastoreService {
+    public JBossAsyncDatastoreService() {
+    }
+
+    public JBossAsyncDatastoreService(DatastoreServiceConfig config) {
+        super(config);
+    }
+
     public Future<Transaction> beginTransaction() {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return beginTransaction(TransactionOptions.Builder.withDefaults());
     }
 
     public Future<Transaction> beginTransaction(TransactionOptions transactionOptions) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        // tx is bound to the caller's thread, hence begin it right away
+        return new ImmediateFuture<Transaction>(JBossTransaction.newTransaction());
     }
 
-    public Future<Entity> get(Key key) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+    public Future<Entity> get(final Key key) {
+        return new FutureWrapper<Entity, Entity>(store.getAsync(key)) {
+            protected Entity wrap(Entity entity) throws ExecutionException {
+                if (entity == null)
+                    throw new ExecutionException(new EntityNotFoundException(key));
+                else
+                    return entity;
+            }
+        };
     }
 
     public Future<Entity> get(Transaction transaction, Key key) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        if (inTransaction(transaction) == false)
+            return get(key);
+
+        Entity entity = store.get(key);
+        if (entity == null)
+            return ImmediateFuture.<Entity>failed(new EntityNotFoundException(key));
+        else
+            return new ImmediateFuture<Entity>(entity);
     }
 
     public Future<Map<Key, Entity>> get(Iterable<Key> keyIterable) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        final List<Key> keys = new ArrayList<Key>();
+        List<Future<Entity>> futures = new ArrayList<Future<Entity>>();
+        for (Key key : keyIterable) {
+            keys.add(key);
+            futures.add(store.getAsync(key));
+        }
+        return new AggregateFuture<Entity, Map<Key, Entity>>(futures) {
+            protected Map<Key, Entity> aggregate(List<Entity> entities) {
+                Map<Key, Entity> result = new HashMap<Key, Entity>();
+                for (int i = 0; i < entities.size(); i++) {
+                    Entity entity = entities.get(i);
+                    if (entity != null)
+                        result.put(keys.get(i), entity);
+                }
+                return result;
+            }
+        };
     }
 
     public Future<Map<Key, Entity>> get(Transaction transaction, Iterable<Key> keyIterable) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        if (inTransaction(transaction) == false)
+            return get(keyIterable);
+
+        return new ImmediateFuture<Map<Key, Entity>>(getInTransaction(keyIterable));
     }
 
     public Future<Key> put(Entity entity) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        final Key key = assignIdIfNeeded(entity);
+        return new FutureWrapper<Entity, Key>(indexWhenDone(store.putAsync(key, entity), Collections.singleton(key))) {
+            protected Key wrap(Entity previous) {
+                return key;
+            }
+        };
     }
 
     public Future<Key> put(Transaction transaction, Entity entity) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        if (inTransaction(transaction) == false)
+            return put(entity);
+
+        Key key = assignIdIfNeeded(entity);
+        store.put(key, entity);
+        indexer.changed(Collections.singleton(key));
+        return new ImmediateFuture<Key>(key);
     }
 
     public Future<List<Key>> put(Iterable<Entity> entityIterable) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        List<Entity> entities = new ArrayList<Entity>();
+        for (Entity entity : entityIterable)
+            entities.add(entity);
+
+        Map<Key, Entity> batch = assignIdsIfNeeded(entities);
+
+        final List<Key> keys = new ArrayList<Key>(entities.size());
+        for (Entity entity : entities)
+            keys.add(entity.getKey());
+
+        return new FutureWrapper<Void, List<Key>>(indexWhenDone(store.putAllAsync(batch), keys)) {
+            protected List<Key> wrap(Void result) {
+                return keys;
+            }
+        };
     }
 
     public Future<List<Key>> put(Transaction transaction, Iterable<Entity> entityIterable) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        if (inTransaction(transaction) == false)
+            return put(entityIterable);
+
+        List<Entity> entities = new ArrayList<Entity>();
+        for (Entity entity : entityIterable)
+            entities.add(entity);
+        putAll(assignIdsIfNeeded(entities));
+
+        List<Key> keys = new ArrayList<Key>(entities.size());
+        for (Entity entity : entities)
+            keys.add(entity.getKey());
+        return new ImmediateFuture<List<Key>>(keys);
     }
 
     public Future<Void> delete(Key... keys) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return delete(Arrays.asList(keys));
     }
 
     public Future<Void> delete(Transaction transaction, Key... keys) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return delete(transaction, Arrays.asList(keys));
     }
 
     public Future<Void> delete(Iterable<Key> keyIterable) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        List<Future<Entity>> futures = new ArrayList<Future<Entity>>();
+        for (Key key : keyIterable)
+            futures.add(indexWhenDone(store.removeAsync(key), Collections.singleton(key)));
+
+        return new AggregateFuture<Entity, Void>(futures) {
+            protected Void aggregate(List<Entity> results) {
+                return null;
+            }
+        };
     }
 
     public Future<Void> delete(Transaction transaction, Iterable<Key> keyIterable) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        if (inTransaction(transaction) == false)
+            return delete(keyIterable);
+
+        List<Key> keys = new ArrayList<Key>();
+        for (Key key : keyIterable) {
+            store.remove(key);
+            keys.add(key);
+        }
+        indexer.changed(keys);
+        return new ImmediateFuture<Void>(null);
     }
 
-    public Future<KeyRange> allocateIds(String s, long l) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+    public Future<KeyRange> allocateIds(String kind, long num) {
+        return allocateIds(null, kind, num);
     }
 
-    public Future<KeyRange> allocateIds(Key key, String s, long l) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+    public Future<KeyRange> allocateIds(Key parent, String kind, long num) {
+        return new ImmediateFuture<KeyRange>(allocateKeyRange(parent, kind, num));
     }
 
     public Future<DatastoreAttributes> getDatastoreAttributes() {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return new ImmediateFuture<DatastoreAttributes>(getAttributes());
     }
 
     public Future<Map<Index, Index.IndexState>> getIndexes() {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return new ImmediateFuture<Map<Index, Index.IndexState>>(getIndexStates());
     }
 }
@@ -23,7 +23,6 @@
 package org.jboss.capedwarf.datastore;
 
 import com.google.appengine.api.datastore.*;
-import org.jboss.capedwarf.common.reflection.ReflectionUtils;
 
 import java.util.*;
 
@@ -34,7 +33,14 @@ import java.util.*;
  * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
  */
 public class JBossDatastoreService extends AbstractDatastoreService implements DatastoreService {
-    private DatastoreAttributes datastoreAttributes;
+    private final MultiGet multiGet = context.getMultiGet();
+
+    public JBossDatastoreService() {
+    }
+
+    public JBossDatastoreService(DatastoreServiceConfig config) {
+        super(config);
+    }
 
     public Entity get(Key key) throws EntityNotFoundException {
         Entity entity = store.get(key);
@@ -45,44 +51,47 @@ public class JBossDatastoreService extends AbstractDatastoreService implements D
     }
 
     public Entity get(Transaction transaction, Key key) throws EntityNotFoundException {
+        inTransaction(transaction);
         return get(key);
     }
 
     public Map<Key, Entity> get(Iterable<Key> keyIterable) {
-        Map<Key, Entity> result = new HashMap<Key, Entity>();
-        for (Key key : keyIterable)
-            result.put(key, store.get(key));
-        return result;
+        return multiGet.get(keyIterable);
     }
 
     public Map<Key, Entity> get(Transaction transaction, Iterable<Key> keyIterable) {
+        if (inTransaction(transaction))
+            return getInTransaction(keyIterable);
         return get(keyIterable);
     }
 
     public Key put(Entity entity) {
-        Key key = entity.getKey();
-        if (key.isComplete() == false) {
-            long id = KeyGenerator.generateKeyId(key);
-            ReflectionUtils.invokeInstanceMethod(key, "setId", Long.TYPE, id);
-        }
+        Key key = assignIdIfNeeded(entity);
         store.put(key, entity);
+        indexer.changed(Collections.singleton(key));
         return key;
     }
 
     public Key put(Transaction transaction, Entity entity) {
+        inTransaction(transaction);
         return put(entity);
     }
 
     public List<Key> put(Iterable<Entity> entityIterable) {
-        List<Key> list = new ArrayList<Key>();
-        for (Entity e : entityIterable) {
-            Key key = put(e);
-            list.add(key);
-        }
+        List<Entity> entities = new ArrayList<Entity>();
+        for (Entity e : entityIterable)
+            entities.add(e);
+
+        putAll(assignIdsIfNeeded(entities));
+
+        List<Key> list = new ArrayList<Key>(entities.size());
+        for (Entity e : entities)
+            list.add(e.getKey());
         return list;
     }
 
     public List<Key> put(Transaction transaction, Iterable<Entity> entityIterable) {
+        inTransaction(transaction);
         return put(entityIterable);
     }
 
@@ -91,15 +100,21 @@ public class JBossDatastoreService extends AbstractDatastoreService implements D
     }
 
     public void delete(Transaction transaction, Key... keys) {
+        inTransaction(transaction);
         delete(keys);
     }
 
     public void delete(Iterable<Key> keyIterable) {
-        for (Key key : keyIterable)
+        List<Key> keys = new ArrayList<Key>();
+        for (Key key : keyIterable) {
             store.remove(key);
+            keys.add(key);
+        }
+        indexer.changed(keys);
     }
 
     public void delete(Transaction transaction, Iterable<Key> keyIterable) {
+        inTransaction(transaction);
         delete(keyIterable);
     }
 
@@ -112,28 +127,37 @@ public class JBossDatastoreService extends AbstractDatastoreService implements D
     }
 
     public Map<Index, Index.IndexState> getIndexes() {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return getIndexStates();
     }
 
     public KeyRange allocateIds(String kind, long num) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return allocateIds(null, kind, num);
     }
 
     public KeyRange allocateIds(Key parent, String kind, long num) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return allocateKeyRange(parent, kind, num);
     }
 
     public KeyRangeState allocateIdRange(KeyRange keyRange) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        long start = keyRange.getStart().getId();
+        long end = keyRange.getEnd().getId();
+        boolean collision = queryConverter.containsAny(keyRange);
+        long firstFree = KeyGenerator.skipTo(keyRange.getKind(), end);
+
+        if (collision)
+            return KeyRangeState.COLLISION;
+        else if (firstFree > start)
+            return KeyRangeState.CONTENTION;
+        else
+            return KeyRangeState.EMPTY;
     }
 
     public DatastoreAttributes getDatastoreAttributes() {
-        if (datastoreAttributes == null)
-            datastoreAttributes = ReflectionUtils.newInstance(DatastoreAttributes.class);
-        return datastoreAttributes;
+        return getAttributes();
     }
 
     public void clearCache() {
         store.clear();
+        indexer.purgeAll();
     }
 }
@@ -23,22 +23,155 @@
 package org.jboss.capedwarf.datastore;
 
 import com.google.appengine.api.datastore.Key;
+import org.infinispan.Cache;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Entity key id generator.
  * <p/>
- * TODO -- proper id generator!
+ * Each node reserves blocks of ids per kind from a counter kept in a clustered cache;
+ * ids within a block are handed out locally, without any coordination.
+ * The counter cache is an {@link InternalCache}: replicated, non-transactional, so reserving a block never joins
+ * the caller's tx, and never evicted nor expired, as a lost counter would hand out its ids again.
+ * It should be persisted, so ids survive restarts. Blocks are dropped with the counter cache they were reserved from.
  *
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
  */
 class KeyGenerator {
 
-    private static final AtomicLong gen = new AtomicLong(1);
+    private static final String KEY_RANGES_CACHE = "capedwarf-key-ranges";
+    private static final long BLOCK_SIZE = Long.getLong("jboss.capedwarf.datastore.id.block.size", 1000);
+
+    private static final InternalCache<String, Long> counters = new InternalCache<String, Long>(KEY_RANGES_CACHE, true);
+    private static volatile Allocators allocators;
 
     static long generateKeyId(Key key) {
-        return gen.getAndIncrement();
+        return getAllocator(key.getKind()).next(1);
+    }
+
+    /**
+     * Generate num consecutive ids.
+     *
+     * @param kind the kind
+     * @param num  the number of ids
+     * @return first id of the range
+     */
+    static long generateKeyRange(String kind, long num) {
+        if (num * 2 > BLOCK_SIZE)
+            return reserve(counters.get(), kind, num);
+        else
+            return getAllocator(kind).next(num);
+    }
+
+    /**
+     * Make sure no id up to end is ever generated again.
+     *
+     * @param kind the kind
+     * @param end  the last id to skip, inclusive
+     * @return the first id that was not yet reserved before this call
+     */
+    static long skipTo(String kind, long end) {
+        Cache<String, Long> cache = counters.get();
+        while (true) {
+            Long current = cache.get(kind);
+            if (current == null) {
+                if (cache.putIfAbsent(kind, end + 1) == null)
+                    return 1;
+            } else if (current > end) {
+                return current;
+            } else if (cache.replace(kind, current, end + 1)) {
+                return current;
+            }
+        }
     }
 
+    private static KindAllocator getAllocator(String kind) {
+        Cache<String, Long> cache = counters.get();
+        Allocators current = allocators;
+        if (current == null || current.cache != cache) {
+            synchronized (KeyGenerator.class) {
+                current = allocators;
+                if (current == null || current.cache != cache) {
+                    current = new Allocators(cache);
+                    allocators = current;
+                }
+            }
+        }
+        return current.get(kind);
+    }
+
+    private static long reserve(Cache<String, Long> cache, String kind, long size) {
+        while (true) {
+            Long current = cache.get(kind);
+            if (current == null) {
+                if (cache.putIfAbsent(kind, 1 + size) == null)
+                    return 1;
+            } else if (cache.replace(kind, current, current + size)) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Allocators of one counter cache instance.
+     */
+    private static class Allocators {
+        private final Cache<String, Long> cache;
+        private final ConcurrentMap<String, KindAllocator> byKind = new ConcurrentHashMap<String, KindAllocator>();
+
+        private Allocators(Cache<String, Long> cache) {
+            this.cache = cache;
+        }
+
+        KindAllocator get(String kind) {
+            KindAllocator allocator = byKind.get(kind);
+            if (allocator == null) {
+                allocator = new KindAllocator(cache, kind);
+                KindAllocator previous = byKind.putIfAbsent(kind, allocator);
+                if (previous != null)
+                    allocator = previous;
+            }
+            return allocator;
+        }
+    }
+
+    private static class KindAllocator {
+        private final Cache<String, Long> cache;
+        private final String kind;
+        private volatile Block block;
+
+        private KindAllocator(Cache<String, Long> cache, String kind) {
+            this.cache = cache;
+            this.kind = kind;
+        }
+
+        long next(long num) {
+            while (true) {
+                Block current = block;
+                if (current != null) {
+                    long id = current.next.getAndAdd(num);
+                    if (id + num <= current.end)
+                        return id;
+                }
+                synchronized (this) {
+                    if (block == current)
+                        block = new Block(reserve(cache, kind, BLOCK_SIZE), BLOCK_SIZE);
+                }
+            }
+        }
+    }
+
+    private static class Block {
+        private final AtomicLong next;
+        private final long end; // exclusive
+
+        private Block(long start, long size) {
+            this.next = new AtomicLong(start);
+            this.end = start + size;
+        }
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.distexec.DefaultExecutorService;
+import org.infinispan.distexec.DistributedExecutorService;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.remoting.transport.Address;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Batched multi-key lookup.
+ * <p/>
+ * In a distributed cache the keys are grouped by their primary owner,
+ * and each group is fetched with a single task executed on that owner.
+ * Remote groups are fetched in parallel, while local group is read directly.
+ * There is one instance per app and store, its executor is shut down with them.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+class MultiGet {
+    private final Cache<Key, Entity> store;
+    private ExecutorService localExecutor; // guarded by this
+    private DistributedExecutorService executor; // guarded by this
+    private boolean stopped; // guarded by this
+
+    MultiGet(Cache<Key, Entity> store) {
+        this.store = store;
+    }
+
+    Map<Key, Entity> get(Iterable<Key> keys) {
+        AdvancedCache<Key, Entity> cache = store.getAdvancedCache();
+        DistributionManager dm = cache.getDistributionManager();
+        if (dm == null)
+            return GetEntitiesTask.getLocally(store, keys);
+
+        Address self = cache.getRpcManager().getAddress();
+        List<Key> localKeys = new ArrayList<Key>();
+        Map<Address, List<Key>> groups = new HashMap<Address, List<Key>>();
+        for (Key key : keys) {
+            Address owner = dm.locate(key).get(0);
+            if (self.equals(owner)) {
+                localKeys.add(key);
+            } else {
+                List<Key> group = groups.get(owner);
+                if (group == null) {
+                    group = new ArrayList<Key>();
+                    groups.put(owner, group);
+                }
+                group.add(key);
+            }
+        }
+
+        List<Future<Map<Key, Entity>>> futures = new ArrayList<Future<Map<Key, Entity>>>();
+        for (List<Key> group : groups.values())
+            futures.add(getExecutor().submit(new GetEntitiesTask(), group.toArray(new Key[group.size()])));
+
+        Map<Key, Entity> result = GetEntitiesTask.getLocally(store, localKeys);
+        try {
+            for (Future<Map<Key, Entity>> future : futures)
+                result.putAll(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatastoreFailureException("Interrupted while fetching entities.", e);
+        } catch (ExecutionException e) {
+            throw new DatastoreFailureException("Cannot fetch entities.", e.getCause());
+        }
+        return result;
+    }
+
+    private DistributedExecutorService getExecutor() {
+        synchronized (this) {
+            if (stopped)
+                throw new IllegalStateException("Datastore was stopped.");
+            if (executor == null) {
+                localExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "capedwarf-multi-get");
+                        thread.setDaemon(true);
+                        thread.setContextClassLoader(MultiGet.class.getClassLoader()); // not the app's, see StoreContext
+                        return thread;
+                    }
+                });
+                executor = new DefaultExecutorService(store, localExecutor);
+            }
+            return executor;
+        }
+    }
+
+    /**
+     * Shut down the executor, once the app or the store goes away.
+     */
+    synchronized void stop() {
+        stopped = true;
+        if (executor != null) {
+            executor.shutdown();
+            localExecutor.shutdown();
+        }
+    }
+}
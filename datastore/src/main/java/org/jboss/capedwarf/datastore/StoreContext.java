@@ -0,0 +1,237 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+
+package org.jboss.capedwarf.datastore;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.context.Flag;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachemanagerlistener.annotation.CacheStopped;
+import org.infinispan.notifications.cachemanagerlistener.event.CacheStoppedEvent;
+import org.infinispan.query.Search;
+import org.infinispan.query.SearchManager;
+import org.jboss.capedwarf.common.app.Application;
+import org.jboss.capedwarf.common.infinispan.InfinispanUtils;
+import org.jboss.capedwarf.datastore.query.AsyncIndexer;
+import org.jboss.capedwarf.datastore.query.CompositeIndexes;
+import org.jboss.capedwarf.datastore.query.PropertyMapBridge;
+import org.jboss.capedwarf.datastore.query.QueryConverter;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Datastore state shared by all service instances of one application.
+ * <p/>
+ * Contexts are kept per app classloader. A context is released when the app is undeployed
+ * ({@link DatastoreCleanupListener}) or when the store cache is stopped; its executors and threads are shut down then.
+ * A context never refers to the app's classloader, neither does any thread it starts; services apply the classloader
+ * to their own store view. So an app undeployed without the listener being called does not leak its classloader,
+ * and its context is released on next lookup of any context, once the classloader is collected.
+ * <p/>
+ * A local store is indexed by the app's {@link AsyncIndexer}, a clustered one by the cache itself,
+ * synchronously on every node, as the indexer's queue is node-local.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+final class StoreContext {
+    private static final Logger log = Logger.getLogger(StoreContext.class.getName());
+
+    private static final Map<ClassLoader, StoreContext> contexts = new WeakHashMap<ClassLoader, StoreContext>();
+    private static final ReferenceQueue<ClassLoader> collected = new ReferenceQueue<ClassLoader>();
+    private static final Map<Reference<? extends ClassLoader>, StoreContext> owners = new HashMap<Reference<? extends ClassLoader>, StoreContext>();
+    private static EmbeddedCacheManager listenedManager;
+
+    private final String cacheName;
+    private final Cache<Key, Entity> store;
+    private final SearchManager searchManager;
+    private final MultiGet multiGet;
+    private final AsyncIndexer indexer;
+    private final CompositeIndexes compositeIndexes;
+    private final QueryConverter queryConverter;
+    private Reference<ClassLoader> owner; // guarded by StoreContext.class
+
+    private StoreContext(String cacheName, Cache<Key, Entity> cache, ClassLoader classLoader, String appId) {
+        this.cacheName = cacheName;
+        boolean clustered = cache.getCacheConfiguration().clustering().cacheMode().isClustered();
+        AdvancedCache<Key, Entity> view = cache.getAdvancedCache();
+        this.store = clustered ? view : view.withFlags(Flag.SKIP_INDEXING);
+        this.searchManager = Search.getSearchManager(store);
+        this.multiGet = new MultiGet(store);
+        this.indexer = new AsyncIndexer(store, searchManager, clustered == false);
+        indexer.start(appId);
+        this.compositeIndexes = CompositeIndexes.load(appId, classLoader);
+        this.queryConverter = new QueryConverter(store, searchManager, indexer, compositeIndexes);
+        compositeIndexes.build(queryConverter);
+    }
+
+    /**
+     * Get the app's context, creating it on first call.
+     *
+     * @param classLoader the app's classloader
+     * @return the context
+     */
+    static StoreContext get(ClassLoader classLoader) {
+        List<StoreContext> released = new ArrayList<StoreContext>();
+        StoreContext context;
+        synchronized (StoreContext.class) {
+            for (Reference<? extends ClassLoader> ref = collected.poll(); ref != null; ref = collected.poll()) {
+                StoreContext orphan = owners.remove(ref);
+                if (orphan != null)
+                    released.add(orphan);
+            }
+            context = getOrCreate(classLoader);
+        }
+        for (StoreContext orphan : released)
+            orphan.stop();
+        return context;
+    }
+
+    private static StoreContext getOrCreate(ClassLoader classLoader) {
+        StoreContext context = contexts.get(classLoader);
+        if (context == null) {
+            EmbeddedCacheManager manager = InfinispanUtils.getCacheManager();
+            if (manager != listenedManager) {
+                manager.addListener(new CacheStopListener());
+                listenedManager = manager;
+            }
+            String cacheName = getStoreCacheName();
+            Cache<Key, Entity> cache = manager.getCache(cacheName, true);
+            context = new StoreContext(cacheName, cache, classLoader, Application.getAppId());
+            context.owner = new WeakReference<ClassLoader>(classLoader, collected);
+            contexts.put(classLoader, context);
+            owners.put(context.owner, context);
+        }
+        return context;
+    }
+
+    private static String getStoreCacheName() {
+        return "default"; // TODO
+    }
+
+    /**
+     * Release the app's context, if it has one, and the property bridges the app registered.
+     *
+     * @param classLoader the app's classloader
+     */
+    static void release(ClassLoader classLoader) {
+        PropertyMapBridge.release(classLoader);
+        StoreContext context;
+        synchronized (StoreContext.class) {
+            context = contexts.remove(classLoader);
+            if (context != null)
+                owners.remove(context.owner);
+        }
+        if (context != null)
+            context.stop();
+    }
+
+    private static void releaseAll(String cacheName) {
+        List<StoreContext> released = new ArrayList<StoreContext>();
+        synchronized (StoreContext.class) {
+            for (Iterator<StoreContext> it = contexts.values().iterator(); it.hasNext(); ) {
+                StoreContext context = it.next();
+                if (context.cacheName.equals(cacheName)) {
+                    released.add(context);
+                    owners.remove(context.owner);
+                    it.remove();
+                }
+            }
+        }
+        for (StoreContext context : released)
+            context.stop();
+    }
+
+    /**
+     * Get the store, without the app's classloader applied.
+     *
+     * @return the store
+     */
+    Cache<Key, Entity> getStore() {
+        return store;
+    }
+
+    SearchManager getSearchManager() {
+        return searchManager;
+    }
+
+    MultiGet getMultiGet() {
+        return multiGet;
+    }
+
+    AsyncIndexer getIndexer() {
+        return indexer;
+    }
+
+    CompositeIndexes getCompositeIndexes() {
+        return compositeIndexes;
+    }
+
+    QueryConverter getQueryConverter() {
+        return queryConverter;
+    }
+
+    private void stop() {
+        try {
+            indexer.stop();
+        } catch (Throwable t) {
+            log.log(Level.WARNING, "Failed to stop indexer.", t);
+        }
+        try {
+            compositeIndexes.stop();
+        } catch (Throwable t) {
+            log.log(Level.WARNING, "Failed to stop composite indexes.", t);
+        }
+        try {
+            multiGet.stop();
+        } catch (Throwable t) {
+            log.log(Level.WARNING, "Failed to stop multi get.", t);
+        }
+        try {
+            queryConverter.stop();
+        } catch (Throwable t) {
+            log.log(Level.WARNING, "Failed to stop query converter.", t);
+        }
+    }
+
+    @Listener
+    public static class CacheStopListener {
+        @CacheStopped
+        public void cacheStopped(CacheStoppedEvent event) {
+            releaseAll(event.getCacheName());
+        }
+    }
+}
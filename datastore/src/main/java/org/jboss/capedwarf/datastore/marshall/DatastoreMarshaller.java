@@ -0,0 +1,430 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore.marshall;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Category;
+import com.google.appengine.api.datastore.Email;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.IMHandle;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.PhoneNumber;
+import com.google.appengine.api.datastore.PostalAddress;
+import com.google.appengine.api.datastore.Rating;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.users.User;
+import org.jboss.capedwarf.common.reflection.ReflectionUtils;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary format of entities, keys and property values.
+ * <p/>
+ * Longs are written as zig-zag varints, strings as varint length prefixed UTF-8.
+ * Kinds, property names, app ids and namespaces are written as their NameDictionary ids;
+ * a name not in the dictionary is written as id 0 followed by the name.
+ * Each property value is prefixed by a one byte type tag; values of unknown types
+ * fall back to Java serialization.
+ * <p/>
+ * Marshaller is stateless, hence thread safe.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+class DatastoreMarshaller {
+
+    private static final int NULL = 0;
+    private static final int LONG = 1;
+    private static final int INTEGER = 2;
+    private static final int SHORT = 3;
+    private static final int BYTE = 4;
+    private static final int DOUBLE = 5;
+    private static final int FLOAT = 6;
+    private static final int TRUE = 7;
+    private static final int FALSE = 8;
+    private static final int STRING = 9;
+    private static final int DATE = 10;
+    private static final int KEY = 11;
+    private static final int TEXT = 12;
+    private static final int BLOB = 13;
+    private static final int SHORT_BLOB = 14;
+    private static final int GEO_PT = 15;
+    private static final int USER = 16;
+    private static final int CATEGORY = 17;
+    private static final int EMAIL = 18;
+    private static final int LINK = 19;
+    private static final int PHONE_NUMBER = 20;
+    private static final int POSTAL_ADDRESS = 21;
+    private static final int RATING = 22;
+    private static final int IM_HANDLE = 23;
+    private static final int BLOB_KEY = 24;
+    private static final int LIST = 25;
+    private static final int SERIALIZED = 26;
+
+    private static final int INCOMPLETE = 0;
+    private static final int ID = 1;
+    private static final int NAME = 2;
+
+    private static final int UNINDEXED = 0x80;
+
+    private static final String ENCODING = "UTF-8";
+    private static final Class<?> APP_ID_NAMESPACE = loadAppIdNamespaceClass();
+
+    void writeEntity(ObjectOutput output, Entity entity) throws IOException {
+        writeKey(output, entity.getKey());
+        Map<String, Object> properties = entity.getProperties();
+        writeVarLong(output, properties.size());
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            String propertyName = entry.getKey();
+            writeName(output, propertyName);
+            writeValue(output, entry.getValue(), entity.isUnindexedProperty(propertyName) ? UNINDEXED : 0);
+        }
+    }
+
+    Entity readEntity(ObjectInput input) throws IOException, ClassNotFoundException {
+        Entity entity = new Entity(readKey(input));
+        int size = (int) readVarLong(input);
+        for (int i = 0; i < size; i++) {
+            String propertyName = readName(input);
+            int tag = input.readUnsignedByte();
+            Object value = readValue(input, tag & ~UNINDEXED);
+            if ((tag & UNINDEXED) != 0)
+                entity.setUnindexedProperty(propertyName, value);
+            else
+                entity.setProperty(propertyName, value);
+        }
+        return entity;
+    }
+
+    /**
+     * Keys are written root first: app id, namespace, path length and then kind and id or name of each element.
+     */
+    void writeKey(ObjectOutput output, Key key) throws IOException {
+        List<Key> path = new ArrayList<Key>();
+        for (Key current = key; current != null; current = current.getParent())
+            path.add(current);
+
+        writeName(output, key.getAppId());
+        writeName(output, key.getNamespace());
+        writeVarLong(output, path.size());
+        for (int i = path.size() - 1; i >= 0; i--) {
+            Key element = path.get(i);
+            writeName(output, element.getKind());
+            if (element.getName() != null) {
+                output.writeByte(NAME);
+                writeString(output, element.getName());
+            } else if (element.getId() != 0) {
+                output.writeByte(ID);
+                writeVarLong(output, element.getId());
+            } else {
+                output.writeByte(INCOMPLETE);
+            }
+        }
+    }
+
+    Key readKey(ObjectInput input) throws IOException {
+        String appId = readName(input);
+        String namespace = readName(input);
+        Object appIdNamespace = ReflectionUtils.newInstance(APP_ID_NAMESPACE, new Class[]{String.class, String.class}, new Object[]{appId, namespace});
+
+        Key key = null;
+        int length = (int) readVarLong(input);
+        for (int i = 0; i < length; i++) {
+            String kind = readName(input);
+            long id = 0;
+            String name = null;
+            int type = input.readUnsignedByte();
+            if (type == NAME)
+                name = readString(input);
+            else if (type == ID)
+                id = readVarLong(input);
+            else if (type != INCOMPLETE)
+                throw new IOException("Unknown key element type: " + type);
+
+            key = ReflectionUtils.newInstance(Key.class,
+                    new Class[]{String.class, Key.class, long.class, String.class, APP_ID_NAMESPACE},
+                    new Object[]{kind, key, id, name, appIdNamespace});
+        }
+        return key;
+    }
+
+    private void writeValue(ObjectOutput output, Object value, int flags) throws IOException {
+        if (value == null) {
+            output.writeByte(NULL | flags);
+        } else if (value instanceof String) {
+            output.writeByte(STRING | flags);
+            writeString(output, (String) value);
+        } else if (value instanceof Long) {
+            output.writeByte(LONG | flags);
+            writeVarLong(output, (Long) value);
+        } else if (value instanceof Integer) {
+            output.writeByte(INTEGER | flags);
+            writeVarLong(output, (Integer) value);
+        } else if (value instanceof Short) {
+            output.writeByte(SHORT | flags);
+            writeVarLong(output, (Short) value);
+        } else if (value instanceof Byte) {
+            output.writeByte(BYTE | flags);
+            output.writeByte((Byte) value);
+        } else if (value instanceof Double) {
+            output.writeByte(DOUBLE | flags);
+            output.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            output.writeByte(FLOAT | flags);
+            output.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(((Boolean) value ? TRUE : FALSE) | flags);
+        } else if (value instanceof Date) {
+            output.writeByte(DATE | flags);
+            writeVarLong(output, ((Date) value).getTime());
+        } else if (value instanceof Key) {
+            output.writeByte(KEY | flags);
+            writeKey(output, (Key) value);
+        } else if (value instanceof Text) {
+            output.writeByte(TEXT | flags);
+            writeString(output, ((Text) value).getValue());
+        } else if (value instanceof Blob) {
+            output.writeByte(BLOB | flags);
+            writeBytes(output, ((Blob) value).getBytes());
+        } else if (value instanceof ShortBlob) {
+            output.writeByte(SHORT_BLOB | flags);
+            writeBytes(output, ((ShortBlob) value).getBytes());
+        } else if (value instanceof GeoPt) {
+            output.writeByte(GEO_PT | flags);
+            output.writeFloat(((GeoPt) value).getLatitude());
+            output.writeFloat(((GeoPt) value).getLongitude());
+        } else if (value instanceof User) {
+            User user = (User) value;
+            output.writeByte(USER | flags);
+            writeString(output, user.getEmail());
+            writeString(output, user.getAuthDomain());
+            writeString(output, user.getUserId());
+            writeString(output, user.getFederatedIdentity());
+        } else if (value instanceof Category) {
+            output.writeByte(CATEGORY | flags);
+            writeString(output, ((Category) value).getCategory());
+        } else if (value instanceof Email) {
+            output.writeByte(EMAIL | flags);
+            writeString(output, ((Email) value).getEmail());
+        } else if (value instanceof Link) {
+            output.writeByte(LINK | flags);
+            writeString(output, ((Link) value).getValue());
+        } else if (value instanceof PhoneNumber) {
+            output.writeByte(PHONE_NUMBER | flags);
+            writeString(output, ((PhoneNumber) value).getNumber());
+        } else if (value instanceof PostalAddress) {
+            output.writeByte(POSTAL_ADDRESS | flags);
+            writeString(output, ((PostalAddress) value).getAddress());
+        } else if (value instanceof Rating) {
+            output.writeByte(RATING | flags);
+            writeVarLong(output, ((Rating) value).getRating());
+        } else if (value instanceof IMHandle) {
+            output.writeByte(IM_HANDLE | flags);
+            writeString(output, ((IMHandle) value).getProtocol());
+            writeString(output, ((IMHandle) value).getAddress());
+        } else if (value instanceof BlobKey) {
+            output.writeByte(BLOB_KEY | flags);
+            writeString(output, ((BlobKey) value).getKeyString());
+        } else if (value.getClass() == ArrayList.class) {
+            List<?> list = (List<?>) value;
+            output.writeByte(LIST | flags);
+            writeVarLong(output, list.size());
+            for (Object element : list)
+                writeValue(output, element, 0);
+        } else {
+            output.writeByte(SERIALIZED | flags);
+            output.writeObject(value);
+        }
+    }
+
+    private Object readValue(ObjectInput input, int tag) throws IOException, ClassNotFoundException {
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(input);
+            case LONG:
+                return readVarLong(input);
+            case INTEGER:
+                return (int) readVarLong(input);
+            case SHORT:
+                return (short) readVarLong(input);
+            case BYTE:
+                return input.readByte();
+            case DOUBLE:
+                return input.readDouble();
+            case FLOAT:
+                return input.readFloat();
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case DATE:
+                return new Date(readVarLong(input));
+            case KEY:
+                return readKey(input);
+            case TEXT:
+                return new Text(readString(input));
+            case BLOB:
+                return new Blob(readBytes(input));
+            case SHORT_BLOB:
+                return new ShortBlob(readBytes(input));
+            case GEO_PT:
+                return new GeoPt(input.readFloat(), input.readFloat());
+            case USER:
+                return new User(readString(input), readString(input), readString(input), readString(input));
+            case CATEGORY:
+                return new Category(readString(input));
+            case EMAIL:
+                return new Email(readString(input));
+            case LINK:
+                return new Link(readString(input));
+            case PHONE_NUMBER:
+                return new PhoneNumber(readString(input));
+            case POSTAL_ADDRESS:
+                return new PostalAddress(readString(input));
+            case RATING:
+                return new Rating((int) readVarLong(input));
+            case IM_HANDLE:
+                return readIMHandle(readString(input), readString(input));
+            case BLOB_KEY:
+                return new BlobKey(readString(input));
+            case LIST:
+                int size = (int) readVarLong(input);
+                List<Object> list = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++)
+                    list.add(readValue(input, input.readUnsignedByte()));
+                return list;
+            case SERIALIZED:
+                return input.readObject();
+            default:
+                throw new IOException("Unknown value type: " + tag);
+        }
+    }
+
+    private static IMHandle readIMHandle(String protocol, String address) throws IOException {
+        for (IMHandle.Scheme scheme : IMHandle.Scheme.values()) {
+            if (scheme.name().equals(protocol))
+                return new IMHandle(scheme, address);
+        }
+        return new IMHandle(new URL(protocol), address);
+    }
+
+    private static void writeName(ObjectOutput output, String name) throws IOException {
+        int id = NameDictionary.getId(name);
+        writeVarLong(output, id);
+        if (id == NameDictionary.UNKNOWN)
+            writeString(output, name);
+    }
+
+    private static String readName(ObjectInput input) throws IOException {
+        int id = (int) readVarLong(input);
+        if (id == NameDictionary.UNKNOWN)
+            return readString(input);
+
+        String name = NameDictionary.getName(id);
+        if (name == null)
+            throw new IOException("Unknown name id: " + id);
+        return name;
+    }
+
+    /**
+     * Null is written as length 0, other strings as length + 1.
+     */
+    private static void writeString(ObjectOutput output, String value) throws IOException {
+        if (value == null) {
+            writeVarLong(output, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(ENCODING);
+        writeVarLong(output, bytes.length + 1);
+        output.write(bytes);
+    }
+
+    private static String readString(ObjectInput input) throws IOException {
+        int length = (int) readVarLong(input);
+        if (length == 0)
+            return null;
+
+        byte[] bytes = new byte[length - 1];
+        input.readFully(bytes);
+        try {
+            return new String(bytes, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeBytes(ObjectOutput output, byte[] bytes) throws IOException {
+        writeVarLong(output, bytes.length);
+        output.write(bytes);
+    }
+
+    private static byte[] readBytes(ObjectInput input) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(input)];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Zig-zag encoded, so small negative values are short too, in groups of 7 bits, least significant first.
+     */
+    static void writeVarLong(ObjectOutput output, long value) throws IOException {
+        long zigZag = (value << 1) ^ (value >> 63);
+        while ((zigZag & ~0x7FL) != 0) {
+            output.writeByte((int) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+        output.writeByte((int) zigZag);
+    }
+
+    static long readVarLong(ObjectInput input) throws IOException {
+        long zigZag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.readUnsignedByte();
+            zigZag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return (zigZag >>> 1) ^ -(zigZag & 1);
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static Class<?> loadAppIdNamespaceClass() {
+        try {
+            return Class.forName("com.google.appengine.api.datastore.AppIdNamespace", false, Key.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
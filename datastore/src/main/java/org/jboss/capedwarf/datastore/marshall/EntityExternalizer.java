@@ -0,0 +1,50 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore.marshall;
+
+import com.google.appengine.api.datastore.Entity;
+import org.infinispan.marshall.Externalizer;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Marshalls entities in DatastoreMarshaller's compact format, instead of Java serialization.
+ * Attached to Entity with @SerializeWith by EntityTransformer.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class EntityExternalizer implements Externalizer<Entity> {
+
+    private static final long serialVersionUID = 1L;
+    private static final DatastoreMarshaller marshaller = new DatastoreMarshaller();
+
+    public void writeObject(ObjectOutput output, Entity entity) throws IOException {
+        marshaller.writeEntity(output, entity);
+    }
+
+    public Entity readObject(ObjectInput input) throws IOException, ClassNotFoundException {
+        return marshaller.readEntity(input);
+    }
+}
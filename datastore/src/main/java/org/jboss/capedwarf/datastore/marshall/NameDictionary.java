@@ -0,0 +1,192 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.capedwarf.datastore.marshall;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import org.infinispan.Cache;
+import org.infinispan.context.Flag;
+import org.jboss.capedwarf.datastore.InternalCache;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cluster-wide dictionary of kinds, property names, app ids and namespaces.
+ * <p/>
+ * Each name gets a small integer id, so marshalled entities carry ids instead of repeating names.
+ * Ids are kept in two {@link InternalCache}s, one per direction: replicated, so every node reads them locally,
+ * non-transactional, so assigning an id never joins the caller's tx, persisted like the default cache
+ * and never evicted nor expired, as stored entities refer to the ids. Both are resolved again once they stop running.
+ * <p/>
+ * Ids are assigned when entities are about to be stored, see {@link #register(Entity)};
+ * marshalling only reads what is already known on the node, and writes names without an id inline.
+ * An id is claimed by the first node to put it into the id cache; the name cache then
+ * decides which claimed id a name keeps. Ids lost in a race are never used.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public final class NameDictionary {
+
+    /**
+     * Id of names written inline.
+     */
+    static final int UNKNOWN = 0;
+
+    private static final String IDS_CACHE = "capedwarf-name-ids";
+    private static final String NAMES_CACHE = "capedwarf-names";
+
+    private static final ConcurrentMap<String, Integer> localIds = new ConcurrentHashMap<String, Integer>();
+    private static final ConcurrentMap<Integer, String> localNames = new ConcurrentHashMap<Integer, String>();
+    private static final AtomicInteger nextId = new AtomicInteger(UNKNOWN + 1);
+
+    private static final InternalCache<String, Integer> ids = new InternalCache<String, Integer>(IDS_CACHE, true);
+    private static final InternalCache<Integer, String> names = new InternalCache<Integer, String>(NAMES_CACHE, true);
+
+    private NameDictionary() {
+    }
+
+    /**
+     * Make sure all names of the entity, including those of its key values, have ids.
+     * Called before the entity is stored, never while marshalling.
+     *
+     * @param entity the entity
+     */
+    public static void register(Entity entity) {
+        register(entity.getKey());
+        for (Map.Entry<String, Object> entry : entity.getProperties().entrySet()) {
+            register(entry.getKey());
+            registerValue(entry.getValue());
+        }
+    }
+
+    private static void registerValue(Object value) {
+        if (value instanceof Key) {
+            register((Key) value);
+        } else if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value)
+                registerValue(element);
+        }
+    }
+
+    /**
+     * Make sure all names of the key have ids.
+     *
+     * @param key the key
+     */
+    public static void register(Key key) {
+        register(key.getAppId());
+        register(key.getNamespace());
+        for (Key current = key; current != null; current = current.getParent())
+            register(current.getKind());
+    }
+
+    private static void register(String name) {
+        if (name == null)
+            throw new IllegalArgumentException("Null name");
+
+        if (getId(name) == UNKNOWN)
+            remember(assignId(name), name);
+    }
+
+    /**
+     * Get name's id, as known on this node.
+     *
+     * @param name the name
+     * @return the id, or UNKNOWN if the name was never registered
+     */
+    static int getId(String name) {
+        if (name == null)
+            throw new IllegalArgumentException("Null name");
+
+        Integer id = localIds.get(name);
+        if (id == null) {
+            id = local(getIds()).get(name);
+            if (id == null)
+                return UNKNOWN;
+            remember(id, name);
+        }
+        return id;
+    }
+
+    /**
+     * Get name by its id, as known on this node.
+     *
+     * @param id the id
+     * @return the name, or null if no such id was assigned
+     */
+    static String getName(int id) {
+        String name = localNames.get(id);
+        if (name == null) {
+            name = local(getNames()).get(id);
+            if (name != null)
+                name = remember(id, name);
+        }
+        return name;
+    }
+
+    private static Integer assignId(String name) {
+        Cache<Integer, String> nameCache = getNames();
+        int candidate = nextId.get();
+        while (nameCache.putIfAbsent(candidate, name) != null)
+            candidate++;
+
+        Integer previous = getIds().putIfAbsent(name, candidate);
+        return (previous != null) ? previous : candidate;
+    }
+
+    /**
+     * Remember mapping locally.
+     *
+     * @return the canonical name instance
+     */
+    private static String remember(int id, String name) {
+        String previous = localNames.putIfAbsent(id, name);
+        if (previous != null)
+            name = previous;
+        localIds.putIfAbsent(name, id);
+
+        int next = nextId.get();
+        while (next <= id && nextId.compareAndSet(next, id + 1) == false)
+            next = nextId.get();
+        return name;
+    }
+
+    /**
+     * Caches are replicated, so all entries can be read without going to other nodes.
+     */
+    private static <K, V> Cache<K, V> local(Cache<K, V> cache) {
+        return cache.getAdvancedCache().withFlags(Flag.CACHE_MODE_LOCAL);
+    }
+
+    private static Cache<String, Integer> getIds() {
+        return ids.get();
+    }
+
+    private static Cache<Integer, String> getNames() {
+        return names.get();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Collects all hits, growing with the number of matches rather than the size of the index.
+ * <p/>
+ * Used for queries without a limit, where a bounded heap would have to be as big as the index.
+ * Sort values are read from the field cache while collecting, hits are sorted once at the end.
+ * Documents are collected in index order and the sort is stable, so ties keep index order, like in {@link TopKCollector}.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+class AllHitsCollector extends Collector {
+
+    private final SortField[] sortFields;
+    private final IndexHitComparator comparator;
+    private final List<Hit> hits = new ArrayList<Hit>();
+    private final Object[] values;
+    private int docBase;
+
+    AllHitsCollector(Sort sort) {
+        this.sortFields = sort.getSort();
+        this.comparator = new IndexHitComparator(sort);
+        this.values = new Object[sortFields.length];
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        Object[] sortValues = new Object[sortFields.length];
+        for (int i = 0; i < sortFields.length; i++)
+            sortValues[i] = getValue(values[i], doc);
+        hits.add(new Hit(docBase + doc, sortValues));
+    }
+
+    private static Object getValue(Object values, int doc) {
+        if (values instanceof long[])
+            return ((long[]) values)[doc];
+        else if (values instanceof double[])
+            return ((double[]) values)[doc];
+        else {
+            FieldCache.StringIndex index = (FieldCache.StringIndex) values;
+            return index.lookup[index.order[doc]];
+        }
+    }
+
+    @Override
+    public void setNextReader(IndexReader reader, int docBase) throws IOException {
+        this.docBase = docBase;
+        for (int i = 0; i < sortFields.length; i++) {
+            SortField sortField = sortFields[i];
+            switch (sortField.getType()) {
+                case SortField.LONG:
+                    values[i] = FieldCache.DEFAULT.getLongs(reader, sortField.getField());
+                    break;
+                case SortField.DOUBLE:
+                    values[i] = FieldCache.DEFAULT.getDoubles(reader, sortField.getField());
+                    break;
+                case SortField.STRING:
+                    values[i] = FieldCache.DEFAULT.getStringIndex(reader, sortField.getField());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported sort field: " + sortField);
+            }
+        }
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return false;
+    }
+
+    /**
+     * Get collected hits, best first, skipping the given number of them.
+     *
+     * @param reader      the reader searched
+     * @param firstResult number of leading hits to skip
+     * @return hits with their sort values
+     * @throws IOException for any I/O error
+     */
+    public List<IndexHit> getHits(IndexReader reader, int firstResult) throws IOException {
+        if (hits.size() <= firstResult)
+            return Collections.emptyList();
+
+        Collections.sort(hits, new Comparator<Hit>() {
+            public int compare(Hit hit1, Hit hit2) {
+                return comparator.compare(hit1.sortValues, hit2.sortValues);
+            }
+        });
+        List<IndexHit> result = new ArrayList<IndexHit>(hits.size() - firstResult);
+        for (Hit hit : hits.subList(firstResult, hits.size()))
+            result.add(new IndexHit(IndexQuery.readKey(reader, hit.doc), hit.sortValues));
+        return result;
+    }
+
+    /**
+     * @return number of hits matching the query
+     */
+    public int getMatched() {
+        return hits.size();
+    }
+
+    private static class Hit {
+        private final int doc;
+        private final Object[] sortValues;
+
+        private Hit(int doc, Object[] sortValues) {
+            this.doc = doc;
+            this.sortValues = sortValues;
+        }
+    }
+}
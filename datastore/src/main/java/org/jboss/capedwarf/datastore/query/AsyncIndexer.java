@@ -0,0 +1,518 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import org.hibernate.search.backend.TransactionContext;
+import org.hibernate.search.backend.spi.Work;
+import org.hibernate.search.backend.spi.WorkType;
+import org.hibernate.search.backend.spi.Worker;
+import org.hibernate.search.spi.SearchFactoryIntegrator;
+import org.infinispan.Cache;
+import org.infinispan.query.SearchManager;
+import org.infinispan.query.backend.KeyTransformationHandler;
+import org.jboss.capedwarf.datastore.InternalCache;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Indexes stored entities in the background, in batches.
+ * <p/>
+ * Entities are stored without indexing; their keys are queued here instead, once their tx commits.
+ * A single indexing thread drains the queue, reads current entities of queued keys and applies
+ * all their index updates as one changeset, hence one index commit per batch.
+ * A batch is held open for at most the refresh interval, unless a query is waiting for it.
+ * <p/>
+ * The queue is bounded; writers block while it is full, so indexing can fall behind by a bounded amount only.
+ * Queries which need to see all previous writes wait for the queue to be flushed.
+ * A batch failing to index is retried; once retries are used up, its entities are indexed one at a time,
+ * so a single failing entity does not hold back the rest, and those still failing fail queries waiting for them.
+ * <p/>
+ * Queued keys are marked pending in a node-local cache until they are indexed, so keys left behind
+ * by a crash or by a failure are indexed again when the indexer of their app starts.
+ * Stopping the indexer indexes what is still queued, within the wait timeout.
+ * <p/>
+ * There is one indexer per app and store. The queue is node-local, so is waiting for it;
+ * on a clustered store, the cache indexes writes on every node by itself, synchronously,
+ * and this indexer only indexes entities it is explicitly asked to reindex, right away.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class AsyncIndexer implements Runnable {
+
+    private static final Logger log = Logger.getLogger(AsyncIndexer.class.getName());
+
+    private static final int QUEUE_SIZE = Integer.getInteger("jboss.capedwarf.datastore.index.queue.size", 10000);
+    private static final int BATCH_SIZE = Integer.getInteger("jboss.capedwarf.datastore.index.batch.size", 1000);
+    private static final long REFRESH_INTERVAL = Long.getLong("jboss.capedwarf.datastore.index.refresh.interval", 100);
+    private static final long WAIT_TIMEOUT = Long.getLong("jboss.capedwarf.datastore.index.wait.timeout", 30000);
+    private static final long POLL_INTERVAL = 5;
+    private static final int RETRIES = Integer.getInteger("jboss.capedwarf.datastore.index.retries", 3);
+    private static final int MAX_FAILURES = 100;
+
+    private static final InternalCache<Key, Long> pending = new InternalCache<Key, Long>("capedwarf-index-pending", false);
+    private static final AtomicLong marks = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    private final Cache<Key, Entity> store;
+    private final SearchFactoryIntegrator searchFactory;
+    private final boolean async;
+    private final BlockingQueue<Key> queue = new LinkedBlockingQueue<Key>(QUEUE_SIZE);
+    private final Object lock = new Object();
+    private final Object indexLock = new Object();
+    private long enqueued; // guarded by lock
+    private long flushed; // guarded by lock
+    private final SortedMap<Long, Failure> failures = new TreeMap<Long, Failure>(); // by batch end, guarded by lock
+    private volatile boolean awaited;
+    private volatile boolean stopped;
+    private Thread thread; // guarded by this
+
+    /**
+     * @param store         the store
+     * @param searchManager the search manager
+     * @param async         true if the store does not index on its own, hence writes are indexed by this indexer
+     */
+    public AsyncIndexer(Cache<Key, Entity> store, SearchManager searchManager, boolean async) {
+        this.store = store;
+        this.searchFactory = (SearchFactoryIntegrator) searchManager.getSearchFactory();
+        this.async = async;
+    }
+
+    /**
+     * Start the indexing thread and queue keys of the app which were left pending.
+     *
+     * @param appId the app id
+     */
+    public void start(String appId) {
+        synchronized (this) {
+            if (async == false || thread != null)
+                return;
+
+            thread = new Thread(this, "capedwarf-indexer-" + appId);
+            thread.setDaemon(true);
+            thread.setContextClassLoader(AsyncIndexer.class.getClassLoader()); // not the app's, see StoreContext
+            thread.start();
+        }
+
+        List<Key> keys = new ArrayList<Key>();
+        for (Key key : pending.get().keySet()) {
+            if (appId.equals(key.getAppId()))
+                keys.add(key);
+        }
+        if (keys.isEmpty() == false) {
+            log.info("Reindexing " + keys.size() + " entities left pending.");
+            enqueue(keys);
+        }
+    }
+
+    /**
+     * Stop the indexing thread, once it indexed the changes still queued;
+     * changes it could not index in time are indexed on next start.
+     * Changes arriving later are indexed right away, by their writers.
+     */
+    public void stop() {
+        Thread current;
+        synchronized (this) {
+            current = thread;
+            thread = null;
+            stopped = true;
+        }
+        if (current == null)
+            return;
+
+        current.interrupt();
+        try {
+            current.join(WAIT_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (current.isAlive())
+            log.warning("Indexer did not index queued entities within " + WAIT_TIMEOUT + "ms, they are reindexed on next start.");
+    }
+
+    /**
+     * Queue entities of the keys for indexing; with a tx running, only once it commits.
+     * Does nothing if the store indexes writes on its own.
+     *
+     * @param keys keys of stored or removed entities
+     */
+    public void changed(final Collection<Key> keys) {
+        if (async == false)
+            return;
+
+        TransactionManager tm = store.getAdvancedCache().getTransactionManager();
+        Transaction tx;
+        try {
+            tx = (tm != null) ? tm.getTransaction() : null;
+        } catch (SystemException e) {
+            throw new DatastoreFailureException("Cannot obtain tx.", e);
+        }
+        if (tx == null) {
+            enqueue(keys);
+            return;
+        }
+
+        try {
+            tx.registerSynchronization(new Synchronization() {
+                public void beforeCompletion() {
+                }
+
+                public void afterCompletion(int status) {
+                    if (status == Status.STATUS_COMMITTED)
+                        enqueue(keys);
+                }
+            });
+        } catch (RollbackException ignored) {
+            // tx will roll back, nothing is stored
+        } catch (SystemException e) {
+            throw new DatastoreFailureException("Cannot register index update with tx.", e);
+        }
+    }
+
+    private void enqueue(Collection<Key> keys) {
+        markPending(keys);
+        if (stopped) {
+            flush(new LinkedHashSet<Key>(keys));
+            return;
+        }
+
+        int queued = 0;
+        try {
+            for (Key key : keys) {
+                queue.put(key);
+                queued++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatastoreFailureException("Interrupted while queueing index update.", e);
+        } finally {
+            synchronized (lock) {
+                enqueued += queued;
+            }
+        }
+        if (stopped)
+            drain(new ArrayList<Key>(BATCH_SIZE)); // raced with stop, which might have drained the queue already
+    }
+
+    /**
+     * Mark keys pending in one write; each write gets new marks, so only the flush which read
+     * an entity after its latest change clears its mark.
+     */
+    private static void markPending(Collection<Key> keys) {
+        Long mark = marks.incrementAndGet();
+        Map<Key, Long> entries = new HashMap<Key, Long>();
+        for (Key key : keys)
+            entries.put(key, mark);
+        pending.get().putAll(entries);
+    }
+
+    /**
+     * Index entities of the keys anew, even if the store indexes writes on its own;
+     * they are queued, or indexed right away on a store indexing on its own.
+     *
+     * @param keys keys of stored entities
+     */
+    public void reindex(Collection<Key> keys) {
+        if (async)
+            changed(keys);
+        else
+            flush(new LinkedHashSet<Key>(keys));
+    }
+
+    /**
+     * Wait until all changes queued so far on this node are visible in the index.
+     *
+     * @throws DatastoreFailureException if some of the changes failed to index
+     */
+    public void awaitFlushed() {
+        synchronized (lock) {
+            long start = flushed;
+            long target = enqueued;
+            if (flushed >= target)
+                return;
+
+            awaited = true;
+            long deadline = System.currentTimeMillis() + WAIT_TIMEOUT;
+            try {
+                while (flushed < target) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        throw new DatastoreTimeoutException("Index was not refreshed within " + WAIT_TIMEOUT + "ms.");
+                    lock.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DatastoreFailureException("Interrupted while waiting for index.", e);
+            }
+
+            // failed batches ending after the wait began, which started before its target
+            for (Failure failure : failures.tailMap(start + 1).values()) {
+                if (failure.start < target)
+                    throw new DatastoreFailureException("Failed to index entities.", failure.cause);
+            }
+        }
+    }
+
+    public void run() {
+        List<Key> batch = new ArrayList<Key>(BATCH_SIZE);
+        try {
+            while (true) {
+                collect(batch);
+                complete(batch, flushWithRetries(new LinkedHashSet<Key>(batch)));
+            }
+        } catch (InterruptedException e) {
+            drain(batch); // stopping
+        }
+    }
+
+    /**
+     * Index the batch and everything still queued, without pausing between retries.
+     */
+    private void drain(List<Key> batch) {
+        while (true) {
+            queue.drainTo(batch, BATCH_SIZE - batch.size());
+            if (batch.isEmpty())
+                return;
+
+            Set<Key> keys = new LinkedHashSet<Key>(batch);
+            Throwable failure;
+            try {
+                flush(keys);
+                failure = null;
+            } catch (Throwable t) {
+                failure = flushEach(keys, t);
+            }
+            complete(batch, failure);
+        }
+    }
+
+    private void complete(List<Key> batch, Throwable failure) {
+        synchronized (lock) {
+            if (failure != null) {
+                failures.put(flushed + batch.size(), new Failure(flushed, failure));
+                if (failures.size() > MAX_FAILURES)
+                    failures.remove(failures.firstKey());
+            }
+            flushed += batch.size();
+            if (flushed >= enqueued)
+                awaited = false;
+            lock.notifyAll();
+        }
+        batch.clear();
+    }
+
+    /**
+     * Flush the batch, retrying it after a growing pause if it fails.
+     *
+     * @return the last failure of entities indexed one at a time, or null if the batch was flushed
+     */
+    private Throwable flushWithRetries(Set<Key> keys) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                flush(keys);
+                return null;
+            } catch (Throwable t) {
+                if (attempt >= RETRIES)
+                    return flushEach(keys, t);
+
+                log.log(Level.WARNING, "Failed to index " + keys.size() + " entities, retrying.", t);
+                Thread.sleep(REFRESH_INTERVAL * (attempt + 1));
+            }
+        }
+    }
+
+    /**
+     * Index entities one at a time, once the batch as a whole failed.
+     * Entities still failing stay pending.
+     *
+     * @return the last failure, or null if all entities were indexed
+     */
+    private Throwable flushEach(Set<Key> keys, Throwable cause) {
+        log.log(Level.WARNING, "Failed to index " + keys.size() + " entities at once, indexing them one at a time.", cause);
+        Throwable failure = null;
+        for (Key key : keys) {
+            try {
+                flush(Collections.singleton(key));
+            } catch (Throwable t) {
+                log.log(Level.SEVERE, "Failed to index entity " + key + ", it is reindexed on next start.", t);
+                failure = t;
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * Wait for the first key, then gather more until the batch is full,
+     * the refresh interval has passed or someone waits for the index.
+     */
+    private void collect(List<Key> batch) throws InterruptedException {
+        batch.add(queue.take());
+        long deadline = System.currentTimeMillis() + REFRESH_INTERVAL;
+        while (batch.size() < BATCH_SIZE) {
+            queue.drainTo(batch, BATCH_SIZE - batch.size());
+            long remaining = deadline - System.currentTimeMillis();
+            if (awaited || remaining <= 0 || batch.size() >= BATCH_SIZE)
+                return;
+
+            Key key = queue.poll(Math.min(remaining, POLL_INTERVAL), TimeUnit.MILLISECONDS);
+            if (key != null)
+                batch.add(key);
+        }
+    }
+
+    /**
+     * Remove all entities from the index, once the store was cleared.
+     * Batches are read and applied under the same lock, so none can bring back a cleared entity.
+     */
+    public void purgeAll() {
+        synchronized (indexLock) {
+            BatchContext context = new BatchContext();
+            searchFactory.getWorker().performWork(new Work(Entity.class, null, WorkType.PURGE_ALL), context);
+            context.commit();
+        }
+    }
+
+    /**
+     * Index current state of entities, all in one changeset, and clear their pending marks.
+     */
+    private void flush(Set<Key> keys) {
+        synchronized (indexLock) {
+            Map<Key, Long> indexed = async ? getMarks(keys) : null; // read before entities
+            Map<Key, Future<Entity>> entities = new HashMap<Key, Future<Entity>>();
+            for (Key key : keys)
+                entities.put(key, store.getAsync(key));
+
+            BatchContext context = new BatchContext();
+            Worker worker = searchFactory.getWorker();
+            for (Key key : keys) {
+                String id = KeyTransformationHandler.keyToString(key);
+                Entity entity = get(entities.get(key));
+                if (entity != null)
+                    worker.performWork(new Work(entity, id, WorkType.UPDATE), context);
+                else
+                    worker.performWork(new Work(Entity.class, id, WorkType.DELETE), context);
+            }
+            context.commit();
+            if (indexed != null)
+                clearPending(indexed);
+        }
+    }
+
+    private static Map<Key, Long> getMarks(Set<Key> keys) {
+        Cache<Key, Long> cache = pending.get();
+        Map<Key, Long> result = new HashMap<Key, Long>();
+        for (Key key : keys) {
+            Long mark = cache.get(key);
+            if (mark != null)
+                result.put(key, mark);
+        }
+        return result;
+    }
+
+    /**
+     * Keys changed again since their marks were read stay pending.
+     */
+    private static void clearPending(Map<Key, Long> indexed) {
+        try {
+            Cache<Key, Long> cache = pending.get();
+            for (Map.Entry<Key, Long> entry : indexed.entrySet())
+                cache.remove(entry.getKey(), entry.getValue());
+        } catch (Throwable t) {
+            log.log(Level.WARNING, "Failed to clear pending index marks, entities are reindexed on next start.", t);
+        }
+    }
+
+    private static Entity get(Future<Entity> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatastoreFailureException("Interrupted while loading entity.", e);
+        } catch (ExecutionException e) {
+            throw new DatastoreFailureException("Cannot load entity.", e.getCause());
+        }
+    }
+
+    private static class Failure {
+        private final long start;
+        private final Throwable cause;
+
+        private Failure(long start, Throwable cause) {
+            this.start = start;
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * Makes the worker queue all works and apply them together on commit.
+     */
+    private static class BatchContext implements TransactionContext {
+        private final List<Synchronization> synchronizations = new ArrayList<Synchronization>();
+
+        public boolean isTransactionInProgress() {
+            return true;
+        }
+
+        public Object getTransactionIdentifier() {
+            return this;
+        }
+
+        public void registerSynchronization(Synchronization synchronization) {
+            synchronizations.add(synchronization);
+        }
+
+        void commit() {
+            for (Synchronization synchronization : synchronizations)
+                synchronization.beforeCompletion();
+            for (Synchronization synchronization : synchronizations)
+                synchronization.afterCompletion(Status.STATUS_COMMITTED);
+        }
+    }
+}
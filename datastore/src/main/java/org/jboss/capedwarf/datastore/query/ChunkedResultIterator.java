@@ -0,0 +1,190 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Sort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Future;
+
+/**
+ * Streams query results chunk by chunk, loading next chunks' entities while the current one is consumed.
+ * <p/>
+ * Each chunk is a page of index hits, positioned after the last hit of the previous page,
+ * so only a chunk's worth of hits is ever collected. Entities of up to prefetch depth chunks
+ * are loaded asynchronously ahead of the caller, hence memory stays bounded by
+ * (depth + 1) * chunk size entities, however many results the query has.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+class ChunkedResultIterator implements Iterator<Entity> {
+
+    private static final int PREFETCH_DEPTH = Integer.getInteger("jboss.capedwarf.datastore.query.prefetch.depth", 2);
+
+    private final QueryConverter queryConverter;
+    private final IndexScope scope;
+    private final org.apache.lucene.search.Query luceneQuery;
+    private final Sort sort;
+    private final CursorConverter cursorConverter;
+    private final int chunkSize;
+    private final LinkedList<Chunk> prefetched = new LinkedList<Chunk>();
+
+    private int offset;
+    private int nextChunkSize;
+    private Integer remaining;
+    private IndexHit lastHit;
+    private boolean exhausted;
+    private Iterator<Entity> current = Collections.<Entity>emptyList().iterator();
+
+    /**
+     * @param queryConverter  the query converter
+     * @param scope           the part of the index to search
+     * @param luceneQuery     the lucene query
+     * @param sort            the sort
+     * @param cursorConverter the cursor converter
+     * @param offset          number of leading results to skip
+     * @param limit           max number of results, or null if unlimited
+     * @param firstChunkSize  size of the first chunk
+     * @param chunkSize       size of subsequent chunks
+     */
+    ChunkedResultIterator(QueryConverter queryConverter, IndexScope scope, org.apache.lucene.search.Query luceneQuery, Sort sort, CursorConverter cursorConverter,
+                          int offset, Integer limit, int firstChunkSize, int chunkSize) {
+        if (firstChunkSize <= 0 || chunkSize <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive: " + firstChunkSize + ", " + chunkSize);
+        this.queryConverter = queryConverter;
+        this.scope = scope;
+        this.luceneQuery = luceneQuery;
+        this.sort = sort;
+        this.cursorConverter = cursorConverter;
+        this.offset = offset;
+        this.remaining = limit;
+        this.nextChunkSize = firstChunkSize;
+        this.chunkSize = chunkSize;
+        prefetch();
+    }
+
+    public boolean hasNext() {
+        while (current.hasNext() == false) {
+            if (prefetched.isEmpty())
+                return false;
+
+            Chunk chunk = prefetched.removeFirst();
+            prefetch();
+            current = chunk.getEntities().iterator();
+        }
+        return true;
+    }
+
+    public Entity next() {
+        if (hasNext() == false)
+            throw new NoSuchElementException();
+        return current.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Query results are read-only.");
+    }
+
+    /**
+     * Read hit pages and start loading their entities, until prefetch depth chunks are in flight.
+     */
+    private void prefetch() {
+        while (exhausted == false && prefetched.size() < PREFETCH_DEPTH) {
+            int size = (remaining != null) ? Math.min(remaining, nextChunkSize) : nextChunkSize;
+            if (size <= 0) {
+                exhausted = true;
+                return;
+            }
+
+            List<IndexHit> hits = queryConverter.getIndexQuery(scope, nextPageQuery(), sort)
+                    .firstResult(offset)
+                    .maxResults(size)
+                    .list();
+            offset = 0;
+            nextChunkSize = chunkSize;
+            if (remaining != null)
+                remaining -= hits.size();
+            if (hits.size() < size)
+                exhausted = true;
+            if (hits.isEmpty())
+                return;
+
+            lastHit = hits.get(hits.size() - 1);
+            List<Key> keys = new ArrayList<Key>(hits.size());
+            for (IndexHit hit : hits)
+                keys.add(hit.getKey());
+            prefetched.addLast(new Chunk(keys, queryConverter.getEntitiesAsync(keys)));
+        }
+    }
+
+    private org.apache.lucene.search.Query nextPageQuery() {
+        if (lastHit == null)
+            return luceneQuery;
+
+        BooleanQuery query = new BooleanQuery();
+        query.add(luceneQuery, BooleanClause.Occur.MUST);
+        query.add(cursorConverter.createAfterQuery(lastHit), BooleanClause.Occur.MUST);
+        return query;
+    }
+
+    /**
+     * Keys of a hit page, with their entities being loaded.
+     */
+    private class Chunk {
+        private final List<Key> keys;
+        private final Map<Key, Future<Entity>> futures;
+
+        private Chunk(List<Key> keys, Map<Key, Future<Entity>> futures) {
+            this.keys = keys;
+            this.futures = futures;
+        }
+
+        /**
+         * Wait for entities. Entities removed since their hits were found are dropped.
+         *
+         * @return entities, in the order of hits
+         */
+        private List<Entity> getEntities() {
+            Map<Key, Entity> loaded = queryConverter.getEntities(futures);
+            List<Entity> entities = new ArrayList<Entity>(keys.size());
+            for (Key key : keys) {
+                Entity entity = loaded.get(key);
+                if (entity != null)
+                    entities.add(entity);
+            }
+            return entities;
+        }
+    }
+}
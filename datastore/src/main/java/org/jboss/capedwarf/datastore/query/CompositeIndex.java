@@ -0,0 +1,340 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Query;
+import org.apache.lucene.util.NumericUtils;
+import org.jboss.capedwarf.common.reflection.ReflectionUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Composite index, as declared in datastore-indexes.xml.
+ * <p/>
+ * Each entity of index's kind having all of index's properties gets one term per index row in index's field.
+ * A term encodes entity's app and namespace, then the row's property values, followed by entity's key path,
+ * in a way that term order is index order. Walking the terms with a given prefix thus streams
+ * the entities of one app and namespace matching equality filters in requested order, without sorting them.
+ * <p/>
+ * Index's id, hence its field, is derived from its definition and the term format, so it does not depend
+ * on where the index is declared, and an index whose definition or term format changes gets a new field.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class CompositeIndex {
+
+    private static final String FIELD_PREFIX = "____capedwarf.index.";
+    private static final String FIELD_SUFFIX = "___";
+
+    private static final int MAX_ROWS = 1000;
+    private static final int TERM_FORMAT = 2;
+
+    private static final int NULL_TAG = 0x10;
+    private static final int LONG_TAG = 0x20;
+    private static final int STRING_TAG = 0x30;
+    private static final int DOUBLE_TAG = 0x40;
+
+    private final long id;
+    private final String kind;
+    private final boolean ancestor;
+    private final List<Query.SortPredicate> properties;
+    private final PropertyMapBridge propertyMapBridge = new PropertyMapBridge();
+
+    public CompositeIndex(String kind, boolean ancestor, List<Query.SortPredicate> properties) {
+        if (kind == null)
+            throw new IllegalArgumentException("Null kind");
+        if (properties.isEmpty())
+            throw new IllegalArgumentException("Index on " + kind + " has no properties");
+        this.kind = kind;
+        this.ancestor = ancestor;
+        this.properties = new ArrayList<Query.SortPredicate>(properties);
+        this.id = toId(TERM_FORMAT + "|" + getDefinition());
+    }
+
+    /**
+     * Get canonical form of index's definition.
+     *
+     * @return the definition
+     */
+    public String getDefinition() {
+        StringBuilder builder = new StringBuilder(kind).append(ancestor ? "|ancestor" : "");
+        for (Query.SortPredicate property : properties)
+            builder.append('|').append(property.getPropertyName()).append(' ').append(property.getDirection());
+        return builder.toString();
+    }
+
+    /**
+     * First 63 bits of definition's SHA-1.
+     */
+    private static long toId(String definition) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(definition.getBytes("UTF-8"));
+            long id = 0;
+            for (int i = 0; i < 8; i++)
+                id = (id << 8) | (digest[i] & 0xff);
+            return id & Long.MAX_VALUE;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public String getFieldName() {
+        return FIELD_PREFIX + id + FIELD_SUFFIX;
+    }
+
+    /**
+     * Get GAE view of this index.
+     *
+     * @return the index
+     */
+    public Index toIndex() {
+        List<Index.Property> indexProperties = new ArrayList<Index.Property>(properties.size());
+        for (Query.SortPredicate property : properties) {
+            indexProperties.add(ReflectionUtils.newInstance(Index.Property.class,
+                    new Class[]{String.class, Query.SortDirection.class},
+                    new Object[]{property.getPropertyName(), property.getDirection()}));
+        }
+        return ReflectionUtils.newInstance(Index.class,
+                new Class[]{long.class, String.class, boolean.class, List.class},
+                new Object[]{id, kind, ancestor, indexProperties});
+    }
+
+    /**
+     * Can query be answered by walking this index?
+     * Equality filters must be on leading properties, and sorts must match remaining ones.
+     * Ancestor indexes are not walked; ancestor queries are answered by the key path.
+     *
+     * @param gaeQuery the query
+     * @return true if query can be answered in index order
+     */
+    public boolean matches(Query gaeQuery) {
+        if (ancestor || gaeQuery.getAncestor() != null || kind.equals(gaeQuery.getKind()) == false)
+            return false;
+
+        List<Query.SortPredicate> sortPredicates = gaeQuery.getSortPredicates();
+        Set<String> equalityProperties = new HashSet<String>();
+        for (Query.FilterPredicate filterPredicate : gaeQuery.getFilterPredicates()) {
+            Object value = filterPredicate.getValue();
+            if (filterPredicate.getOperator() != Query.FilterOperator.EQUAL || value instanceof Collection)
+                return false;
+            if (equalityProperties.add(filterPredicate.getPropertyName()) == false)
+                return false; // same property filtered twice
+        }
+
+        int equalities = equalityProperties.size();
+        if (sortPredicates.isEmpty() || equalities + sortPredicates.size() != properties.size())
+            return false;
+
+        for (int i = 0; i < equalities; i++) {
+            if (equalityProperties.contains(properties.get(i).getPropertyName()) == false)
+                return false;
+        }
+        return properties.subList(equalities, properties.size()).equals(sortPredicates);
+    }
+
+    /**
+     * Get the term prefix shared by entities of the app and namespace matching query's equality filters.
+     * Query must match this index.
+     *
+     * @param gaeQuery        the query
+     * @param namespacePrefix the app and namespace, see {@link KeyFieldBridge#toNamespacePrefix(String, String)}
+     * @return term prefix
+     */
+    public String getPrefix(Query gaeQuery, String namespacePrefix) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (Query.FilterPredicate filterPredicate : gaeQuery.getFilterPredicates()) {
+            values.put(filterPredicate.getPropertyName(), filterPredicate.getValue());
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        encodeString(bytes, namespacePrefix);
+        for (int i = 0; i < values.size(); i++) {
+            Query.SortPredicate property = properties.get(i);
+            encode(bytes, values.get(property.getPropertyName()), property.getDirection());
+        }
+        return Hex.encode(bytes.toByteArray());
+    }
+
+    /**
+     * Check that entity does not explode this index, which GAE refuses to store.
+     *
+     * @param entity the entity
+     * @throws IllegalArgumentException if entity has more than the allowed number of rows
+     */
+    public void checkRows(Entity entity) {
+        if (kind.equals(entity.getKind()) == false)
+            return;
+
+        long rows = 1;
+        for (Query.SortPredicate property : properties) {
+            Collection<?> values = getValues(entity, property);
+            if (values == null)
+                return;
+            rows *= values.size();
+            if (rows > MAX_ROWS)
+                throw tooManyRows(entity);
+        }
+    }
+
+    private IllegalArgumentException tooManyRows(Entity entity) {
+        return new IllegalArgumentException("Too many indexed properties for entity " + entity.getKey() + ", it would have more than " + MAX_ROWS + " rows in " + this);
+    }
+
+    /**
+     * @return property's indexed values, null if entity is not in this index for lack of them
+     */
+    private static Collection<?> getValues(Entity entity, Query.SortPredicate property) {
+        if (entity.hasProperty(property.getPropertyName()) == false || entity.isUnindexedProperty(property.getPropertyName()))
+            return null;
+
+        Object value = entity.getProperty(property.getPropertyName());
+        Collection<?> values = (value instanceof Collection) ? (Collection<?>) value : Collections.singletonList(value);
+        return values.isEmpty() ? null : values;
+    }
+
+    /**
+     * Get entity's index rows; multi-valued properties give one row per value combination.
+     *
+     * @param entity the entity
+     * @return terms, empty if entity is not in this index
+     * @throws IllegalArgumentException if entity has more than the allowed number of rows
+     */
+    public List<String> getTerms(Entity entity) {
+        if (kind.equals(entity.getKind()) == false)
+            return Collections.emptyList();
+
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        encodeString(head, KeyFieldBridge.toNamespacePrefix(entity.getKey()));
+        List<byte[]> rows = Collections.singletonList(head.toByteArray());
+        for (Query.SortPredicate property : properties) {
+            Collection<?> values = getValues(entity, property);
+            if (values == null)
+                return Collections.emptyList();
+            if (rows.size() * values.size() > MAX_ROWS)
+                throw tooManyRows(entity);
+
+            List<byte[]> expanded = new ArrayList<byte[]>(rows.size() * values.size());
+            for (byte[] row : rows) {
+                for (Object v : values) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    bytes.write(row, 0, row.length);
+                    encode(bytes, v, property.getDirection());
+                    expanded.add(bytes.toByteArray());
+                }
+            }
+            rows = expanded;
+        }
+
+        String keyPath = KeyFieldBridge.toPath(entity.getKey());
+        List<String> terms = new ArrayList<String>(rows.size());
+        for (byte[] row : rows) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            bytes.write(row, 0, row.length);
+            encodeString(bytes, keyPath);
+            terms.add(Hex.encode(bytes.toByteArray()));
+        }
+        return terms;
+    }
+
+    /**
+     * Order preserving encoding; descending values have all their bytes inverted.
+     */
+    private void encode(ByteArrayOutputStream bytes, Object value, Query.SortDirection direction) {
+        ByteArrayOutputStream component = new ByteArrayOutputStream();
+        IndexFieldType type = IndexFieldType.of(value);
+        if (value == null) {
+            component.write(NULL_TAG);
+        } else if (type == IndexFieldType.LONG) {
+            component.write(LONG_TAG);
+            encodeLong(component, type.toNumber(value).longValue());
+        } else if (type == IndexFieldType.DOUBLE) {
+            component.write(DOUBLE_TAG);
+            encodeLong(component, NumericUtils.doubleToSortableLong(type.toNumber(value).doubleValue()));
+        } else {
+            component.write(STRING_TAG);
+            encodeString(component, propertyMapBridge.convertToString(value));
+        }
+
+        byte[] encoded = component.toByteArray();
+        if (direction == Query.SortDirection.DESCENDING) {
+            for (int i = 0; i < encoded.length; i++)
+                encoded[i] = (byte) ~encoded[i];
+        }
+        bytes.write(encoded, 0, encoded.length);
+    }
+
+    private static void encodeLong(ByteArrayOutputStream bytes, long value) {
+        long sortable = value ^ Long.MIN_VALUE;
+        for (int shift = 56; shift >= 0; shift -= 8)
+            bytes.write((int) (sortable >>> shift));
+    }
+
+    /**
+     * UTF-8 bytes, with 0x00 and 0x01 escaped, terminated by 0x00, so shorter strings sort first.
+     */
+    private static void encodeString(ByteArrayOutputStream bytes, String value) {
+        try {
+            for (byte b : value.getBytes("UTF-8")) {
+                if (b == 0x00 || b == 0x01) {
+                    bytes.write(0x01);
+                    bytes.write(b + 1);
+                } else {
+                    bytes.write(b);
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        bytes.write(0x00);
+    }
+
+    @Override
+    public String toString() {
+        return "CompositeIndex[" + id + ", " + kind + (ancestor ? ", ancestor" : "") + ", " + properties + "]";
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Key;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Indexes entities stored before the index was declared, by queueing them for indexing again in batches.
+ * Keys are read a batch at a time in key order, each batch resuming after the last key path of the previous one;
+ * key paths of all namespaces are walked, unlike with query cursors.
+ * Only runs for indexes not built yet; building stops once the app goes away.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+class CompositeIndexBuilder implements Runnable {
+
+    private static final Logger log = Logger.getLogger(CompositeIndexBuilder.class.getName());
+
+    private static final int BATCH_SIZE = 100;
+
+    private final CompositeIndexes compositeIndexes;
+    private final CompositeIndex index;
+    private final QueryConverter queryConverter;
+
+    CompositeIndexBuilder(CompositeIndexes compositeIndexes, CompositeIndex index, QueryConverter queryConverter) {
+        this.compositeIndexes = compositeIndexes;
+        this.index = index;
+        this.queryConverter = queryConverter;
+    }
+
+    public void run() {
+        try {
+            TermQuery kindQuery = new TermQuery(new Term(QueryConverter.KIND_PROPERTY_KEY, index.getKind()));
+            Sort keyOrder = new Sort(new SortField(QueryConverter.KEY_PATH_PROPERTY_KEY, SortField.STRING));
+            IndexScope scope = queryConverter.getIndexScope(null, null); // composite indexes span all namespaces
+
+            org.apache.lucene.search.Query query = kindQuery;
+            while (true) {
+                if (Thread.currentThread().isInterrupted())
+                    return;
+
+                List<IndexHit> hits = queryConverter.getIndexQuery(scope, query, keyOrder).maxResults(BATCH_SIZE).list();
+                List<Key> keys = new ArrayList<Key>(hits.size());
+                for (IndexHit hit : hits)
+                    keys.add(hit.getKey());
+                queryConverter.reindex(keys);
+                if (hits.size() < BATCH_SIZE)
+                    break;
+
+                BooleanQuery next = new BooleanQuery();
+                next.add(kindQuery, BooleanClause.Occur.MUST);
+                String lastPath = KeyFieldBridge.toPath(keys.get(keys.size() - 1));
+                next.add(new TermRangeQuery(QueryConverter.KEY_PATH_PROPERTY_KEY, lastPath, null, false, true), BooleanClause.Occur.MUST);
+                query = next;
+            }
+            queryConverter.awaitIndexed();
+            compositeIndexes.built(index);
+        } catch (Throwable t) {
+            if (Thread.currentThread().isInterrupted())
+                return;
+
+            log.log(Level.SEVERE, "Failed to build index " + index, t);
+            compositeIndexes.setState(index, Index.IndexState.ERROR);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Query;
+import org.jboss.capedwarf.common.io.IOUtils;
+import org.jboss.capedwarf.datastore.InternalCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Composite indexes declared by an application, and their states.
+ * <p/>
+ * Indexes are read from datastore-indexes.xml on app's classpath; there is one instance per app,
+ * through which the app's entities are indexed.
+ * Existing entities are indexed in the background; until that is done, an index is building and is not used.
+ * Ids of built indexes are kept per app in an internal cache, outside of the app's entities,
+ * so an index is only built again once its definition, hence its id, changes.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class CompositeIndexes {
+
+    public static final String DATASTORE_INDEXES_XML = "datastore-indexes.xml";
+
+    private static final InternalCache<String, ArrayList<Long>> built = new InternalCache<String, ArrayList<Long>>("capedwarf-composite-indexes", true);
+
+    private static final ConcurrentMap<String, CompositeIndexes> apps = new ConcurrentHashMap<String, CompositeIndexes>();
+    private static final CompositeIndexes NONE = new CompositeIndexes(null, Collections.<CompositeIndex>emptyList());
+
+    private final String appId;
+    private final List<CompositeIndex> indexes;
+    private final Map<String, List<CompositeIndex>> indexesByKind = new HashMap<String, List<CompositeIndex>>();
+    private final ConcurrentMap<CompositeIndex, Index.IndexState> states = new ConcurrentHashMap<CompositeIndex, Index.IndexState>();
+    private final Set<Long> builtIds = new HashSet<Long>(); // guarded by this
+    private final List<Thread> builders = new ArrayList<Thread>(); // guarded by this
+
+    private CompositeIndexes(String appId, List<CompositeIndex> indexes) {
+        this.appId = appId;
+        this.indexes = indexes;
+        for (CompositeIndex index : indexes) {
+            List<CompositeIndex> kindIndexes = indexesByKind.get(index.getKind());
+            if (kindIndexes == null) {
+                kindIndexes = new ArrayList<CompositeIndex>();
+                indexesByKind.put(index.getKind(), kindIndexes);
+            }
+            kindIndexes.add(index);
+            states.put(index, Index.IndexState.BUILDING);
+        }
+    }
+
+    /**
+     * Read app's index definitions; app's entities are indexed by them from now on.
+     *
+     * @param appId       the app id
+     * @param classLoader the app's classloader
+     * @return app's indexes
+     */
+    public static CompositeIndexes load(String appId, ClassLoader classLoader) {
+        CompositeIndexes compositeIndexes = new CompositeIndexes(appId, load(classLoader));
+        apps.put(appId, compositeIndexes);
+        return compositeIndexes;
+    }
+
+    private static List<CompositeIndex> load(ClassLoader classLoader) {
+        InputStream stream = classLoader.getResourceAsStream(DATASTORE_INDEXES_XML);
+        if (stream == null)
+            return Collections.emptyList();
+
+        try {
+            return DatastoreIndexesParser.parse(stream);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read " + DATASTORE_INDEXES_XML, e);
+        } finally {
+            IOUtils.safeClose(stream);
+        }
+    }
+
+    public String getAppId() {
+        return appId;
+    }
+
+    /**
+     * Get indexes of the app.
+     *
+     * @param appId the app id
+     * @return app's indexes, none if app has not loaded them
+     */
+    static CompositeIndexes forApp(String appId) {
+        CompositeIndexes compositeIndexes = (appId != null) ? apps.get(appId) : null;
+        return (compositeIndexes != null) ? compositeIndexes : NONE;
+    }
+
+    /**
+     * Start building indexes in the background, unless they were built under the same definition before;
+     * those are serving right away, as entities stored since were indexed by them.
+     *
+     * @param queryConverter the query converter
+     */
+    public synchronized void build(QueryConverter queryConverter) {
+        Collection<Long> storedIds = built.get().get(appId);
+        for (CompositeIndex index : indexes) {
+            if (storedIds != null && storedIds.contains(index.getId())) {
+                builtIds.add(index.getId());
+                states.put(index, Index.IndexState.SERVING);
+            }
+        }
+        storeBuiltIds(); // forget indexes no longer declared, entities stored from now on are not indexed by them
+
+        for (CompositeIndex index : indexes) {
+            if (builtIds.contains(index.getId()))
+                continue;
+
+            Thread builder = new Thread(new CompositeIndexBuilder(this, index, queryConverter), "capedwarf-index-builder-" + index.getId());
+            builder.setDaemon(true);
+            builder.setContextClassLoader(CompositeIndexes.class.getClassLoader()); // not the app's
+            builder.start();
+            builders.add(builder);
+        }
+    }
+
+    private void storeBuiltIds() {
+        built.get().put(appId, new ArrayList<Long>(builtIds));
+    }
+
+    /**
+     * Stop building indexes, app's entities are no longer indexed by them.
+     */
+    public synchronized void stop() {
+        if (appId != null)
+            apps.remove(appId, this);
+        for (Thread builder : builders)
+            builder.interrupt();
+        builders.clear();
+    }
+
+    public List<CompositeIndex> getIndexes(String kind) {
+        List<CompositeIndex> kindIndexes = indexesByKind.get(kind);
+        return (kindIndexes != null) ? kindIndexes : Collections.<CompositeIndex>emptyList();
+    }
+
+    /**
+     * Check that entity can be indexed; like in GAE, an entity exploding an index cannot be stored.
+     *
+     * @param entity the entity to be stored
+     * @throws IllegalArgumentException if entity has too many rows in some index
+     */
+    public void checkRows(Entity entity) {
+        for (CompositeIndex index : getIndexes(entity.getKind()))
+            index.checkRows(entity);
+    }
+
+    /**
+     * Find serving index in which the query can be answered.
+     *
+     * @param gaeQuery the query
+     * @return the index or null if there is none
+     */
+    public CompositeIndex findIndex(Query gaeQuery) {
+        for (CompositeIndex index : getIndexes(gaeQuery.getKind())) {
+            if (index.matches(gaeQuery))
+                return index;
+        }
+        return null;
+    }
+
+    public boolean isServing(CompositeIndex index) {
+        return states.get(index) == Index.IndexState.SERVING;
+    }
+
+    void setState(CompositeIndex index, Index.IndexState state) {
+        states.put(index, state);
+    }
+
+    /**
+     * Mark index as built, it is serving from now on and is not built again.
+     *
+     * @param index the index
+     */
+    synchronized void built(CompositeIndex index) {
+        builtIds.add(index.getId());
+        storeBuiltIds();
+        states.put(index, Index.IndexState.SERVING);
+    }
+
+    public Map<Index, Index.IndexState> getIndexStates() {
+        Map<Index, Index.IndexState> indexStates = new LinkedHashMap<Index, Index.IndexState>();
+        for (CompositeIndex index : indexes) {
+            indexStates.put(index.toIndex(), states.get(index));
+        }
+        return indexStates;
+    }
+}
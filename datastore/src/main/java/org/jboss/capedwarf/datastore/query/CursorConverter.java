@@ -0,0 +1,252 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts between query positions and Cursors.
+ * <p/>
+ * A cursor holds the sort values and the key path of the last returned entity;
+ * of a multi-valued property, the value its sort field holds, see {@link IndexFieldType#getSortFieldName(String, boolean)}.
+ * Resuming from a cursor adds a condition matching only entities sorted after that position,
+ * so the skipped results never need to be collected.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class CursorConverter {
+
+    private static final String ENCODING = "UTF-8";
+    private static final String SEPARATOR = "/";
+    private static final String NULL_VALUE = "~"; // never produced by URLEncoder
+
+    private final SortField[] sortFields;
+    private final PropertyMapBridge propertyMapBridge = new PropertyMapBridge();
+
+    /**
+     * @param sort the query's sort, its last field being the key path
+     */
+    public CursorConverter(Sort sort) {
+        this.sortFields = sort.getSort();
+    }
+
+    /**
+     * Create cursor pointing right after the given entity.
+     *
+     * @param entity the last returned entity
+     * @return the cursor
+     */
+    public Cursor createCursor(Entity entity) {
+        List<String> values = new ArrayList<String>(sortFields.length);
+        for (SortField sortField : sortFields)
+            values.add(getValue(entity, sortField));
+        return toCursor(values);
+    }
+
+    /**
+     * Create cursor pointing right after the given index hit.
+     *
+     * @param hit the last returned hit
+     * @return the cursor
+     */
+    public Cursor createCursor(IndexHit hit) {
+        return toCursor(getValues(hit));
+    }
+
+    private static List<String> getValues(IndexHit hit) {
+        List<String> values = new ArrayList<String>(hit.getSortValues().length);
+        for (Object sortValue : hit.getSortValues())
+            values.add((sortValue != null) ? String.valueOf(sortValue) : null);
+        return values;
+    }
+
+    private static Cursor toCursor(List<String> values) {
+        StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            if (builder.length() > 0)
+                builder.append(SEPARATOR);
+            builder.append(encode(value));
+        }
+        return Cursor.fromWebSafeString(builder.toString());
+    }
+
+    /**
+     * Create query matching all entities positioned after the cursor.
+     *
+     * @param cursor the cursor
+     * @return lucene query
+     */
+    public org.apache.lucene.search.Query createAfterQuery(Cursor cursor) {
+        return createAfterQuery(decode(cursor));
+    }
+
+    /**
+     * Create query matching all entities positioned after the given index hit.
+     *
+     * @param hit the index hit
+     * @return lucene query
+     */
+    public org.apache.lucene.search.Query createAfterQuery(IndexHit hit) {
+        return createAfterQuery(getValues(hit));
+    }
+
+    private org.apache.lucene.search.Query createAfterQuery(List<String> values) {
+        BooleanQuery after = new BooleanQuery();
+        for (int i = 0; i < sortFields.length; i++) {
+            org.apache.lucene.search.Query beyond = beyond(sortFields[i], values.get(i));
+            BooleanQuery clause = new BooleanQuery();
+            for (int j = 0; j < i; j++)
+                clause.add(equal(sortFields[j], values.get(j)), BooleanClause.Occur.MUST);
+            clause.add(beyond, BooleanClause.Occur.MUST);
+            after.add(clause, BooleanClause.Occur.SHOULD);
+        }
+        return after;
+    }
+
+    private String getValue(Entity entity, SortField sortField) {
+        String fieldName = sortField.getField();
+        if (QueryConverter.KEY_PATH_PROPERTY_KEY.equals(fieldName))
+            return KeyFieldBridge.toPath(entity.getKey());
+
+        IndexFieldType type = IndexFieldType.forSortType(sortField.getType());
+        Object value = entity.getProperty(type.getSortedPropertyName(fieldName));
+        Comparable sortValue = propertyMapBridge.getSortValue(value, type, sortField.getReverse());
+        return (sortValue != null) ? String.valueOf(sortValue) : null;
+    }
+
+    private org.apache.lucene.search.Query equal(SortField sortField, String value) {
+        if (value == null)
+            return missing(sortField);
+        else
+            return range(sortField, value, value, true, true);
+    }
+
+    /**
+     * Query results only hold entities having the sorted properties (see QueryPlan),
+     * a value is only missing if the cursor entity lost the property since; everything having it is then beyond.
+     * Key paths beyond the cursor's are bounded by its namespace, which holds all entities the query can match,
+     * so the range never enumerates paths of other namespaces and apps.
+     */
+    private org.apache.lucene.search.Query beyond(SortField sortField, String value) {
+        if (value == null)
+            return exists(sortField);
+        else if (QueryConverter.KEY_PATH_PROPERTY_KEY.equals(sortField.getField()))
+            return beyondKeyPath(sortField, value);
+        else if (sortField.getReverse())
+            return range(sortField, null, value, true, false);
+        else
+            return range(sortField, value, null, false, true);
+    }
+
+    /**
+     * Match all entities having the sorted property, with a value of any type.
+     *
+     * @param sortField the sort field
+     * @return lucene query
+     */
+    static org.apache.lucene.search.Query exists(SortField sortField) {
+        IndexFieldType type = IndexFieldType.forSortType(sortField.getType());
+        return FilterPredicateConverter.exists(type.getSortedPropertyName(sortField.getField()));
+    }
+
+    private static org.apache.lucene.search.Query beyondKeyPath(SortField sortField, String path) {
+        String namespacePrefix = KeyFieldBridge.getNamespacePrefix(path);
+        if (sortField.getReverse())
+            return new TermRangeQuery(sortField.getField(), namespacePrefix, path, true, false);
+        else
+            return new TermRangeQuery(sortField.getField(), path, KeyFieldBridge.getNamespaceEnd(namespacePrefix), false, false);
+    }
+
+    private org.apache.lucene.search.Query missing(SortField sortField) {
+        BooleanQuery missing = new BooleanQuery();
+        missing.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+        missing.add(exists(sortField), BooleanClause.Occur.MUST_NOT);
+        return missing;
+    }
+
+    private static org.apache.lucene.search.Query range(SortField sortField, String min, String max, boolean minInclusive, boolean maxInclusive) {
+        String fieldName = sortField.getField();
+        switch (sortField.getType()) {
+            case SortField.LONG:
+                return NumericRangeQuery.newLongRange(fieldName, toLong(min), toLong(max), minInclusive, maxInclusive);
+            case SortField.DOUBLE:
+                return NumericRangeQuery.newDoubleRange(fieldName, toDouble(min), toDouble(max), minInclusive, maxInclusive);
+            default:
+                if (min != null && min.equals(max) && minInclusive && maxInclusive)
+                    return new TermQuery(new Term(fieldName, min));
+                else
+                    return new TermRangeQuery(fieldName, min, max, minInclusive, maxInclusive);
+        }
+    }
+
+    private static Long toLong(String value) {
+        return (value != null) ? Long.valueOf(value) : null;
+    }
+
+    private static Double toDouble(String value) {
+        return (value != null) ? Double.valueOf(value) : null;
+    }
+
+    private static String encode(String value) {
+        if (value == null)
+            return NULL_VALUE;
+        try {
+            return URLEncoder.encode(value, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private List<String> decode(Cursor cursor) {
+        String[] tokens = cursor.toWebSafeString().split(SEPARATOR, -1);
+        if (tokens.length != sortFields.length)
+            throw new IllegalArgumentException("Cursor does not match query: " + cursor);
+
+        List<String> values = new ArrayList<String>(tokens.length);
+        try {
+            for (String token : tokens)
+                values.add(NULL_VALUE.equals(token) ? null : URLDecoder.decode(token, ENCODING));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return values;
+    }
+}
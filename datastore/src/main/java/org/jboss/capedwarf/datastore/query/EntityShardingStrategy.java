@@ -0,0 +1,131 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import org.apache.lucene.document.Document;
+import org.hibernate.search.filter.FullTextFilterImplementor;
+import org.hibernate.search.indexes.spi.IndexManager;
+import org.hibernate.search.store.IndexShardingStrategy;
+import org.infinispan.configuration.cache.IndexingConfigurationBuilder;
+import org.infinispan.query.backend.KeyTransformationHandler;
+
+import java.io.Serializable;
+import java.util.Properties;
+
+/**
+ * Shards the entity index by namespace and kind.
+ * <p/>
+ * All entities of a kind within a namespace live in the same shard, so a query with a kind
+ * opens just that shard and a busy namespace or kind no longer slows down the others.
+ * Index queries pick their shard through {@link IndexScope}, cache queries through the
+ * shard-sensitive {@link #SHARD_FILTER} filter, which carries the namespace and kind.
+ * Enabled through the cache's indexing properties, see {@link #enable(IndexingConfigurationBuilder, int)}:
+ * <pre>
+ * hibernate.search.com.google.appengine.api.datastore.Entity.sharding_strategy = org.jboss.capedwarf.datastore.query.EntityShardingStrategy
+ * hibernate.search.com.google.appengine.api.datastore.Entity.sharding_strategy.nbr_of_shards = 16
+ * </pre>
+ * Without it, everything stays in the single Entity index, as before.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class EntityShardingStrategy implements IndexShardingStrategy {
+
+    public static final String SHARD_FILTER = "____capedwarf.entity.shard___";
+    public static final String NAMESPACE_PARAMETER = "namespace";
+    public static final String KIND_PARAMETER = "kind";
+
+    private static final String PROPERTY_PREFIX = "hibernate.search.com.google.appengine.api.datastore.Entity.sharding_strategy";
+
+    private IndexManager[] indexManagers;
+
+    /**
+     * Shard the entity index of the cache being configured.
+     *
+     * @param indexing the cache's indexing configuration
+     * @param shards   the number of shards
+     */
+    public static void enable(IndexingConfigurationBuilder indexing, int shards) {
+        if (shards < 1)
+            throw new IllegalArgumentException("Number of shards must be positive: " + shards);
+
+        indexing.addProperty(PROPERTY_PREFIX, EntityShardingStrategy.class.getName());
+        indexing.addProperty(PROPERTY_PREFIX + ".nbr_of_shards", String.valueOf(shards));
+    }
+
+    public void initialize(Properties properties, IndexManager[] indexManagers) {
+        this.indexManagers = indexManagers;
+    }
+
+    public IndexManager[] getIndexManagersForAllShards() {
+        return indexManagers;
+    }
+
+    public IndexManager getIndexManagerForAddition(Class<?> entity, Serializable id, String idInString, Document document) {
+        Key key = KeyFactory.stringToKey(document.get(QueryConverter.KEY_PROPERTY_KEY));
+        return indexManagers[getShard(key.getNamespace(), key.getKind())];
+    }
+
+    public IndexManager[] getIndexManagersForDeletion(Class<?> entity, Serializable id, String idInString) {
+        if (idInString == null)
+            return indexManagers; // purge all
+
+        Key key = (Key) KeyTransformationHandler.stringToKey(idInString, Key.class.getClassLoader());
+        return new IndexManager[]{indexManagers[getShard(key.getNamespace(), key.getKind())]};
+    }
+
+    /**
+     * Cache queries with the {@link #SHARD_FILTER} filter enabled go to the shard of its namespace and kind,
+     * other ones through all shards.
+     */
+    public IndexManager[] getIndexManagersForQuery(FullTextFilterImplementor[] fullTextFilters) {
+        if (fullTextFilters != null) {
+            for (FullTextFilterImplementor filter : fullTextFilters) {
+                if (SHARD_FILTER.equals(filter.getName()))
+                    return getIndexManagers((String) filter.getParameter(NAMESPACE_PARAMETER), (String) filter.getParameter(KIND_PARAMETER));
+            }
+        }
+        return indexManagers;
+    }
+
+    /**
+     * Get shards holding entities of given kind in given namespace.
+     *
+     * @param namespace the namespace
+     * @param kind      the kind, or null for all kinds
+     * @return index managers
+     */
+    public IndexManager[] getIndexManagers(String namespace, String kind) {
+        if (kind == null)
+            return indexManagers;
+        return new IndexManager[]{indexManagers[getShard(namespace, kind)]};
+    }
+
+    private int getShard(String namespace, String kind) {
+        int hash = 31 * ((namespace != null) ? namespace.hashCode() : 0) + kind.hashCode();
+        return (hash & Integer.MAX_VALUE) % indexManagers.length;
+    }
+}
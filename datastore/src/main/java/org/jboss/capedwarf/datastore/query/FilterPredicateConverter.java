@@ -24,46 +24,93 @@
 
 package org.jboss.capedwarf.datastore.query;
 
+import com.google.appengine.api.datastore.Key;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
-import org.hibernate.search.query.dsl.BooleanJunction;
-import org.hibernate.search.query.dsl.QueryBuilder;
-import org.hibernate.search.query.dsl.RangeMatchingContext;
-import org.hibernate.search.query.dsl.TermMatchingContext;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.util.NumericUtils;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * Converts GAE's Query.FilterPredicates to Lucene Queries
+ * <p/>
+ * Fields are neither analyzed nor bridged, so Lucene queries are built directly,
+ * which is much cheaper than going through the query DSL.
  *
  * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
  */
 public class FilterPredicateConverter {
 
     private PropertyMapBridge propertyMapBridge;
-    private QueryBuilder queryBuilder;
 
-    public FilterPredicateConverter(QueryBuilder queryBuilder) {
-        this.queryBuilder = queryBuilder;
+    public FilterPredicateConverter() {
         this.propertyMapBridge = new PropertyMapBridge();
     }
 
+    /**
+     * Convert conjunction of filters.
+     * All equality filters are joined in a single TermConjunctionQuery.
+     *
+     * @param filterPredicates the filters
+     * @return lucene query
+     */
     public Query convert(Collection<com.google.appengine.api.datastore.Query.FilterPredicate> filterPredicates) {
-        BooleanJunction<BooleanJunction> bool = queryBuilder.bool();
+        BooleanQuery bool = new BooleanQuery();
+        List<Term> terms = new ArrayList<Term>();
         for (com.google.appengine.api.datastore.Query.FilterPredicate filterPredicate : filterPredicates) {
-            bool.must(convert(filterPredicate));
+            if (isTermEquality(filterPredicate)) {
+                terms.add(term(getFieldName(filterPredicate), filterPredicate.getValue()));
+            } else {
+                bool.add(convert(filterPredicate), BooleanClause.Occur.MUST);
+            }
         }
-        return bool.createQuery();
+        if (terms.size() == 1) {
+            bool.add(new TermQuery(terms.get(0)), BooleanClause.Occur.MUST);
+        } else if (terms.size() > 1) {
+            bool.add(new TermConjunctionQuery(terms), BooleanClause.Occur.MUST);
+        }
+        return bool.clauses().isEmpty() ? new MatchAllDocsQuery() : bool;
+    }
+
+    /**
+     * Match the ancestor and all of its descendants, using the indexed key path.
+     * Descendants' paths are prefixed by the ancestor's path, so only the entity group is visited.
+     *
+     * @param ancestor the ancestor key
+     * @return lucene query
+     */
+    public Query ancestor(Key ancestor) {
+        String path = KeyFieldBridge.toPath(ancestor);
+        BooleanQuery bool = new BooleanQuery();
+        bool.add(new TermQuery(new Term(QueryConverter.KEY_PATH_PROPERTY_KEY, path)), BooleanClause.Occur.SHOULD);
+        bool.add(new PrefixQuery(new Term(QueryConverter.KEY_PATH_PROPERTY_KEY, path + KeyFieldBridge.ELEMENT_SEPARATOR)), BooleanClause.Occur.SHOULD);
+        return bool;
+    }
+
+    private static boolean isTermEquality(com.google.appengine.api.datastore.Query.FilterPredicate filterPredicate) {
+        Object value = filterPredicate.getValue();
+        return filterPredicate.getOperator() == com.google.appengine.api.datastore.Query.FilterOperator.EQUAL
+                && value != null && (value instanceof Collection) == false;
     }
 
     public Query convert(com.google.appengine.api.datastore.Query.FilterPredicate filterPredicate) {
-        String fieldName = filterPredicate.getPropertyName();
+        String fieldName = getFieldName(filterPredicate);
         Object value = filterPredicate.getValue();
 
         switch (filterPredicate.getOperator()) {
             case EQUAL:
                 return equal(fieldName, value);
             case NOT_EQUAL:
-                return not(equal(fieldName, value));
+                return (value != null) ? not(equal(fieldName, value)) : exists(fieldName);
             case IN:
                 return in(fieldName, (Collection<?>) value);
             case GREATER_THAN:
@@ -79,60 +126,122 @@ public class FilterPredicateConverter {
         }
     }
 
+    /**
+     * Key filters are matched on the key path, which holds the complete key.
+     */
+    private static String getFieldName(com.google.appengine.api.datastore.Query.FilterPredicate filterPredicate) {
+        return SortPredicateConverter.getFieldName(filterPredicate.getPropertyName());
+    }
+
+    /**
+     * Match entities having a value of the property, of any type; null values are not indexed.
+     * Typed fields having values are listed in entity's properties field, so this never walks the values themselves.
+     *
+     * @param fieldName the property's field name
+     * @return lucene query
+     */
+    static Query exists(String fieldName) {
+        if (QueryConverter.KEY_PATH_PROPERTY_KEY.equals(fieldName))
+            return new MatchAllDocsQuery(); // every entity has a key
+
+        BooleanQuery bool = new BooleanQuery();
+        for (IndexFieldType type : IndexFieldType.values())
+            bool.add(new TermQuery(new Term(QueryConverter.PROPERTIES_PROPERTY_KEY, type.getFieldName(fieldName))), BooleanClause.Occur.SHOULD);
+        return bool;
+    }
+
     private Query in(String fieldName, Collection<?> values) {
-        BooleanJunction<BooleanJunction> bool = queryBuilder.bool();
+        BooleanQuery bool = new BooleanQuery();
         for (Object value : values) {
-            bool.should(equal(fieldName, value));
+            bool.add(equal(fieldName, value), BooleanClause.Occur.SHOULD);
         }
-        return bool.createQuery();
+        return bool;
     }
 
     private Query not(Query query) {
-        return queryBuilder.bool().must(query).not().createQuery();
+        BooleanQuery bool = new BooleanQuery();
+        bool.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+        bool.add(query, BooleanClause.Occur.MUST_NOT);
+        return bool;
     }
 
     public Query equal(String fieldName, Object value) {
-        return keywordOnField(fieldName)
-                .matching(convertToString(value))
-                .createQuery();
+        IndexFieldType type = IndexFieldType.of(value);
+        if (type.isNumeric())
+            return numericRange(type, fieldName, value, value, true, true);
+
+        return new TermQuery(new Term(fieldName, convertToString(value)));
     }
 
-    private TermMatchingContext keywordOnField(String fieldName) {
-        return queryBuilder
-                .keyword().onField(fieldName)
-                .ignoreFieldBridge()
-                .ignoreAnalyzer();
+    /**
+     * The indexed term of value; numeric values are matched on their full precision term.
+     *
+     * @param fieldName the property name
+     * @param value     the value
+     * @return the term
+     */
+    public Term term(String fieldName, Object value) {
+        IndexFieldType type = IndexFieldType.of(value);
+        switch (type) {
+            case LONG:
+                return new Term(type.getFieldName(fieldName), NumericUtils.longToPrefixCoded(type.toNumber(value).longValue()));
+            case DOUBLE:
+                return new Term(type.getFieldName(fieldName), NumericUtils.doubleToPrefixCoded(type.toNumber(value).doubleValue()));
+            default:
+                return new Term(fieldName, convertToString(value));
+        }
     }
 
     private Query greaterThan(String fieldName, Object value) {
-        return rangeOnField(fieldName)
-                .above(convertToString(value)).excludeLimit()
-                .createQuery();
+        return range(fieldName, value, null, false, true);
     }
 
     private Query greaterThanOrEqual(String fieldName, Object value) {
-        return rangeOnField(fieldName)
-                .above(convertToString(value))
-                .createQuery();
+        return range(fieldName, value, null, true, true);
     }
 
     private Query lessThan(String fieldName, Object value) {
-        return rangeOnField(fieldName)
-                .below(convertToString(value)).excludeLimit()
-                .createQuery();
+        return range(fieldName, null, value, true, false);
     }
 
     private Query lessThanOrEqual(String fieldName, Object value) {
-        return rangeOnField(fieldName)
-                .below(convertToString(value))
-                .createQuery();
+        return range(fieldName, null, value, true, true);
+    }
+
+    private Query range(String fieldName, Object min, Object max, boolean minInclusive, boolean maxInclusive) {
+        IndexFieldType type = IndexFieldType.of(min != null ? min : max);
+        if (type.isNumeric())
+            return numericRange(type, fieldName, min, max, minInclusive, maxInclusive);
+
+        String minValue = (min != null) ? convertToString(min) : null;
+        String maxValue = (max != null) ? convertToString(max) : null;
+        Object bound = (min != null) ? min : max;
+        if (QueryConverter.KEY_PATH_PROPERTY_KEY.equals(fieldName) && bound instanceof Key) {
+            // open key ranges end at the namespace's bounds
+            String prefix = KeyFieldBridge.toNamespacePrefix((Key) bound);
+            if (minValue == null) {
+                minValue = prefix;
+                minInclusive = true;
+            }
+            if (maxValue == null) {
+                maxValue = prefix + Character.MAX_VALUE;
+                maxInclusive = false;
+            }
+        }
+        return new TermRangeQuery(fieldName, minValue, maxValue, minInclusive, maxInclusive);
     }
 
-    private RangeMatchingContext rangeOnField(String fieldName) {
-        return queryBuilder
-                .range().onField(fieldName)
-                .ignoreFieldBridge()
-                .ignoreAnalyzer();
+    /**
+     * Range over numeric field; null bound means open range.
+     */
+    static Query numericRange(IndexFieldType type, String propertyName, Object min, Object max, boolean minInclusive, boolean maxInclusive) {
+        String fieldName = type.getFieldName(propertyName);
+        Number minValue = (min != null) ? type.toNumber(min) : null;
+        Number maxValue = (max != null) ? type.toNumber(max) : null;
+        if (type == IndexFieldType.LONG)
+            return NumericRangeQuery.newLongRange(fieldName, (Long) minValue, (Long) maxValue, minInclusive, maxInclusive);
+        else
+            return NumericRangeQuery.newDoubleRange(fieldName, (Double) minValue, (Double) maxValue, minInclusive, maxInclusive);
     }
 
     private String convertToString(Object value) {
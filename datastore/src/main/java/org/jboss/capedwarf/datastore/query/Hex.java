@@ -0,0 +1,92 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+/**
+ * Table driven hex encoding of index terms.
+ * <p/>
+ * Bytes are encoded as unsigned, so the lexical order of terms is the unsigned order of byte strings.
+ * Each thread encodes into its own reusable buffer; only the resulting string is allocated.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+final class Hex {
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+    private static final char[] HIGH = new char[256];
+    private static final char[] LOW = new char[256];
+    private static final int MAX_CACHED_BUFFER = 8192;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            HIGH[i] = DIGITS[i >>> 4];
+            LOW[i] = DIGITS[i & 0x0F];
+        }
+    }
+
+    private static final ThreadLocal<char[]> buffer = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[256];
+        }
+    };
+
+    private Hex() {
+    }
+
+    /**
+     * Encode bytes as lowercase hex, two chars per byte.
+     *
+     * @param bytes the bytes
+     * @return hex string
+     */
+    static String encode(byte[] bytes) {
+        return encode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Encode part of the byte array as lowercase hex, two chars per byte.
+     *
+     * @param bytes  the bytes
+     * @param offset the first byte
+     * @param length number of bytes
+     * @return hex string
+     */
+    static String encode(byte[] bytes, int offset, int length) {
+        int size = length * 2;
+        char[] chars = buffer.get();
+        if (chars.length < size) {
+            chars = new char[size];
+            if (size <= MAX_CACHED_BUFFER)
+                buffer.set(chars);
+        }
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i] & 0xFF;
+            chars[2 * i] = HIGH[b];
+            chars[2 * i + 1] = LOW[b];
+        }
+        return new String(chars, 0, size);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.Rating;
+import org.apache.lucene.search.SortField;
+
+import java.util.Date;
+
+/**
+ * How a property value is indexed.
+ * <p/>
+ * Integers, dates and ratings are indexed as numeric long fields, floating point values as
+ * numeric double fields, so range queries and sorts on them are numeric. Everything else is indexed as string.
+ * Numeric values go to their own, suffixed fields, so a property never mixes encodings within a field.
+ * <p/>
+ * Sorts read single-valued sort fields: per type, each entity's lowest value for ascending sorts
+ * and its highest for descending ones, like GAE orders multi-valued properties.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public enum IndexFieldType {
+    STRING("", SortField.STRING),
+    LONG("$long", SortField.LONG),
+    DOUBLE("$double", SortField.DOUBLE);
+
+    private static final String MIN_SUFFIX = "$min";
+    private static final String MAX_SUFFIX = "$max";
+
+    private final String suffix;
+    private final int sortType;
+
+    IndexFieldType(String suffix, int sortType) {
+        this.suffix = suffix;
+        this.sortType = sortType;
+    }
+
+    public String getFieldName(String propertyName) {
+        return propertyName + suffix;
+    }
+
+    public int getSortType() {
+        return sortType;
+    }
+
+    public boolean isNumeric() {
+        return this != STRING;
+    }
+
+    /**
+     * Get the indexed numeric value.
+     *
+     * @param value the property value
+     * @return Long or Double
+     */
+    public Number toNumber(Object value) {
+        switch (this) {
+            case LONG:
+                if (value instanceof Date)
+                    return ((Date) value).getTime();
+                else if (value instanceof Rating)
+                    return (long) ((Rating) value).getRating();
+                else
+                    return ((Number) value).longValue();
+            case DOUBLE:
+                return ((Number) value).doubleValue();
+            default:
+                throw new IllegalStateException("Not a numeric field type: " + this);
+        }
+    }
+
+    public static IndexFieldType of(Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+                || value instanceof Date || value instanceof Rating)
+            return LONG;
+        else if (value instanceof Double || value instanceof Float)
+            return DOUBLE;
+        else
+            return STRING;
+    }
+
+    public static IndexFieldType forSortType(int sortType) {
+        for (IndexFieldType type : values()) {
+            if (type.sortType == sortType)
+                return type;
+        }
+        throw new IllegalArgumentException("Unsupported sort type: " + sortType);
+    }
+
+    /**
+     * Get the field sorts on the property read.
+     *
+     * @param propertyName the property name
+     * @param reverse      true for descending sort, which reads the highest value
+     * @return sort field name
+     */
+    public String getSortFieldName(String propertyName, boolean reverse) {
+        return getFieldName(propertyName) + (reverse ? MAX_SUFFIX : MIN_SUFFIX);
+    }
+
+    /**
+     * Strip the type and sort suffixes.
+     *
+     * @param sortFieldName the sort field name
+     * @return property name
+     */
+    public String getSortedPropertyName(String sortFieldName) {
+        return sortFieldName.substring(0, sortFieldName.length() - suffix.length() - MIN_SUFFIX.length());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+
+import java.util.Comparator;
+
+/**
+ * Orders index hits the way the index sorts them.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+class IndexHitComparator implements Comparator<IndexHit> {
+
+    private final SortField[] sortFields;
+
+    IndexHitComparator(Sort sort) {
+        this.sortFields = sort.getSort();
+    }
+
+    public int compare(IndexHit hit1, IndexHit hit2) {
+        return compare(hit1.getSortValues(), hit2.getSortValues());
+    }
+
+    /**
+     * Compare sort values, in sort order.
+     *
+     * @param values1 the first sort values
+     * @param values2 the second sort values
+     * @return comparison result
+     */
+    @SuppressWarnings({"unchecked"})
+    int compare(Object[] values1, Object[] values2) {
+        for (int i = 0; i < sortFields.length; i++) {
+            Comparable<Object> value1 = (Comparable<Object>) values1[i];
+            Comparable<Object> value2 = (Comparable<Object>) values2[i];
+            int result;
+            if (value1 == null)
+                result = (value2 == null) ? 0 : -1; // QueryPlan filters out missing sorted properties, this only keeps the order total
+            else if (value2 == null)
+                result = 1;
+            else
+                result = value1.compareTo(value2);
+
+            if (result != 0)
+                return sortFields[i].getReverse() ? -result : result;
+        }
+        return 0;
+    }
+}
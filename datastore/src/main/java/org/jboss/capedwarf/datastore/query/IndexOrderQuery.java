@@ -0,0 +1,119 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.Key;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Query answered by walking a composite index in term order.
+ * <p/>
+ * Terms with the equality prefix are already in requested order, so there is no sort phase,
+ * and the walk stops as soon as enough entities have been found.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class IndexOrderQuery {
+
+    private final IndexScope scope;
+    private final String fieldName;
+    private final String prefix;
+    private int firstResult;
+    private Integer maxResults;
+
+    IndexOrderQuery(IndexScope scope, String fieldName, String prefix) {
+        this.scope = scope;
+        this.fieldName = fieldName;
+        this.prefix = prefix;
+    }
+
+    public IndexOrderQuery firstResult(int firstResult) {
+        this.firstResult = firstResult;
+        return this;
+    }
+
+    public IndexOrderQuery maxResults(int maxResults) {
+        this.maxResults = maxResults;
+        return this;
+    }
+
+    /**
+     * List keys in index order. Entities with several rows are returned at their first row.
+     *
+     * @return the keys
+     */
+    public List<Key> list() {
+        List<Key> keys = new ArrayList<Key>();
+        if (maxResults != null && maxResults <= 0)
+            return keys;
+
+        IndexReader reader = scope.open();
+        try {
+            TermEnum terms = reader.terms(new Term(fieldName, prefix));
+            TermDocs termDocs = reader.termDocs();
+            try {
+                Set<Key> seen = new HashSet<Key>();
+                int skipped = 0;
+                do {
+                    Term term = terms.term();
+                    if (term == null || fieldName.equals(term.field()) == false || term.text().startsWith(prefix) == false)
+                        break;
+
+                    termDocs.seek(terms);
+                    while (termDocs.next()) {
+                        Key key = IndexQuery.readKey(reader, termDocs.doc());
+                        if (seen.add(key) == false)
+                            continue;
+                        if (skipped < firstResult) {
+                            skipped++;
+                        } else {
+                            keys.add(key);
+                            if (maxResults != null && keys.size() >= maxResults)
+                                return keys;
+                        }
+                    }
+                } while (terms.next());
+                return keys;
+            } finally {
+                termDocs.close();
+                terms.close();
+            }
+        } catch (IOException e) {
+            throw new DatastoreFailureException("Cannot walk index " + fieldName + ".", e);
+        } finally {
+            scope.close(reader);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Sort;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Query answered from the index alone.
+ * <p/>
+ * Only the stored key field of each hit is read, entities are never loaded from the cache.
+ * Counting does not even do that, it just counts matching documents.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class IndexQuery {
+
+    private static final Logger log = Logger.getLogger(IndexQuery.class.getName());
+    private static final FieldSelector KEY_SELECTOR = new MapFieldSelector(QueryConverter.KEY_PROPERTY_KEY);
+
+    private final IndexScope scope;
+    private final org.apache.lucene.search.Query luceneQuery;
+    private final Sort sort;
+    private int firstResult;
+    private Integer maxResults;
+    private int matched;
+    private int collected;
+
+    IndexQuery(IndexScope scope, org.apache.lucene.search.Query luceneQuery, Sort sort) {
+        this.scope = scope;
+        this.luceneQuery = luceneQuery;
+        this.sort = sort;
+    }
+
+    public IndexQuery firstResult(int firstResult) {
+        this.firstResult = firstResult;
+        return this;
+    }
+
+    public IndexQuery maxResults(int maxResults) {
+        this.maxResults = maxResults;
+        return this;
+    }
+
+    /**
+     * List hits in sort order.
+     * With max results, only first + max results hits are kept while searching, in a bounded heap.
+     * Without, all hits are collected into a list sorted at the end, so memory follows the number of matches.
+     *
+     * @return hits
+     */
+    public List<IndexHit> list() {
+        if (maxResults != null && maxResults <= 0)
+            return Collections.emptyList();
+
+        IndexReader reader = scope.open();
+        try {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            try {
+                if (maxResults == null)
+                    return listAll(reader, searcher);
+                else
+                    return listTop(reader, searcher, firstResult + maxResults);
+            } finally {
+                searcher.close();
+            }
+        } catch (IOException e) {
+            throw new DatastoreFailureException("Cannot search index.", e);
+        } finally {
+            scope.close(reader);
+        }
+    }
+
+    private List<IndexHit> listTop(IndexReader reader, IndexSearcher searcher, int numHits) throws IOException {
+        TopKCollector collector = new TopKCollector(sort, numHits);
+        searcher.search(luceneQuery, collector);
+        matched = collector.getMatched();
+        collected = collector.getCollected();
+        if (log.isLoggable(Level.FINE))
+            log.fine("Collected " + collected + " of " + matched + " hits, kept " + numHits + " for " + luceneQuery);
+        return collector.getHits(reader, firstResult);
+    }
+
+    private List<IndexHit> listAll(IndexReader reader, IndexSearcher searcher) throws IOException {
+        AllHitsCollector collector = new AllHitsCollector(sort);
+        searcher.search(luceneQuery, collector);
+        matched = collector.getMatched();
+        collected = matched;
+        if (log.isLoggable(Level.FINE))
+            log.fine("Collected all " + matched + " hits for " + luceneQuery);
+        return collector.getHits(reader, firstResult);
+    }
+
+    /**
+     * Get number of hits matching the query during last {@link #list()}.
+     *
+     * @return matched count
+     */
+    public int getMatched() {
+        return matched;
+    }
+
+    /**
+     * Get number of hits that entered the top hits heap during last {@link #list()}.
+     * The closer to first + max results, the less work was wasted on hits later pushed out.
+     * Without max results, every matched hit is collected.
+     *
+     * @return collected count
+     */
+    public int getCollected() {
+        return collected;
+    }
+
+    /**
+     * Read document's stored key.
+     *
+     * @param reader the reader
+     * @param doc    the document
+     * @return the key
+     * @throws IOException for any I/O error
+     */
+    static Key readKey(IndexReader reader, int doc) throws IOException {
+        Document document = reader.document(doc, KEY_SELECTOR);
+        return KeyFactory.stringToKey(document.get(QueryConverter.KEY_PROPERTY_KEY));
+    }
+
+    /**
+     * Count hits, honoring first and max results.
+     * No sorting is done and collection stops as soon as max results are counted.
+     *
+     * @return hit count
+     */
+    public int count() {
+        int cap = (maxResults != null) ? firstResult + maxResults : Integer.MAX_VALUE;
+        if (cap <= firstResult)
+            return 0;
+
+        HitCountCollector collector = new HitCountCollector(cap);
+        IndexReader reader = scope.open();
+        try {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            try {
+                searcher.search(luceneQuery, collector);
+            } catch (HitCountCollector.CapReachedException ignored) {
+            } finally {
+                searcher.close();
+            }
+        } catch (IOException e) {
+            throw new DatastoreFailureException("Cannot search index.", e);
+        } finally {
+            scope.close(reader);
+        }
+        return Math.max(0, collector.getCount() - firstResult);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.QueryResultIterator;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Iterates over entities of index hits; either key-only entities or entities loaded by key.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+class IndexResultIterator implements QueryResultIterator<Entity> {
+
+    private final Iterator<IndexHit> hits;
+    private final Iterator<Entity> entities;
+    private final CursorConverter cursorConverter;
+    private final Cursor startCursor;
+    private IndexHit last;
+
+    /**
+     * @param hits            the hits
+     * @param entities        the entities, one for each hit
+     * @param cursorConverter the cursor converter
+     * @param startCursor     the start cursor
+     */
+    public IndexResultIterator(List<IndexHit> hits, List<Entity> entities, CursorConverter cursorConverter, Cursor startCursor) {
+        this.hits = hits.iterator();
+        this.entities = entities.iterator();
+        this.cursorConverter = cursorConverter;
+        this.startCursor = startCursor;
+    }
+
+    public boolean hasNext() {
+        return hits.hasNext();
+    }
+
+    public Entity next() {
+        last = hits.next();
+        return entities.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("Cannot remove from query results.");
+    }
+
+    public Cursor getCursor() {
+        return (last != null) ? cursorConverter.createCursor(last) : startCursor;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.Entity;
+import org.apache.lucene.index.IndexReader;
+import org.hibernate.search.engine.spi.EntityIndexBinder;
+import org.hibernate.search.indexes.IndexReaderAccessor;
+import org.hibernate.search.indexes.spi.IndexManager;
+import org.hibernate.search.spi.SearchFactoryIntegrator;
+import org.hibernate.search.store.IndexShardingStrategy;
+import org.infinispan.query.CacheQuery;
+
+/**
+ * The part of the entity index a query needs to read.
+ * <p/>
+ * With {@link EntityShardingStrategy} in place that is the shard of query's namespace and kind,
+ * otherwise it is the whole index.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class IndexScope {
+
+    private final IndexReaderAccessor readerAccessor;
+    private final String namespace;
+    private final String kind;
+    private final String[] indexNames;
+
+    private IndexScope(IndexReaderAccessor readerAccessor, String namespace, String kind, String[] indexNames) {
+        this.readerAccessor = readerAccessor;
+        this.namespace = namespace;
+        this.kind = kind;
+        this.indexNames = indexNames;
+    }
+
+    /**
+     * Get the scope of entities of given kind in given namespace.
+     *
+     * @param searchFactory the search factory
+     * @param namespace     the namespace
+     * @param kind          the kind, or null for all kinds
+     * @return index scope
+     */
+    static IndexScope of(SearchFactoryIntegrator searchFactory, String namespace, String kind) {
+        IndexReaderAccessor readerAccessor = searchFactory.getIndexReaderAccessor();
+        EntityIndexBinder binder = searchFactory.getIndexBindingForEntity(Entity.class);
+        IndexShardingStrategy shardingStrategy = (binder != null) ? binder.getSelectionStrategy() : null;
+        if (shardingStrategy instanceof EntityShardingStrategy == false)
+            return new IndexScope(readerAccessor, namespace, kind, null);
+
+        IndexManager[] indexManagers = ((EntityShardingStrategy) shardingStrategy).getIndexManagers(namespace, kind);
+        String[] indexNames = new String[indexManagers.length];
+        for (int i = 0; i < indexManagers.length; i++)
+            indexNames[i] = indexManagers[i].getIndexName();
+        return new IndexScope(readerAccessor, namespace, kind, indexNames);
+    }
+
+    /**
+     * Open reader over the scope; it must be closed with {@link #close(IndexReader)}.
+     *
+     * @return index reader
+     */
+    public IndexReader open() {
+        return (indexNames != null) ? readerAccessor.open(indexNames) : readerAccessor.open(Entity.class);
+    }
+
+    public void close(IndexReader reader) {
+        readerAccessor.close(reader);
+    }
+
+    /**
+     * Keep the cache query within the scope's shard, if it has a kind.
+     * The filter only selects shards, it does not filter hits; without sharding it does nothing.
+     *
+     * @param cacheQuery the cache query
+     */
+    void restrict(CacheQuery cacheQuery) {
+        if (kind == null)
+            return;
+
+        cacheQuery.enableFullTextFilter(EntityShardingStrategy.SHARD_FILTER)
+                .setParameter(EntityShardingStrategy.NAMESPACE_PARAMETER, namespace)
+                .setParameter(EntityShardingStrategy.KIND_PARAMETER, kind);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import org.apache.lucene.document.Document;
+import org.hibernate.search.bridge.FieldBridge;
+import org.hibernate.search.bridge.LuceneOptions;
+
+/**
+ * Indexes entity's key.
+ * <p/>
+ * Besides the key string, the key path is indexed in an order preserving form,
+ * which is used for ordering by key and as a tie-breaker in all sorts.
+ * The path starts with key's app id and namespace, so equal paths of different namespaces never meet
+ * in key ranges, ancestor prefixes or key order.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class KeyFieldBridge implements FieldBridge {
+
+    static final char ELEMENT_SEPARATOR = '\u0001';
+    static final char KIND_SEPARATOR = '\u0002';
+    static final char NAMESPACE_SEPARATOR = '\u0003';
+
+    private static final char ID_MARKER = '#';
+    private static final char NAME_MARKER = '$';
+    private static final int ID_LENGTH = String.valueOf(Long.MAX_VALUE).length();
+
+    public void set(String name, Object value, Document document, LuceneOptions luceneOptions) {
+        Key key = (Key) value;
+        luceneOptions.addFieldToDocument(QueryConverter.KEY_PROPERTY_KEY, KeyFactory.keyToString(key), document);
+        luceneOptions.addFieldToDocument(QueryConverter.KEY_PATH_PROPERTY_KEY, toPath(key), document);
+    }
+
+    /**
+     * Encode key's path; ids sort numerically and before names, parents sort before their children.
+     *
+     * @param key the key
+     * @return encoded path
+     */
+    public static String toPath(Key key) {
+        StringBuilder builder = new StringBuilder(toNamespacePrefix(key));
+        appendPath(builder, key);
+        return builder.toString();
+    }
+
+    /**
+     * Get the prefix shared by paths of all keys in key's app and namespace.
+     *
+     * @param key the key
+     * @return path prefix
+     */
+    public static String toNamespacePrefix(Key key) {
+        return toNamespacePrefix(key.getAppId(), key.getNamespace());
+    }
+
+    /**
+     * Get the prefix shared by paths of all keys in the app and namespace.
+     *
+     * @param appId     the app id
+     * @param namespace the namespace
+     * @return path prefix
+     */
+    public static String toNamespacePrefix(String appId, String namespace) {
+        return ((appId != null) ? appId : "") + NAMESPACE_SEPARATOR + ((namespace != null) ? namespace : "") + NAMESPACE_SEPARATOR;
+    }
+
+    /**
+     * Get the prefix shared by paths of all keys in the path's app and namespace.
+     *
+     * @param path encoded path
+     * @return path prefix
+     */
+    static String getNamespacePrefix(String path) {
+        int appEnd = path.indexOf(NAMESPACE_SEPARATOR);
+        return path.substring(0, path.indexOf(NAMESPACE_SEPARATOR, appEnd + 1) + 1);
+    }
+
+    /**
+     * Get the first string beyond all paths sharing the prefix.
+     *
+     * @param namespacePrefix prefix from {@link #getNamespacePrefix(String)}
+     * @return exclusive upper bound
+     */
+    static String getNamespaceEnd(String namespacePrefix) {
+        return namespacePrefix.substring(0, namespacePrefix.length() - 1) + (char) (NAMESPACE_SEPARATOR + 1);
+    }
+
+    private static void appendPath(StringBuilder builder, Key key) {
+        if (key.getParent() != null) {
+            appendPath(builder, key.getParent());
+            builder.append(ELEMENT_SEPARATOR);
+        }
+        builder.append(key.getKind()).append(KIND_SEPARATOR);
+        if (key.getName() != null) {
+            builder.append(NAME_MARKER).append(key.getName());
+        } else {
+            String id = String.valueOf(key.getId());
+            builder.append(ID_MARKER);
+            for (int i = id.length(); i < ID_LENGTH; i++)
+                builder.append('0');
+            builder.append(id);
+        }
+    }
+}
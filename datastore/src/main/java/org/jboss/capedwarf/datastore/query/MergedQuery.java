@@ -0,0 +1,163 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.Key;
+import org.apache.lucene.search.Sort;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Union of sub-queries, as IN and NOT_EQUAL filters are executed in GAE.
+ * <p/>
+ * Sub-queries are run against the index in parallel, their sorted hits are then k-way merged
+ * and deduplicated, since an entity can match more than one sub-query.
+ * Sub-queries run on the app's executor, owned by {@link QueryConverter}.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class MergedQuery {
+
+    private final ExecutorService executor;
+    private final List<IndexQuery> subQueries;
+    private final IndexHitComparator comparator;
+    private int firstResult;
+    private Integer maxResults;
+
+    MergedQuery(ExecutorService executor, List<IndexQuery> subQueries, Sort sort) {
+        this.executor = executor;
+        this.subQueries = subQueries;
+        this.comparator = new IndexHitComparator(sort);
+    }
+
+    public MergedQuery firstResult(int firstResult) {
+        this.firstResult = firstResult;
+        return this;
+    }
+
+    public MergedQuery maxResults(int maxResults) {
+        this.maxResults = maxResults;
+        return this;
+    }
+
+    public List<IndexHit> list() {
+        List<List<IndexHit>> results = runSubQueries();
+
+        PriorityQueue<Head> heads = new PriorityQueue<Head>(Math.max(1, results.size()));
+        for (List<IndexHit> result : results) {
+            if (result.isEmpty() == false)
+                heads.add(new Head(result));
+        }
+
+        List<IndexHit> hits = new ArrayList<IndexHit>();
+        Set<Key> seen = new HashSet<Key>();
+        int skipped = 0;
+        while (heads.isEmpty() == false && (maxResults == null || hits.size() < maxResults)) {
+            Head head = heads.poll();
+            IndexHit hit = head.current();
+            if (seen.add(hit.getKey())) {
+                if (skipped < firstResult)
+                    skipped++;
+                else
+                    hits.add(hit);
+            }
+            if (head.advance())
+                heads.add(head);
+        }
+        return hits;
+    }
+
+    public int count() {
+        return list().size();
+    }
+
+    /**
+     * Each sub-query needs to return as many hits as the whole merged query,
+     * as any of them might provide all of the merged hits.
+     */
+    private List<List<IndexHit>> runSubQueries() {
+        List<Future<List<IndexHit>>> futures = new ArrayList<Future<List<IndexHit>>>(subQueries.size());
+        for (final IndexQuery subQuery : subQueries) {
+            if (maxResults != null)
+                subQuery.maxResults(firstResult + maxResults);
+            futures.add(executor.submit(new Callable<List<IndexHit>>() {
+                public List<IndexHit> call() throws Exception {
+                    return subQuery.list();
+                }
+            }));
+        }
+
+        List<List<IndexHit>> results = new ArrayList<List<IndexHit>>(futures.size());
+        try {
+            for (Future<List<IndexHit>> future : futures)
+                results.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatastoreFailureException("Interrupted while running sub-queries.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new DatastoreFailureException("Cannot run sub-query.", cause);
+        } finally {
+            for (Future<List<IndexHit>> future : futures)
+                future.cancel(true);
+        }
+        return results;
+    }
+
+    /**
+     * Position within a sub-query's sorted hits.
+     */
+    private class Head implements Comparable<Head> {
+        private final List<IndexHit> hits;
+        private int index;
+
+        private Head(List<IndexHit> hits) {
+            this.hits = hits;
+        }
+
+        IndexHit current() {
+            return hits.get(index);
+        }
+
+        boolean advance() {
+            return ++index < hits.size();
+        }
+
+        public int compareTo(Head other) {
+            return comparator.compare(current(), other.current());
+        }
+    }
+}
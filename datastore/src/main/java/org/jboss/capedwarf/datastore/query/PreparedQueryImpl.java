@@ -1,34 +1,79 @@
 package org.jboss.capedwarf.datastore.query;
 
 import com.google.appengine.api.datastore.*;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Sort;
 import org.infinispan.query.CacheQuery;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaults;
 
 /**
  * JBoss GAE PreparedQuery
+ * <p/>
+ * Immutable, hence safe to share between threads and run concurrently.
+ * Each execution builds its own cache or index query from the fetch options.
  *
  * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
  */
 public class PreparedQueryImpl implements PreparedQuery {
 
-    private CacheQuery cacheQuery;
+    private static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("jboss.capedwarf.datastore.query.chunk.size", 20);
 
-    public PreparedQueryImpl(CacheQuery cacheQuery) {
-        this.cacheQuery = cacheQuery;
+    private final QueryConverter queryConverter;
+    private final IndexScope scope;
+    private final List<org.apache.lucene.search.Query> luceneQueries;
+    private final Sort sort;
+    private final CursorConverter cursorConverter;
+    private final boolean keysOnly;
+    private final CompositeIndex compositeIndex;
+    private final String indexPrefix;
+    private final boolean strong;
+
+    public PreparedQueryImpl(QueryConverter queryConverter, Query gaeQuery, boolean strong) {
+        this.queryConverter = queryConverter;
+        this.scope = queryConverter.getIndexScope(gaeQuery);
+        QueryPlan queryPlan = queryConverter.getQueryPlan(gaeQuery);
+        this.luceneQueries = queryPlan.bind(gaeQuery);
+        this.sort = queryPlan.getSort();
+        this.cursorConverter = new CursorConverter(sort);
+        this.keysOnly = gaeQuery.isKeysOnly();
+        this.compositeIndex = queryPlan.getCompositeIndex();
+        this.indexPrefix = (compositeIndex != null) ? queryConverter.getIndexPrefix(compositeIndex, gaeQuery) : null;
+        this.strong = gaeQuery.getAncestor() != null || strong;
     }
 
     public List<Entity> asList(FetchOptions fetchOptions) {
         return asQueryResultList(fetchOptions);
     }
 
+    @SuppressWarnings({"unchecked"})
     public QueryResultList<Entity> asQueryResultList(FetchOptions fetchOptions) {
-        apply(fetchOptions, cacheQuery);
-        List<?> objects = cacheQuery.list();
-        return new QueryResultListImpl<Entity>((List<Entity>) objects);
+        awaitIndexed();
+        if (isReadFromHits(fetchOptions))
+            return asIndexResultList(fetchOptions);
+
+        List<Entity> entities = isInIndexOrder(fetchOptions)
+                ? listInIndexOrder(fetchOptions)
+                : (List<Entity>) (List<?>) createCacheQuery(fetchOptions).list();
+        Cursor cursor = entities.isEmpty()
+                ? fetchOptions.getStartCursor()
+                : cursorConverter.createCursor(entities.get(entities.size() - 1));
+        return new QueryResultListImpl<Entity>(entities, cursor);
+    }
+
+    private QueryResultList<Entity> asIndexResultList(FetchOptions fetchOptions) {
+        List<IndexHit> hits = listHits(fetchOptions);
+        List<Entity> entities = toEntities(hits);
+        Cursor cursor = hits.isEmpty()
+                ? fetchOptions.getStartCursor()
+                : cursorConverter.createCursor(hits.get(hits.size() - 1));
+        return new QueryResultListImpl<Entity>(entities, cursor);
     }
 
     public Iterable<Entity> asIterable() {
@@ -44,7 +89,7 @@ public class PreparedQueryImpl implements PreparedQuery {
     }
 
     public QueryResultIterable<Entity> asQueryResultIterable(FetchOptions fetchOptions) {
-        return new QueryResultIterableImpl<Entity>(asQueryResultIterator(fetchOptions));
+        return new QueryResultIterableImpl(this, fetchOptions);
     }
 
     public Iterator<Entity> asIterator() {
@@ -60,7 +105,17 @@ public class PreparedQueryImpl implements PreparedQuery {
     }
 
     public QueryResultIterator<Entity> asQueryResultIterator(FetchOptions fetchOptions) {
-        return new QueryResultIteratorImpl<Entity>(createQueryIterator(fetchOptions));
+        awaitIndexed();
+        if (keysOnly || isMerged()) {
+            List<IndexHit> hits = listHits(fetchOptions);
+            List<Entity> entities = toEntities(hits);
+            return new IndexResultIterator(hits, entities, cursorConverter, fetchOptions.getStartCursor());
+        }
+
+        Iterator<Entity> iterator = isInIndexOrder(fetchOptions)
+                ? listInIndexOrder(fetchOptions).iterator()
+                : createChunkedIterator(fetchOptions);
+        return new QueryResultIteratorImpl(iterator, cursorConverter, fetchOptions.getStartCursor());
     }
 
     public Entity asSingleEntity() throws TooManyResultsException {
@@ -77,29 +132,189 @@ public class PreparedQueryImpl implements PreparedQuery {
     }
 
     public int countEntities(FetchOptions fetchOptions) {
-        apply(fetchOptions, cacheQuery);
-        return cacheQuery.getResultSize();
+        awaitIndexed();
+        if (isMerged())
+            return createMergedQuery(fetchOptions).count();
+        else
+            return createIndexQuery(fetchOptions).count();
     }
 
-    private void apply(FetchOptions fetchOptions, CacheQuery cacheQuery) {
+    /**
+     * Ancestor queries are strongly consistent, like in GAE; other queries are too,
+     * unless the service's read policy asks for eventual consistency, in which case they may miss the latest writes.
+     */
+    private void awaitIndexed() {
+        if (strong)
+            queryConverter.awaitIndexed();
+    }
+
+    /**
+     * Keys only, merged and limited queries collect index hits first and load only their entities.
+     * A limited query keeps just its top offset + limit hits while searching.
+     *
+     * @param fetchOptions the fetch options
+     * @return true if results are read from index hits
+     */
+    private boolean isReadFromHits(FetchOptions fetchOptions) {
+        return keysOnly || isMerged() || (fetchOptions.getLimit() != null && isInIndexOrder(fetchOptions) == false);
+    }
+
+    /**
+     * Queries matching a serving composite index are answered by walking it, unless they resume from a cursor.
+     *
+     * @param fetchOptions the fetch options
+     * @return true if results are read in index order
+     */
+    private boolean isInIndexOrder(FetchOptions fetchOptions) {
+        return compositeIndex != null
+                && fetchOptions.getStartCursor() == null
+                && fetchOptions.getEndCursor() == null
+                && queryConverter.getCompositeIndexes().isServing(compositeIndex);
+    }
+
+    private List<Entity> listInIndexOrder(FetchOptions fetchOptions) {
+        IndexOrderQuery indexOrderQuery = queryConverter.getIndexOrderQuery(scope, compositeIndex, indexPrefix);
         if (fetchOptions.getOffset() != null) {
-            cacheQuery.firstResult(fetchOptions.getOffset());
+            indexOrderQuery.firstResult(fetchOptions.getOffset());
         }
         if (fetchOptions.getLimit() != null) {
-            cacheQuery.maxResults(fetchOptions.getLimit());
+            indexOrderQuery.maxResults(fetchOptions.getLimit());
         }
+
+        List<Key> keys = indexOrderQuery.list();
+        Map<Key, Entity> loaded = queryConverter.getEntities(keys);
+        List<Entity> entities = new ArrayList<Entity>(keys.size());
+        for (Key key : keys) {
+            Entity entity = loaded.get(key);
+            if (entity != null)
+                entities.add(entity);
+        }
+        return entities;
     }
 
-    private Iterator<Entity> createQueryIterator(FetchOptions fetchOptions) {
+    /**
+     * IN and NOT_EQUAL filters split the query into several sub-queries.
+     *
+     * @return true if results are the merged results of sub-queries
+     */
+    private boolean isMerged() {
+        return luceneQueries.size() != 1;
+    }
+
+    private List<IndexHit> listHits(FetchOptions fetchOptions) {
+        if (isMerged())
+            return createMergedQuery(fetchOptions).list();
+        else
+            return createIndexQuery(fetchOptions).list();
+    }
+
+    /**
+     * Get entities of hits. Hits whose entities were removed since they were found are dropped.
+     *
+     * @param hits the hits
+     * @return entities, in the order of hits
+     */
+    private List<Entity> toEntities(List<IndexHit> hits) {
+        List<Entity> entities = new ArrayList<Entity>(hits.size());
+        if (keysOnly) {
+            for (IndexHit hit : hits)
+                entities.add(new Entity(hit.getKey()));
+            return entities;
+        }
+
+        List<Key> keys = new ArrayList<Key>(hits.size());
+        for (IndexHit hit : hits)
+            keys.add(hit.getKey());
+        Map<Key, Entity> loaded = queryConverter.getEntities(keys);
+        for (Iterator<IndexHit> it = hits.iterator(); it.hasNext(); ) {
+            Entity entity = loaded.get(it.next().getKey());
+            if (entity != null)
+                entities.add(entity);
+            else
+                it.remove();
+        }
+        return entities;
+    }
+
+    /**
+     * Every execution gets its own CacheQuery, since cursors change the lucene query.
+     *
+     * @param fetchOptions the fetch options
+     * @return new cache query
+     */
+    private CacheQuery createCacheQuery(FetchOptions fetchOptions) {
+        CacheQuery cacheQuery = queryConverter.getCacheQuery(scope, applyCursors(luceneQueries.get(0), fetchOptions), sort);
         apply(fetchOptions, cacheQuery);
+        return cacheQuery;
+    }
 
-        Integer chunkSize = fetchOptions.getChunkSize();
-        if (chunkSize == null) {
-            return cacheQuery.iterator();
-        } else {
-            return cacheQuery.iterator(chunkSize);
+    /**
+     * Keys only and count queries are answered from the index, entities are never loaded.
+     *
+     * @param fetchOptions the fetch options
+     * @return new index query
+     */
+    private IndexQuery createIndexQuery(FetchOptions fetchOptions) {
+        IndexQuery indexQuery = queryConverter.getIndexQuery(scope, applyCursors(luceneQueries.get(0), fetchOptions), sort);
+        if (fetchOptions.getOffset() != null) {
+            indexQuery.firstResult(fetchOptions.getOffset());
+        }
+        if (fetchOptions.getLimit() != null) {
+            indexQuery.maxResults(fetchOptions.getLimit());
+        }
+        return indexQuery;
+    }
+
+    private MergedQuery createMergedQuery(FetchOptions fetchOptions) {
+        List<IndexQuery> subQueries = new ArrayList<IndexQuery>(luceneQueries.size());
+        for (org.apache.lucene.search.Query luceneQuery : luceneQueries) {
+            subQueries.add(queryConverter.getIndexQuery(scope, applyCursors(luceneQuery, fetchOptions), sort));
+        }
+        MergedQuery mergedQuery = queryConverter.getMergedQuery(subQueries, sort);
+        if (fetchOptions.getOffset() != null) {
+            mergedQuery.firstResult(fetchOptions.getOffset());
+        }
+        if (fetchOptions.getLimit() != null) {
+            mergedQuery.maxResults(fetchOptions.getLimit());
         }
+        return mergedQuery;
     }
 
+    private org.apache.lucene.search.Query applyCursors(org.apache.lucene.search.Query luceneQuery, FetchOptions fetchOptions) {
+        Cursor startCursor = fetchOptions.getStartCursor();
+        Cursor endCursor = fetchOptions.getEndCursor();
+        if (startCursor == null && endCursor == null)
+            return luceneQuery;
 
+        BooleanQuery query = new BooleanQuery();
+        query.add(luceneQuery, BooleanClause.Occur.MUST);
+        if (startCursor != null)
+            query.add(cursorConverter.createAfterQuery(startCursor), BooleanClause.Occur.MUST);
+        if (endCursor != null)
+            query.add(cursorConverter.createAfterQuery(endCursor), BooleanClause.Occur.MUST_NOT);
+        return query;
+    }
+
+    private void apply(FetchOptions fetchOptions, CacheQuery cacheQuery) {
+        if (fetchOptions.getOffset() != null) {
+            cacheQuery.firstResult(fetchOptions.getOffset());
+        }
+        if (fetchOptions.getLimit() != null) {
+            cacheQuery.maxResults(fetchOptions.getLimit());
+        }
+    }
+
+    /**
+     * Results are streamed in chunks; the first one holds prefetch size results, the others chunk size results.
+     *
+     * @param fetchOptions the fetch options
+     * @return chunked iterator
+     */
+    private Iterator<Entity> createChunkedIterator(FetchOptions fetchOptions) {
+        int chunkSize = (fetchOptions.getChunkSize() != null) ? fetchOptions.getChunkSize() : DEFAULT_CHUNK_SIZE;
+        int firstChunkSize = (fetchOptions.getPrefetchSize() != null) ? fetchOptions.getPrefetchSize() : chunkSize;
+        int offset = (fetchOptions.getOffset() != null) ? fetchOptions.getOffset() : 0;
+        return new ChunkedResultIterator(queryConverter, scope, applyCursors(luceneQueries.get(0), fetchOptions), sort, cursorConverter,
+                offset, fetchOptions.getLimit(), Math.max(1, firstChunkSize), chunkSize);
+    }
 }
@@ -44,10 +44,22 @@ import org.hibernate.search.bridge.LuceneOptions;
 import org.hibernate.search.bridge.TwoWayFieldBridge;
 import org.hibernate.search.bridge.impl.BridgeFactory;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * Indexes entity's property map.
+ * <p/>
+ * Values are converted by bridges looked up by value class. Bridges of built-in types are shared,
+ * bridges of application's own types live in the registry of the application's classloader,
+ * which is dropped with {@link #release(ClassLoader)} once the application goes away.
+ *
  * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
  */
 public class PropertyMapBridge implements FieldBridge {
@@ -65,66 +77,295 @@ public class PropertyMapBridge implements FieldBridge {
     public static final TwoWayFieldBridge BLOB_KEY_BRIDGE = new BlobKeyBridge();
     public static final TwoWayFieldBridge BLOB_BRIDGE = new BlobBridge();
     public static final TwoWayFieldBridge SHORT_BLOB_BRIDGE = new ShortBlobBridge();
+    private static final TwoWayFieldBridge STRING_BRIDGE = new StringBridge();
+
+    private static final BridgeRegistry DEFAULT_REGISTRY = new BridgeRegistry(createDefaultBridges());
+    private static final ConcurrentMap<ClassLoader, BridgeRegistry> registries = new ConcurrentHashMap<ClassLoader, BridgeRegistry>();
+
+    /**
+     * Entity's property map holds unindexed values wrapped in this class.
+     */
+    private static final String UNINDEXED_VALUE_CLASS_NAME = "com.google.appengine.api.datastore.Entity$UnindexedValue";
 
+    /**
+     * Index entity's properties, like GAE does: unindexed properties, nulls and Text and Blob values are left out,
+     * each value of a multi-valued property is indexed as a separate term.
+     * Each typed field having values is also listed in the properties field, see {@link FilterPredicateConverter#exists(String)},
+     * and gets its lowest and highest value indexed in its sort fields, see {@link IndexFieldType#getSortFieldName(String, boolean)}.
+     */
     public void set(String name, Object value, Document document, LuceneOptions luceneOptions) {
         Map<String, ?> entityProperties = (Map<String, ?>) value;
+        Map<String, SortValues> fields = new LinkedHashMap<String, SortValues>();
         for (Map.Entry<String, ?> entry : entityProperties.entrySet()) {
-            luceneOptions.addFieldToDocument(entry.getKey(), convertToString(entry.getValue()), document);
+            Object propertyValue = entry.getValue();
+            if (isUnindexed(propertyValue))
+                continue;
+
+            if (propertyValue instanceof Collection) {
+                for (Object element : (Collection<?>) propertyValue)
+                    addValue(entry.getKey(), element, document, luceneOptions, fields);
+            } else {
+                addValue(entry.getKey(), propertyValue, document, luceneOptions, fields);
+            }
+        }
+        for (Map.Entry<String, SortValues> entry : fields.entrySet()) {
+            luceneOptions.addFieldToDocument(QueryConverter.PROPERTIES_PROPERTY_KEY, entry.getKey(), document);
+            entry.getValue().addTo(document, luceneOptions);
+        }
+    }
+
+    /**
+     * Get the field the value is indexed in.
+     *
+     * @param propertyName the property name
+     * @param value        the value
+     * @return field name, or null if the value is not indexed
+     */
+    static String getFieldName(String propertyName, Object value) {
+        if (value == null || value instanceof Text || value instanceof Blob)
+            return null;
+        return IndexFieldType.of(value).getFieldName(propertyName);
+    }
+
+    private static boolean isUnindexed(Object value) {
+        return value != null && UNINDEXED_VALUE_CLASS_NAME.equals(value.getClass().getName());
+    }
+
+    private void addValue(String propertyName, Object value, Document document, LuceneOptions luceneOptions, Map<String, SortValues> fields) {
+        String fieldName = getFieldName(propertyName, value);
+        if (fieldName == null)
+            return;
+
+        IndexFieldType type = IndexFieldType.of(value);
+        Comparable indexed = toIndexed(type, value);
+        if (type.isNumeric()) {
+            luceneOptions.addNumericFieldToDocument(fieldName, indexed, document);
+        } else {
+            luceneOptions.addFieldToDocument(fieldName, (String) indexed, document);
+        }
+
+        SortValues sortValues = fields.get(fieldName);
+        if (sortValues == null) {
+            sortValues = new SortValues(propertyName, type);
+            fields.put(fieldName, sortValues);
         }
+        sortValues.add(indexed);
+    }
+
+    /**
+     * Get the value a sort on the property orders the entity by.
+     *
+     * @param propertyValue the property value, single or multiple
+     * @param type          the sorted field type
+     * @param reverse       true for descending sort
+     * @return lowest indexed value of the type, or highest one for descending sort; null if there is none
+     */
+    Comparable getSortValue(Object propertyValue, IndexFieldType type, boolean reverse) {
+        Collection<?> values = (propertyValue instanceof Collection) ? (Collection<?>) propertyValue : Collections.singleton(propertyValue);
+        Comparable result = null;
+        for (Object value : values) {
+            if (getFieldName("", value) == null || IndexFieldType.of(value) != type)
+                continue;
+
+            Comparable indexed = toIndexed(type, value);
+            if (result == null || (reverse ? indexed.compareTo(result) > 0 : indexed.compareTo(result) < 0))
+                result = indexed;
+        }
+        return result;
+    }
+
+    /**
+     * @return Long or Double for numeric types, the indexed string otherwise
+     */
+    private Comparable toIndexed(IndexFieldType type, Object value) {
+        return type.isNumeric() ? (Comparable) type.toNumber(value) : convertToString(value);
     }
 
     public String convertToString(Object value) {
-        if (value instanceof String) {
-            return String.valueOf(value);
-//            return BridgeFactory.STRING.objectToString(value);
-        } else if (value instanceof Boolean) {
-            return BridgeFactory.BOOLEAN.objectToString(value);
-        } else if (value instanceof Integer) {
-            return BridgeFactory.INTEGER.objectToString(value);
-        } else if (value instanceof Byte) {
-            return BridgeFactory.INTEGER.objectToString(value);
-        } else if (value instanceof Short) {
-            return BridgeFactory.INTEGER.objectToString(value);
-        } else if (value instanceof Long) {
-            return BridgeFactory.LONG.objectToString(value);
-        } else if (value instanceof Float) {
-            return BridgeFactory.FLOAT.objectToString(value);
-        } else if (value instanceof Double) {
-            return BridgeFactory.DOUBLE.objectToString(value);
-        } else if (value instanceof Date) {
-            return BridgeFactory.DATE_MILLISECOND.objectToString(value);
-
-        } else if (value instanceof Text) {
-            return TEXT_BRIDGE.objectToString(value);
-        } else if (value instanceof PhoneNumber) {
-            return PHONE_NUMBER_BRIDGE.objectToString(value);
-        } else if (value instanceof PostalAddress) {
-            return POSTAL_ADDRESS_BRIDGE.objectToString(value);
-        } else if (value instanceof Email) {
-            return EMAIL_BRIDGE.objectToString(value);
-        } else if (value instanceof User) {
-            return USER_BRIDGE.objectToString(value);
-        } else if (value instanceof Link) {
-            return LINK_BRIDGE.objectToString(value);
-        } else if (value instanceof Key) {
-            return KEY_BRIDGE.objectToString(value);
-        } else if (value instanceof Rating) {
-            return RATING_BRIDGE.objectToString(value);
-        } else if (value instanceof GeoPt) {
-            return GEO_PT_BRIDGE.objectToString(value);
-        } else if (value instanceof Category) {
-            return CATEGORY_BRIDGE.objectToString(value);
-        } else if (value instanceof IMHandle) {
-            return IM_HANDLE_BRIDGE.objectToString(value);
-        } else if (value instanceof BlobKey) {
-            return BLOB_KEY_BRIDGE.objectToString(value);
-        } else if (value instanceof Blob) {
-            return BLOB_BRIDGE.objectToString(value);
-        } else if (value instanceof ShortBlob) {
-            return SHORT_BLOB_BRIDGE.objectToString(value);
-        }
-
-        throw new IllegalArgumentException("Cannot convert value to string. Value was " + value);
+        TwoWayFieldBridge bridge = (value != null) ? getBridge(value.getClass()) : null;
+        if (bridge == null)
+            throw new IllegalArgumentException("Cannot convert value to string. Value was " + value);
+        return bridge.objectToString(value);
+    }
+
+    /**
+     * Register bridge for application's own property type.
+     * Values of the type and its subtypes are indexed as strings produced by the bridge.
+     * The bridge goes to the registry of the type's classloader, so it is seen by that application only.
+     *
+     * @param type   the property type
+     * @param bridge the bridge
+     */
+    public static void registerBridge(Class<?> type, TwoWayFieldBridge bridge) {
+        if (type == null)
+            throw new IllegalArgumentException("Null type");
+        if (bridge == null)
+            throw new IllegalArgumentException("Null bridge");
+        ClassLoader classLoader = type.getClassLoader();
+        if (classLoader == null)
+            throw new IllegalArgumentException("Cannot register bridge for system type " + type.getName());
+
+        BridgeRegistry registry = registries.get(classLoader);
+        if (registry == null) {
+            registry = new BridgeRegistry(DEFAULT_REGISTRY.snapshot.bridges);
+            BridgeRegistry previous = registries.putIfAbsent(classLoader, registry);
+            if (previous != null)
+                registry = previous;
+        }
+        registry.register(type, bridge);
+    }
+
+    /**
+     * Drop bridges registered by the application, once it is undeployed.
+     *
+     * @param classLoader the application's classloader
+     */
+    public static void release(ClassLoader classLoader) {
+        if (classLoader != null)
+            registries.remove(classLoader);
+    }
+
+    /**
+     * Get bridge for the value class, from the registry of its classloader if there is one.
+     *
+     * @param clazz the value class
+     * @return bridge or null if there is none
+     */
+    private static TwoWayFieldBridge getBridge(Class<?> clazz) {
+        ClassLoader classLoader = clazz.getClassLoader();
+        BridgeRegistry registry = (classLoader != null) ? registries.get(classLoader) : null;
+        return (registry != null) ? registry.getBridge(clazz) : DEFAULT_REGISTRY.getBridge(clazz);
+    }
+
+    private static Map<Class<?>, TwoWayFieldBridge> createDefaultBridges() {
+        Map<Class<?>, TwoWayFieldBridge> map = new HashMap<Class<?>, TwoWayFieldBridge>();
+        map.put(String.class, STRING_BRIDGE);
+        map.put(Boolean.class, BridgeFactory.BOOLEAN);
+        map.put(Integer.class, BridgeFactory.INTEGER);
+        map.put(Byte.class, BridgeFactory.INTEGER);
+        map.put(Short.class, BridgeFactory.INTEGER);
+        map.put(Long.class, BridgeFactory.LONG);
+        map.put(Float.class, BridgeFactory.FLOAT);
+        map.put(Double.class, BridgeFactory.DOUBLE);
+        map.put(Date.class, BridgeFactory.DATE_MILLISECOND);
+
+        map.put(Text.class, TEXT_BRIDGE);
+        map.put(PhoneNumber.class, PHONE_NUMBER_BRIDGE);
+        map.put(PostalAddress.class, POSTAL_ADDRESS_BRIDGE);
+        map.put(Email.class, EMAIL_BRIDGE);
+        map.put(User.class, USER_BRIDGE);
+        map.put(Link.class, LINK_BRIDGE);
+        map.put(Key.class, KEY_BRIDGE);
+        map.put(Rating.class, RATING_BRIDGE);
+        map.put(GeoPt.class, GEO_PT_BRIDGE);
+        map.put(Category.class, CATEGORY_BRIDGE);
+        map.put(IMHandle.class, IM_HANDLE_BRIDGE);
+        map.put(BlobKey.class, BLOB_KEY_BRIDGE);
+        map.put(Blob.class, BLOB_BRIDGE);
+        map.put(ShortBlob.class, SHORT_BLOB_BRIDGE);
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Bridges by type; lookups by exact class hit the registered bridges directly,
+     * subclasses are resolved once and then cached.
+     * <p/>
+     * Registering copies the bridges into a new snapshot with an empty cache, so a lookup
+     * racing with it caches into the snapshot it read from, never into the new one.
+     * The shared default registry caches resolved system classes only, so it never holds on to an application.
+     */
+    private static class BridgeRegistry {
+        private volatile Snapshot snapshot;
+
+        private BridgeRegistry(Map<Class<?>, TwoWayFieldBridge> bridges) {
+            this.snapshot = new Snapshot(bridges);
+        }
+
+        private synchronized void register(Class<?> type, TwoWayFieldBridge bridge) {
+            Map<Class<?>, TwoWayFieldBridge> bridges = new HashMap<Class<?>, TwoWayFieldBridge>(snapshot.bridges);
+            bridges.put(type, bridge);
+            snapshot = new Snapshot(Collections.unmodifiableMap(bridges));
+        }
+
+        private TwoWayFieldBridge getBridge(Class<?> clazz) {
+            Snapshot current = snapshot;
+            TwoWayFieldBridge bridge = current.bridges.get(clazz);
+            if (bridge != null)
+                return bridge;
+
+            bridge = current.resolved.get(clazz);
+            if (bridge == null) {
+                bridge = resolveBridge(current.bridges, clazz);
+                if (bridge == null)
+                    return null;
+                if (this != DEFAULT_REGISTRY || clazz.getClassLoader() == null)
+                    current.resolved.putIfAbsent(clazz, bridge);
+            }
+            return bridge;
+        }
+
+        private static TwoWayFieldBridge resolveBridge(Map<Class<?>, TwoWayFieldBridge> bridges, Class<?> clazz) {
+            for (Class<?> current = clazz; current != null; current = current.getSuperclass()) {
+                TwoWayFieldBridge bridge = bridges.get(current);
+                if (bridge != null)
+                    return bridge;
+                for (Class<?> iface : current.getInterfaces()) {
+                    bridge = resolveBridge(bridges, iface);
+                    if (bridge != null)
+                        return bridge;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Lowest and highest value of one typed field.
+     */
+    private static class SortValues {
+        private final String propertyName;
+        private final IndexFieldType type;
+        private Comparable min;
+        private Comparable max;
+
+        private SortValues(String propertyName, IndexFieldType type) {
+            this.propertyName = propertyName;
+            this.type = type;
+        }
+
+        private void add(Comparable value) {
+            if (min == null || value.compareTo(min) < 0)
+                min = value;
+            if (max == null || value.compareTo(max) > 0)
+                max = value;
+        }
+
+        private void addTo(Document document, LuceneOptions luceneOptions) {
+            String minField = type.getSortFieldName(propertyName, false);
+            String maxField = type.getSortFieldName(propertyName, true);
+            if (type.isNumeric()) {
+                luceneOptions.addNumericFieldToDocument(minField, min, document);
+                luceneOptions.addNumericFieldToDocument(maxField, max, document);
+            } else {
+                luceneOptions.addFieldToDocument(minField, (String) min, document);
+                luceneOptions.addFieldToDocument(maxField, (String) max, document);
+            }
+        }
+    }
+
+    private static class Snapshot {
+        private final Map<Class<?>, TwoWayFieldBridge> bridges;
+        private final ConcurrentMap<Class<?>, TwoWayFieldBridge> resolved = new ConcurrentHashMap<Class<?>, TwoWayFieldBridge>();
+
+        private Snapshot(Map<Class<?>, TwoWayFieldBridge> bridges) {
+            this.bridges = bridges;
+        }
+    }
+
+    private static class StringBridge extends ObjectToStringFieldBridge {
+        public String objectToString(Object object) {
+            return (String) object;
+        }
     }
 
     private static class TextBridge extends ObjectToStringFieldBridge {
@@ -165,7 +406,7 @@ public class PropertyMapBridge implements FieldBridge {
 
     private static class KeyBridge extends ObjectToStringFieldBridge {
         public String objectToString(Object object) {
-            return ((Key) object).getKind();    // TODO: add other properties
+            return KeyFieldBridge.toPath((Key) object);
         }
     }
 
@@ -206,26 +447,15 @@ public class PropertyMapBridge implements FieldBridge {
     private static class BlobBridge extends ObjectToStringFieldBridge {
         public String objectToString(Object object) {
             byte[] bytes = ((Blob) object).getBytes();
-            return bytesToString(bytes);
+            return Hex.encode(bytes);
         }
     }
 
     private static class ShortBlobBridge extends ObjectToStringFieldBridge {
         public String objectToString(Object object) {
             byte[] bytes = ((ShortBlob) object).getBytes();
-            return bytesToString(bytes);
-        }
-    }
-
-    private static String bytesToString(byte bytes[]) {
-        // TODO: This impl is temporary. Find better one.
-        StringBuilder sbuf = new StringBuilder();
-        for (byte aByte : bytes) {
-            String hex = Integer.toString(aByte, 16);
-            String twoCharHex = (hex.length() == 1 ? "0" : "") + hex;
-            sbuf.append(twoCharHex);
+            return Hex.encode(bytes);
         }
-        return sbuf.toString();
     }
 
     /**
@@ -0,0 +1,79 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import org.apache.lucene.document.Document;
+import org.hibernate.search.bridge.FieldBridge;
+import org.hibernate.search.bridge.LuceneOptions;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records which typed fields entity's properties are indexed in, scoped by entity's app, namespace and kind.
+ * <p/>
+ * Whether any entity of a kind has values of a type is then a single term lookup,
+ * without looking at entities of other kinds or namespaces.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class PropertyTypesBridge implements FieldBridge {
+
+    public void set(String name, Object value, Document document, LuceneOptions luceneOptions) {
+        Entity entity = (Entity) value;
+        Key key = entity.getKey();
+        String prefix = getPrefix(key.getAppId(), key.getNamespace(), key.getKind());
+        Set<String> fieldNames = new HashSet<String>();
+        for (Map.Entry<String, Object> entry : entity.getProperties().entrySet()) {
+            if (entity.isUnindexedProperty(entry.getKey()))
+                continue;
+
+            Object propertyValue = entry.getValue();
+            Collection<?> values = (propertyValue instanceof Collection) ? (Collection<?>) propertyValue : Collections.singleton(propertyValue);
+            for (Object element : values) {
+                String fieldName = PropertyMapBridge.getFieldName(entry.getKey(), element);
+                if (fieldName != null && fieldNames.add(fieldName))
+                    luceneOptions.addFieldToDocument(name, prefix + fieldName, document);
+            }
+        }
+    }
+
+    /**
+     * Get the prefix of typed field terms of entities of the kind.
+     *
+     * @param appId     the app id
+     * @param namespace the namespace
+     * @param kind      the kind
+     * @return term prefix
+     */
+    static String getPrefix(String appId, String namespace, String kind) {
+        return KeyFieldBridge.toNamespacePrefix(appId, namespace) + kind + KeyFieldBridge.KIND_SEPARATOR;
+    }
+}
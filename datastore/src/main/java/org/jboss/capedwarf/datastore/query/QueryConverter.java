@@ -1,71 +1,402 @@
 package org.jboss.capedwarf.datastore.query;
 
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
 import com.google.appengine.api.datastore.Query;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Sort;
-import org.hibernate.search.query.dsl.QueryBuilder;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.hibernate.search.spi.SearchFactoryIntegrator;
+import org.infinispan.Cache;
 import org.infinispan.query.CacheQuery;
 import org.infinispan.query.SearchManager;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Converts a GAE query to Infinispan's CacheQuery
+ * <p/>
+ * There is one converter per app and store; it owns the threads running sub-queries, which are shut down with it.
  *
  * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
  */
 public class QueryConverter {
 
     public static final String KIND_PROPERTY_KEY = "____capedwarf.entity.kind___";
+    public static final String KEY_PROPERTY_KEY = "____capedwarf.entity.key___";
+    public static final String KEY_PATH_PROPERTY_KEY = "____capedwarf.entity.path___";
+    public static final String COMPOSITE_INDEXES_PROPERTY_KEY = "____capedwarf.entity.indexes___";
+    public static final String PROPERTIES_PROPERTY_KEY = "____capedwarf.entity.properties___";
+    public static final String PROPERTY_TYPES_PROPERTY_KEY = "____capedwarf.entity.types___";
 
-    private SearchManager searchManager;
+    private static final IndexFieldType[] RESOLVE_ORDER = {IndexFieldType.LONG, IndexFieldType.DOUBLE, IndexFieldType.STRING};
+    private static final int PLAN_CACHE_SIZE = Integer.getInteger("jboss.capedwarf.datastore.query.plan.cache.size", 256);
+    private static final int PARALLELISM = Integer.getInteger("jboss.capedwarf.datastore.query.parallelism", Runtime.getRuntime().availableProcessors());
 
-    private FilterPredicateConverter filterPredicateConverter;
-    private SortPredicateConverter sortPredicateConverter;
+    private final Cache<Key, Entity> store;
+    private final SearchManager searchManager;
+    private final AsyncIndexer indexer;
+    private final CompositeIndexes compositeIndexes;
 
-    public QueryConverter(SearchManager searchManager) {
+    private final FilterPredicateConverter filterPredicateConverter;
+    private final SortPredicateConverter sortPredicateConverter;
+
+    private final Map<List<Object>, QueryPlan> plans = Collections.synchronizedMap(new LinkedHashMap<List<Object>, QueryPlan>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, QueryPlan> eldest) {
+            return size() > PLAN_CACHE_SIZE;
+        }
+    });
+
+    private ExecutorService subQueryExecutor; // guarded by this
+    private boolean stopped; // guarded by this
+
+    public QueryConverter(Cache<Key, Entity> store, SearchManager searchManager, AsyncIndexer indexer, CompositeIndexes compositeIndexes) {
+        this.store = store;
         this.searchManager = searchManager;
-        this.filterPredicateConverter = new FilterPredicateConverter(createQueryBuilder());
+        this.indexer = indexer;
+        this.compositeIndexes = compositeIndexes;
+        this.filterPredicateConverter = new FilterPredicateConverter();
         this.sortPredicateConverter = new SortPredicateConverter();
     }
 
-    private QueryBuilder createQueryBuilder() {
-        return searchManager.buildQueryBuilderForClass(Entity.class).get();
+    /**
+     * Get the plan for query's shape, compiling it if it's not cached yet.
+     *
+     * @param gaeQuery the GAE query
+     * @return query plan
+     */
+    public QueryPlan getQueryPlan(Query gaeQuery) {
+        List<Object> shape = getShape(gaeQuery);
+        QueryPlan plan = plans.get(shape);
+        if (plan == null) {
+            plan = compile(gaeQuery);
+            if (plan.isCacheable())
+                plans.put(shape, plan);
+        }
+        return plan;
+    }
+
+    private static List<Object> getShape(Query gaeQuery) {
+        List<Object> shape = new ArrayList<Object>();
+        shape.add(getNamespace(gaeQuery));
+        shape.add(gaeQuery.getKind());
+        shape.add(gaeQuery.getAncestor() != null);
+        for (Query.FilterPredicate filterPredicate : gaeQuery.getFilterPredicates()) {
+            shape.add(filterPredicate.getPropertyName());
+            shape.add(filterPredicate.getOperator());
+            shape.add(IndexFieldType.of(firstValue(filterPredicate.getValue())));
+        }
+        for (Query.SortPredicate sortPredicate : gaeQuery.getSortPredicates()) {
+            shape.add(sortPredicate.getPropertyName());
+            shape.add(sortPredicate.getDirection());
+        }
+        return shape;
+    }
+
+    private QueryPlan compile(Query gaeQuery) {
+        boolean cacheable = true;
+        Map<String, IndexFieldType> fieldTypes = new HashMap<String, IndexFieldType>();
+        for (Query.SortPredicate sortPredicate : gaeQuery.getSortPredicates()) {
+            String propertyName = sortPredicate.getPropertyName();
+            IndexFieldType fieldType = Entity.KEY_RESERVED_PROPERTY.equals(propertyName)
+                    ? IndexFieldType.STRING
+                    : getFilterFieldType(gaeQuery, propertyName);
+            if (fieldType == null) {
+                fieldType = getIndexedFieldType(gaeQuery, propertyName);
+                cacheable &= (fieldType == RESOLVE_ORDER[0]); // other types give way once a preferred one is stored
+            }
+            fieldTypes.put(propertyName, fieldType);
+        }
+        Sort sort = sortPredicateConverter.convert(gaeQuery.getSortPredicates(), fieldTypes);
+        Query.FilterPredicate kindPredicate = (gaeQuery.getKind() != null)
+                ? new Query.FilterPredicate(KIND_PROPERTY_KEY, Query.FilterOperator.EQUAL, gaeQuery.getKind())
+                : null;
+        CompositeIndex compositeIndex = compositeIndexes.findIndex(gaeQuery);
+        return new QueryPlan(filterPredicateConverter, kindPredicate, sort, compositeIndex, cacheable);
+    }
+
+    /**
+     * Find out how sorted property is indexed from a filter on the same property.
+     *
+     * @param gaeQuery     the query
+     * @param propertyName the property
+     * @return field type, or null if no filter tells
+     */
+    private static IndexFieldType getFilterFieldType(Query gaeQuery, String propertyName) {
+        for (Query.FilterPredicate filterPredicate : gaeQuery.getFilterPredicates()) {
+            if (filterPredicate.getPropertyName().equals(propertyName)) {
+                Object value = firstValue(filterPredicate.getValue());
+                if (value != null)
+                    return IndexFieldType.of(value);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find out how sorted property is indexed from index contents: we look for typed fields among
+     * entities of query's kind in query's namespace, numeric ones first; see {@link PropertyTypesBridge}.
+     * The answer changes as entities are stored, so plans relying on it are only cached if no other type can take over.
+     *
+     * @param gaeQuery     the query
+     * @param propertyName the property
+     * @return field type, or null if the property is not indexed at all yet
+     */
+    private IndexFieldType getIndexedFieldType(Query gaeQuery, String propertyName) {
+        if (gaeQuery.getKind() == null)
+            return null;
+
+        String prefix = PropertyTypesBridge.getPrefix(compositeIndexes.getAppId(), getNamespace(gaeQuery), gaeQuery.getKind());
+        IndexScope scope = getIndexScope(gaeQuery);
+        IndexReader reader = scope.open();
+        try {
+            for (IndexFieldType type : RESOLVE_ORDER) {
+                if (reader.docFreq(new Term(PROPERTY_TYPES_PROPERTY_KEY, prefix + type.getFieldName(propertyName))) > 0)
+                    return type;
+            }
+            return null;
+        } catch (IOException e) {
+            throw new DatastoreFailureException("Cannot read index.", e);
+        } finally {
+            scope.close(reader);
+        }
+    }
+
+    private static Object firstValue(Object value) {
+        if (value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            return values.isEmpty() ? null : values.iterator().next();
+        }
+        return value;
     }
 
-    public CacheQuery convert(Query gaeQuery) {
-        CacheQuery cacheQuery = getCacheQuery(createLuceneQuery(gaeQuery));
-        addSortToQuery(cacheQuery, gaeQuery);
+    /**
+     * Create query which loads entities of hits from the cache.
+     *
+     * @param scope       the part of the index to search
+     * @param luceneQuery the lucene query
+     * @param sort        the sort
+     * @return cache query
+     */
+    public CacheQuery getCacheQuery(IndexScope scope, org.apache.lucene.search.Query luceneQuery, Sort sort) {
+        CacheQuery cacheQuery = searchManager.getQuery(luceneQuery, Entity.class);
+        scope.restrict(cacheQuery);
+        cacheQuery.sort(sort);
         return cacheQuery;
     }
 
-    private void addSortToQuery(CacheQuery cacheQuery, Query gaeQuery) {
-        List<Query.SortPredicate> sortPredicates = gaeQuery.getSortPredicates();
-        if (!sortPredicates.isEmpty()) {
-            Sort sort = sortPredicateConverter.convert(sortPredicates);
-            cacheQuery.sort(sort);
+    public CompositeIndexes getCompositeIndexes() {
+        return compositeIndexes;
+    }
+
+    /**
+     * Get the part of the index holding query's entities.
+     * Query's namespace is the ancestor's, or the current one.
+     *
+     * @param gaeQuery the GAE query
+     * @return index scope
+     */
+    public IndexScope getIndexScope(Query gaeQuery) {
+        return getIndexScope(getNamespace(gaeQuery), gaeQuery.getKind());
+    }
+
+    private static String getNamespace(Query gaeQuery) {
+        String namespace = (gaeQuery.getAncestor() != null) ? gaeQuery.getAncestor().getNamespace() : NamespaceManager.get();
+        return (namespace != null) ? namespace : "";
+    }
+
+    /**
+     * Get the part of the index holding entities of given kind in given namespace.
+     *
+     * @param namespace the namespace
+     * @param kind      the kind, or null for all kinds
+     * @return index scope
+     */
+    public IndexScope getIndexScope(String namespace, String kind) {
+        return IndexScope.of((SearchFactoryIntegrator) searchManager.getSearchFactory(), (namespace != null) ? namespace : "", kind);
+    }
+
+    /**
+     * Create query which reads hits from the index, without loading entities.
+     *
+     * @param scope       the part of the index to search
+     * @param luceneQuery the lucene query
+     * @param sort        the sort
+     * @return index query
+     */
+    public IndexQuery getIndexQuery(IndexScope scope, org.apache.lucene.search.Query luceneQuery, Sort sort) {
+        return new IndexQuery(scope, luceneQuery, sort);
+    }
+
+    /**
+     * Create union of sub-queries, run in parallel.
+     *
+     * @param subQueries the sub-queries
+     * @param sort       the sort shared by sub-queries
+     * @return merged query
+     */
+    public MergedQuery getMergedQuery(List<IndexQuery> subQueries, Sort sort) {
+        return new MergedQuery(getSubQueryExecutor(), subQueries, sort);
+    }
+
+    private synchronized ExecutorService getSubQueryExecutor() {
+        if (stopped)
+            throw new IllegalStateException("Datastore was stopped.");
+        if (subQueryExecutor == null) {
+            subQueryExecutor = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "capedwarf-subquery-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setContextClassLoader(QueryConverter.class.getClassLoader()); // not the app's
+                    return thread;
+                }
+            });
         }
+        return subQueryExecutor;
     }
 
-    private CacheQuery getCacheQuery(org.apache.lucene.search.Query luceneQuery) {
-        return searchManager.getQuery(luceneQuery, Entity.class);
+    /**
+     * Shut down the sub-query threads, once the app or the store goes away.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (subQueryExecutor != null)
+            subQueryExecutor.shutdown();
     }
 
-    private org.apache.lucene.search.Query createLuceneQuery(Query gaeQuery) {
-        return filterPredicateConverter.convert(getAllFilterPredicates(gaeQuery));
+    /**
+     * Create query which walks composite index from the given prefix on.
+     *
+     * @param scope          the part of the index to walk
+     * @param compositeIndex the composite index
+     * @param prefix         the prefix shared by all matching index rows
+     * @return index order query
+     */
+    public IndexOrderQuery getIndexOrderQuery(IndexScope scope, CompositeIndex compositeIndex, String prefix) {
+        return new IndexOrderQuery(scope, compositeIndex.getFieldName(), prefix);
     }
 
-    private List<Query.FilterPredicate> getAllFilterPredicates(Query gaeQuery) {
-        List<Query.FilterPredicate> list = new ArrayList<Query.FilterPredicate>();
-        list.add(createEntityKindFilterPredicate(gaeQuery));
-        list.addAll(gaeQuery.getFilterPredicates());
-        return list;
+    /**
+     * Get the prefix of composite index terms matching the query, within app's query namespace.
+     *
+     * @param compositeIndex the composite index matching the query
+     * @param gaeQuery       the GAE query
+     * @return term prefix
+     */
+    public String getIndexPrefix(CompositeIndex compositeIndex, Query gaeQuery) {
+        return compositeIndex.getPrefix(gaeQuery, KeyFieldBridge.toNamespacePrefix(compositeIndexes.getAppId(), getNamespace(gaeQuery)));
     }
 
-    private Query.FilterPredicate createEntityKindFilterPredicate(Query gaeQuery) {
-        return new Query.FilterPredicate(KIND_PROPERTY_KEY, Query.FilterOperator.EQUAL, gaeQuery.getKind());
+    /**
+     * Find out if any entity with a key from the range is stored.
+     * A single range query over key paths answers it; paths of the range's children sort between its ends,
+     * and paths of other namespaces never do.
+     *
+     * @param keyRange the key range
+     * @return true if some key of the range is taken
+     */
+    public boolean containsAny(KeyRange keyRange) {
+        awaitIndexed();
+        Key start = keyRange.getStart();
+        BooleanQuery query = new BooleanQuery();
+        query.add(new TermQuery(new Term(KIND_PROPERTY_KEY, keyRange.getKind())), BooleanClause.Occur.MUST);
+        query.add(new TermRangeQuery(KEY_PATH_PROPERTY_KEY, KeyFieldBridge.toPath(start), KeyFieldBridge.toPath(keyRange.getEnd()), true, true), BooleanClause.Occur.MUST);
+        Sort keyOrder = new Sort(new SortField(KEY_PATH_PROPERTY_KEY, SortField.STRING));
+
+        // descendants of range's keys sort within the range too
+        for (IndexHit hit : getIndexQuery(getIndexScope(start.getNamespace(), keyRange.getKind()), query, keyOrder).list()) {
+            Key key = hit.getKey();
+            Key parent = key.getParent();
+            if (parent != null ? parent.equals(keyRange.getParent()) : keyRange.getParent() == null)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Queue entities for indexing anew.
+     *
+     * @param keys the keys
+     */
+    void reindex(Collection<Key> keys) {
+        indexer.reindex(keys);
     }
 
+    /**
+     * Wait until all writes done so far are visible to queries.
+     */
+    public void awaitIndexed() {
+        indexer.awaitFlushed();
+    }
+
+    /**
+     * Load entities of index hits, all keys at once.
+     *
+     * @param keys the keys
+     * @return entities by key, missing ones are left out
+     */
+    public Map<Key, Entity> getEntities(List<Key> keys) {
+        return getEntities(getEntitiesAsync(keys));
+    }
 
+    /**
+     * Start loading entities of index hits, without waiting for them.
+     *
+     * @param keys the keys
+     * @return entity futures by key, in the order of keys
+     */
+    public Map<Key, Future<Entity>> getEntitiesAsync(List<Key> keys) {
+        Map<Key, Future<Entity>> futures = new LinkedHashMap<Key, Future<Entity>>();
+        for (Key key : keys) {
+            futures.put(key, store.getAsync(key));
+        }
+        return futures;
+    }
+
+    /**
+     * Wait for entities being loaded.
+     *
+     * @param futures the entity futures by key
+     * @return entities by key, missing ones are left out
+     */
+    public Map<Key, Entity> getEntities(Map<Key, Future<Entity>> futures) {
+        Map<Key, Entity> entities = new HashMap<Key, Entity>();
+        try {
+            for (Map.Entry<Key, Future<Entity>> entry : futures.entrySet()) {
+                Entity entity = entry.getValue().get();
+                if (entity != null)
+                    entities.put(entry.getKey(), entity);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatastoreFailureException("Interrupted while loading entities.", e);
+        } catch (ExecutionException e) {
+            throw new DatastoreFailureException("Cannot load entities.", e.getCause());
+        }
+        return entities;
+    }
 }
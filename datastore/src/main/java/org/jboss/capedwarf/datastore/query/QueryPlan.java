@@ -0,0 +1,180 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Compiled query of a certain shape; kind, ancestor, filtered properties and operators, and sort order.
+ * <p/>
+ * Everything not depending on filter values is built once, binding a query only converts its filter values.
+ * The kind filter is an equality, so it always takes part in the equality join; kindless queries have none.
+ * Like in GAE, entities lacking a sorted property are not in the result; entities having it with a value of
+ * another type than the sorted field's are, see {@link FilterPredicateConverter#exists(String)}.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class QueryPlan {
+
+    private static final int MAX_SUB_QUERIES = Integer.getInteger("jboss.capedwarf.datastore.query.max.subqueries", 1000);
+
+    private final FilterPredicateConverter filterPredicateConverter;
+    private final Query.FilterPredicate kindPredicate;
+    private final Sort sort;
+    private final List<org.apache.lucene.search.Query> sortedPropertiesExist;
+    private final CompositeIndex compositeIndex;
+    private final boolean cacheable;
+
+    QueryPlan(FilterPredicateConverter filterPredicateConverter, Query.FilterPredicate kindPredicate, Sort sort, CompositeIndex compositeIndex, boolean cacheable) {
+        this.filterPredicateConverter = filterPredicateConverter;
+        this.kindPredicate = kindPredicate;
+        this.sort = sort;
+        this.sortedPropertiesExist = new ArrayList<org.apache.lucene.search.Query>();
+        for (SortField sortField : sort.getSort()) {
+            if (QueryConverter.KEY_PATH_PROPERTY_KEY.equals(sortField.getField()) == false)
+                sortedPropertiesExist.add(CursorConverter.exists(sortField));
+        }
+        this.compositeIndex = compositeIndex;
+        this.cacheable = cacheable;
+    }
+
+    /**
+     * Create lucene queries for the given GAE query, which must be of this plan's shape.
+     * <p/>
+     * Like in GAE, IN and NOT_EQUAL filters split the query into sub-queries;
+     * each IN value and each side of a NOT_EQUAL value gets its own sub-query.
+     * NOT_EQUAL null is not split, it matches all entities having the property.
+     *
+     * @param gaeQuery the GAE query
+     * @return lucene queries, whose union is the result
+     */
+    public List<org.apache.lucene.search.Query> bind(Query gaeQuery) {
+        List<List<Query.FilterPredicate>> conjunctions = new ArrayList<List<Query.FilterPredicate>>();
+        if (kindPredicate != null)
+            conjunctions.add(Collections.singletonList(kindPredicate));
+        else
+            conjunctions.add(Collections.<Query.FilterPredicate>emptyList());
+        for (Query.FilterPredicate filterPredicate : gaeQuery.getFilterPredicates()) {
+            conjunctions = expand(conjunctions, split(filterPredicate));
+        }
+
+        List<org.apache.lucene.search.Query> queries = new ArrayList<org.apache.lucene.search.Query>(conjunctions.size());
+        for (List<Query.FilterPredicate> conjunction : conjunctions) {
+            queries.add(withSortedProperties(withAncestor(filterPredicateConverter.convert(conjunction), gaeQuery.getAncestor())));
+        }
+        return queries;
+    }
+
+    private org.apache.lucene.search.Query withSortedProperties(org.apache.lucene.search.Query query) {
+        if (sortedPropertiesExist.isEmpty())
+            return query;
+
+        BooleanQuery bool = new BooleanQuery();
+        bool.add(query, BooleanClause.Occur.MUST);
+        for (org.apache.lucene.search.Query exists : sortedPropertiesExist)
+            bool.add(exists, BooleanClause.Occur.MUST);
+        return bool;
+    }
+
+    private org.apache.lucene.search.Query withAncestor(org.apache.lucene.search.Query query, Key ancestor) {
+        if (ancestor == null)
+            return query;
+
+        BooleanQuery bool = new BooleanQuery();
+        bool.add(query, BooleanClause.Occur.MUST);
+        bool.add(filterPredicateConverter.ancestor(ancestor), BooleanClause.Occur.MUST);
+        return bool;
+    }
+
+    private static List<Query.FilterPredicate> split(Query.FilterPredicate filterPredicate) {
+        String propertyName = filterPredicate.getPropertyName();
+        Object value = filterPredicate.getValue();
+        switch (filterPredicate.getOperator()) {
+            case IN:
+                List<Query.FilterPredicate> equalities = new ArrayList<Query.FilterPredicate>();
+                for (Object inValue : new LinkedHashSet<Object>((Collection<?>) value)) {
+                    equalities.add(new Query.FilterPredicate(propertyName, Query.FilterOperator.EQUAL, inValue));
+                }
+                return equalities;
+            case NOT_EQUAL:
+                if (value != null) {
+                    return Arrays.asList(
+                            new Query.FilterPredicate(propertyName, Query.FilterOperator.LESS_THAN, value),
+                            new Query.FilterPredicate(propertyName, Query.FilterOperator.GREATER_THAN, value));
+                }
+                return Collections.singletonList(filterPredicate);
+            default:
+                return Collections.singletonList(filterPredicate);
+        }
+    }
+
+    private static List<List<Query.FilterPredicate>> expand(List<List<Query.FilterPredicate>> conjunctions, List<Query.FilterPredicate> alternatives) {
+        if (conjunctions.size() * alternatives.size() > MAX_SUB_QUERIES)
+            throw new IllegalArgumentException("Query would need more than " + MAX_SUB_QUERIES + " sub-queries.");
+
+        List<List<Query.FilterPredicate>> expanded = new ArrayList<List<Query.FilterPredicate>>(conjunctions.size() * alternatives.size());
+        for (List<Query.FilterPredicate> conjunction : conjunctions) {
+            for (Query.FilterPredicate alternative : alternatives) {
+                List<Query.FilterPredicate> filterPredicates = new ArrayList<Query.FilterPredicate>(conjunction);
+                filterPredicates.add(alternative);
+                expanded.add(filterPredicates);
+            }
+        }
+        return expanded;
+    }
+
+    public Sort getSort() {
+        return sort;
+    }
+
+    /**
+     * @return composite index in whose order the query can be answered, or null if there is none
+     */
+    public CompositeIndex getCompositeIndex() {
+        return compositeIndex;
+    }
+
+    /**
+     * Plans sorting on a property whose type was read from the index are not cached, unless it is the preferred type,
+     * as storing entities with values of a preferred type changes it.
+     *
+     * @return true if plan can be reused
+     */
+    boolean isCacheable() {
+        return cacheable;
+    }
+}
@@ -24,21 +24,25 @@
 
 package org.jboss.capedwarf.datastore.query;
 
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.QueryResultIterable;
 import com.google.appengine.api.datastore.QueryResultIterator;
 
 /**
  * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
  */
-class QueryResultIterableImpl<E> implements QueryResultIterable<E> {
+class QueryResultIterableImpl implements QueryResultIterable<Entity> {
 
-    private QueryResultIterator<E> iterator;
+    private final PreparedQueryImpl preparedQuery;
+    private final FetchOptions fetchOptions;
 
-    public QueryResultIterableImpl(QueryResultIterator<E> iterator) {
-        this.iterator = iterator;
+    public QueryResultIterableImpl(PreparedQueryImpl preparedQuery, FetchOptions fetchOptions) {
+        this.preparedQuery = preparedQuery;
+        this.fetchOptions = fetchOptions;
     }
 
-    public QueryResultIterator<E> iterator() {
-        return new QueryResultIteratorImpl<E>(iterator);
+    public QueryResultIterator<Entity> iterator() {
+        return preparedQuery.asQueryResultIterator(fetchOptions);
     }
 }
@@ -25,6 +25,7 @@
 package org.jboss.capedwarf.datastore.query;
 
 import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.QueryResultIterator;
 
 import java.util.Iterator;
@@ -32,20 +33,26 @@ import java.util.Iterator;
 /**
  * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
  */
-class QueryResultIteratorImpl<E> implements QueryResultIterator<E> {
+class QueryResultIteratorImpl implements QueryResultIterator<Entity> {
 
-    private Iterator<E> delegate;
+    private final Iterator<Entity> delegate;
+    private final CursorConverter cursorConverter;
+    private final Cursor startCursor;
+    private Entity last;
 
-    public QueryResultIteratorImpl(Iterator<E> iterator) {
+    public QueryResultIteratorImpl(Iterator<Entity> iterator, CursorConverter cursorConverter, Cursor startCursor) {
         this.delegate = iterator;
+        this.cursorConverter = cursorConverter;
+        this.startCursor = startCursor;
     }
 
     public boolean hasNext() {
         return delegate.hasNext();
     }
 
-    public E next() {
-        return delegate.next();
+    public Entity next() {
+        last = delegate.next();
+        return last;
     }
 
     public void remove() {
@@ -53,6 +60,6 @@ class QueryResultIteratorImpl<E> implements QueryResultIterator<E> {
     }
 
     public Cursor getCursor() {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return (last != null) ? cursorConverter.createCursor(last) : startCursor;
     }
 }
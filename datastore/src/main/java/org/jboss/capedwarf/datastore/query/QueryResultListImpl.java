@@ -35,11 +35,14 @@ import java.util.Collection;
  */
 class QueryResultListImpl<E> extends ArrayList<E> implements QueryResultList<E> {
 
-    public QueryResultListImpl(Collection<? extends E> c) {
+    private final Cursor cursor;
+
+    public QueryResultListImpl(Collection<? extends E> c, Cursor cursor) {
         super(c);
+        this.cursor = cursor;
     }
 
     public Cursor getCursor() {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return cursor;
     }
 }
@@ -24,12 +24,14 @@
 
 package org.jboss.capedwarf.datastore.query;
 
+import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Converts GAE's Query.SortPredicates to Lucene's Sort.
@@ -38,24 +40,41 @@ import java.util.List;
  */
 public class SortPredicateConverter {
 
-    public Sort convert(List<Query.SortPredicate> sortPredicates) {
-        return new Sort(toArray(convertToSortFields(sortPredicates)));
+    /**
+     * Convert sort predicates.
+     *
+     * @param sortPredicates the sort predicates
+     * @param fieldTypes     the index field type of sorted properties, string if missing
+     * @return lucene sort
+     */
+    public Sort convert(List<Query.SortPredicate> sortPredicates, Map<String, IndexFieldType> fieldTypes) {
+        return new Sort(toArray(convertToSortFields(sortPredicates, fieldTypes)));
     }
 
     private SortField[] toArray(List<SortField> sortFields) {
         return sortFields.toArray(new SortField[sortFields.size()]);
     }
 
-    private List<SortField> convertToSortFields(List<Query.SortPredicate> sortPredicates) {
+    private List<SortField> convertToSortFields(List<Query.SortPredicate> sortPredicates, Map<String, IndexFieldType> fieldTypes) {
         List<SortField> sortFields = new ArrayList<SortField>();
         for (Query.SortPredicate sortPredicate : sortPredicates) {
-            sortFields.add(convertToSortField(sortPredicate));
+            sortFields.add(convertToSortField(sortPredicate, fieldTypes.get(sortPredicate.getPropertyName())));
         }
+        sortFields.add(new SortField(QueryConverter.KEY_PATH_PROPERTY_KEY, SortField.STRING));  // key order breaks ties, like in GAE
         return sortFields;
     }
 
-    private SortField convertToSortField(Query.SortPredicate sortPredicate) {
+    private SortField convertToSortField(Query.SortPredicate sortPredicate, IndexFieldType fieldType) {
         boolean reverse = sortPredicate.getDirection() == Query.SortDirection.DESCENDING;
-        return new SortField(sortPredicate.getPropertyName(), SortField.STRING, reverse);   // TODO: find appropriate SortField type
+        String propertyName = sortPredicate.getPropertyName();
+        if (Entity.KEY_RESERVED_PROPERTY.equals(propertyName))
+            return new SortField(QueryConverter.KEY_PATH_PROPERTY_KEY, SortField.STRING, reverse);
+        if (fieldType == null)
+            fieldType = IndexFieldType.STRING;
+        return new SortField(fieldType.getSortFieldName(propertyName, reverse), fieldType.getSortType(), reverse);
+    }
+
+    static String getFieldName(String propertyName) {
+        return Entity.KEY_RESERVED_PROPERTY.equals(propertyName) ? QueryConverter.KEY_PATH_PROPERTY_KEY : propertyName;
     }
 }
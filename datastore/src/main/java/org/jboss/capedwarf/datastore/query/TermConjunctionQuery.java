@@ -0,0 +1,229 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.ComplexExplanation;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Constant score conjunction of terms, evaluated as a zig-zag merge join.
+ * <p/>
+ * The term with the fewest documents drives the join, all other posting lists
+ * just skip to the driver's candidate documents, so a selective term makes the whole query cheap.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+public class TermConjunctionQuery extends Query {
+
+    private final List<Term> terms;
+
+    public TermConjunctionQuery(List<Term> terms) {
+        if (terms.isEmpty())
+            throw new IllegalArgumentException("No terms to join.");
+        this.terms = new ArrayList<Term>(terms);
+    }
+
+    public List<Term> getTerms() {
+        return Collections.unmodifiableList(terms);
+    }
+
+    @Override
+    public Weight createWeight(Searcher searcher) throws IOException {
+        return new ConjunctionWeight();
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+        terms.addAll(this.terms);
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder builder = new StringBuilder("+(");
+        for (int i = 0; i < terms.size(); i++) {
+            if (i > 0)
+                builder.append(" & ");
+            builder.append(terms.get(i));
+        }
+        return builder.append(")").toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o instanceof TermConjunctionQuery == false)
+            return false;
+        TermConjunctionQuery other = (TermConjunctionQuery) o;
+        return getBoost() == other.getBoost() && terms.equals(other.terms);
+    }
+
+    @Override
+    public int hashCode() {
+        return Float.floatToIntBits(getBoost()) ^ terms.hashCode();
+    }
+
+    private class ConjunctionWeight extends Weight {
+        private float queryNorm;
+        private float queryWeight;
+
+        @Override
+        public Query getQuery() {
+            return TermConjunctionQuery.this;
+        }
+
+        @Override
+        public float getValue() {
+            return queryWeight;
+        }
+
+        @Override
+        public float sumOfSquaredWeights() {
+            queryWeight = getBoost();
+            return queryWeight * queryWeight;
+        }
+
+        @Override
+        public void normalize(float norm) {
+            queryNorm = norm;
+            queryWeight *= queryNorm;
+        }
+
+        @Override
+        public Scorer scorer(final IndexReader reader, boolean scoreDocsInOrder, boolean topScorer) throws IOException {
+            final int[] docFreqs = new int[terms.size()];
+            Integer[] order = new Integer[terms.size()];
+            for (int i = 0; i < docFreqs.length; i++) {
+                docFreqs[i] = reader.docFreq(terms.get(i));
+                if (docFreqs[i] == 0)
+                    return null; // nothing can match in this segment
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer i1, Integer i2) {
+                    return docFreqs[i1] - docFreqs[i2];
+                }
+            });
+
+            TermDocs[] termDocs = new TermDocs[order.length];
+            for (int i = 0; i < order.length; i++)
+                termDocs[i] = reader.termDocs(terms.get(order[i]));
+            return new ZigZagScorer(this, termDocs, queryWeight);
+        }
+
+        @Override
+        public Explanation explain(IndexReader reader, int doc) throws IOException {
+            Scorer scorer = scorer(reader, true, false);
+            boolean match = scorer != null && scorer.advance(doc) == doc;
+            ComplexExplanation explanation = new ComplexExplanation(match, match ? queryWeight : 0f, toString());
+            if (match) {
+                explanation.addDetail(new Explanation(getBoost(), "boost"));
+                explanation.addDetail(new Explanation(queryNorm, "queryNorm"));
+            }
+            return explanation;
+        }
+    }
+
+    /**
+     * Posting lists ordered by document frequency; the first one drives.
+     */
+    private static class ZigZagScorer extends Scorer {
+        private final TermDocs[] termDocs;
+        private final int[] positions;
+        private final float score;
+        private int doc = -1;
+
+        private ZigZagScorer(Weight weight, TermDocs[] termDocs, float score) {
+            super(weight);
+            this.termDocs = termDocs;
+            this.positions = new int[termDocs.length];
+            Arrays.fill(positions, -1);
+            this.score = score;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            if (doc == NO_MORE_DOCS)
+                return doc;
+            return doc = termDocs[0].next() ? align(termDocs[0].doc()) : NO_MORE_DOCS;
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            if (doc == NO_MORE_DOCS)
+                return doc;
+            return doc = termDocs[0].skipTo(target) ? align(termDocs[0].doc()) : NO_MORE_DOCS;
+        }
+
+        @Override
+        public float score() {
+            return score;
+        }
+
+        /**
+         * Zig-zag until all posting lists agree on a document.
+         */
+        private int align(int candidate) throws IOException {
+            TermDocs driver = termDocs[0];
+            int i = 1;
+            while (i < termDocs.length) {
+                if (positions[i] < candidate) {
+                    if (termDocs[i].skipTo(candidate) == false)
+                        return NO_MORE_DOCS;
+                    positions[i] = termDocs[i].doc();
+                }
+                if (positions[i] > candidate) {
+                    if (driver.skipTo(positions[i]) == false)
+                        return NO_MORE_DOCS;
+                    candidate = driver.doc();
+                    i = 1;
+                } else {
+                    i++;
+                }
+            }
+            return candidate;
+        }
+    }
+}
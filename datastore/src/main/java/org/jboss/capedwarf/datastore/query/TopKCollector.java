@@ -0,0 +1,166 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.capedwarf.datastore.query;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldComparator;
+import org.apache.lucene.search.FieldValueHitQueue;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects the first K hits in sort order into a fixed size heap.
+ * <p/>
+ * Sort values are read through lucene's field comparators, which compare primitive
+ * field cache values (long[], double[], string ords) directly, so no per-hit objects are created.
+ * Once the heap is full, a hit is rejected by a single comparison with the heap's bottom;
+ * documents are collected in index order, so a hit tied with the bottom is never competitive.
+ * <p/>
+ * The collector counts matched hits and hits that actually entered the heap.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+class TopKCollector extends Collector {
+
+    private final int numHits;
+    private final FieldValueHitQueue<FieldValueHitQueue.Entry> queue;
+    private final FieldComparator[] comparators;
+    private final int[] reverseMul;
+    private FieldValueHitQueue.Entry bottom;
+    private int docBase;
+    private int matched;
+    private int collected;
+
+    TopKCollector(Sort sort, int numHits) throws IOException {
+        if (numHits <= 0)
+            throw new IllegalArgumentException("Number of hits must be positive: " + numHits);
+        this.numHits = numHits;
+        this.queue = FieldValueHitQueue.create(sort.getSort(), numHits);
+        this.comparators = queue.getComparators();
+        this.reverseMul = queue.getReverseMul();
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+        for (FieldComparator comparator : comparators)
+            comparator.setScorer(scorer);
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        matched++;
+        if (queue.size() < numHits) {
+            int slot = queue.size();
+            for (FieldComparator comparator : comparators)
+                comparator.copy(slot, doc);
+            bottom = queue.add(new FieldValueHitQueue.Entry(slot, docBase + doc, Float.NaN));
+            if (queue.size() == numHits)
+                setBottom();
+        } else if (isCompetitive(doc)) {
+            for (FieldComparator comparator : comparators)
+                comparator.copy(bottom.slot, doc);
+            bottom.doc = docBase + doc;
+            bottom = queue.updateTop();
+            setBottom();
+        } else {
+            return;
+        }
+        collected++;
+    }
+
+    private boolean isCompetitive(int doc) throws IOException {
+        for (int i = 0; i < comparators.length; i++) {
+            int c = reverseMul[i] * comparators[i].compareBottom(doc);
+            if (c != 0)
+                return c > 0;
+        }
+        return false;
+    }
+
+    private void setBottom() {
+        for (FieldComparator comparator : comparators)
+            comparator.setBottom(bottom.slot);
+    }
+
+    @Override
+    public void setNextReader(IndexReader reader, int docBase) throws IOException {
+        this.docBase = docBase;
+        for (FieldComparator comparator : comparators)
+            comparator.setNextReader(reader, docBase);
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return false;
+    }
+
+    /**
+     * Get collected hits, best first, skipping the given number of them. Empties the heap.
+     *
+     * @param reader      the reader searched
+     * @param firstResult number of leading hits to skip
+     * @return hits with their sort values
+     * @throws IOException for any I/O error
+     */
+    public List<IndexHit> getHits(IndexReader reader, int firstResult) throws IOException {
+        int size = queue.size();
+        if (size <= firstResult)
+            return Collections.emptyList();
+
+        IndexHit[] hits = new IndexHit[size - firstResult];
+        for (int i = size - 1; i >= 0; i--) {
+            FieldValueHitQueue.Entry entry = queue.pop();
+            if (i < firstResult)
+                break;
+
+            Object[] sortValues = new Object[comparators.length];
+            for (int j = 0; j < comparators.length; j++)
+                sortValues[j] = comparators[j].value(entry.slot);
+            hits[i - firstResult] = new IndexHit(IndexQuery.readKey(reader, entry.doc), sortValues);
+        }
+        return new ArrayList<IndexHit>(Arrays.asList(hits));
+    }
+
+    /**
+     * @return number of hits matching the query
+     */
+    public int getMatched() {
+        return matched;
+    }
+
+    /**
+     * @return number of hits that entered the heap; at least min(K, matched), at most matched
+     */
+    public int getCollected() {
+        return collected;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.capedwarf.datastore.test;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyRange;
+import org.jboss.arquillian.junit.Arquillian;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+@RunWith(Arquillian.class)
+public class AllocateIdsTestCase extends AbstractTest {
+
+    @Test
+    public void allocateIdsReturnsRangeOfRequestedSize() throws Exception {
+        KeyRange range = service.allocateIds("KIND", 10);
+        assertEquals(10, range.getSize());
+        assertEquals("KIND", range.getKind());
+    }
+
+    @Test
+    public void allocatedRangesDoNotOverlap() throws Exception {
+        KeyRange first = service.allocateIds("KIND", 10);
+        KeyRange second = service.allocateIds("KIND", 10);
+        assertTrue(first.getEnd().getId() < second.getStart().getId()
+                || second.getEnd().getId() < first.getStart().getId());
+    }
+
+    @Test
+    public void putNeverReusesAllocatedIds() throws Exception {
+        KeyRange range = service.allocateIds("KIND", 10);
+        Key key = service.put(new Entity("KIND"));
+        assertTrue(key.getId() < range.getStart().getId() || key.getId() > range.getEnd().getId());
+    }
+
+    @Test
+    public void allocateIdRangeReportsCollision() throws Exception {
+        Key key = service.put(new Entity("KIND"));
+        KeyRange range = new KeyRange(null, "KIND", key.getId(), key.getId());
+        assertEquals(DatastoreService.KeyRangeState.COLLISION, service.allocateIdRange(range));
+    }
+
+    @Test
+    public void allocateIdRangeReportsEmptyRangeBeyondAllocatedIds() throws Exception {
+        Key key = service.put(new Entity("KIND"));
+        long start = key.getId() + 1000000;
+        KeyRange range = new KeyRange(null, "KIND", start, start + 10);
+        assertEquals(DatastoreService.KeyRangeState.EMPTY, service.allocateIdRange(range));
+
+        Key next = service.put(new Entity("KIND"));
+        assertTrue(next.getId() < range.getStart().getId() || next.getId() > range.getEnd().getId());
+    }
+
+    @Test
+    public void allocateIdRangeIgnoresDescendantsOfRangeKeys() throws Exception {
+        Key parent = service.put(new Entity("KIND"));
+        long start = parent.getId() + 1000000;
+        service.put(new Entity("KIND", "child", KeyFactory.createKey("KIND", start)));
+
+        KeyRange range = new KeyRange(null, "KIND", start, start + 10);
+        assertEquals(DatastoreService.KeyRangeState.EMPTY, service.allocateIdRange(range));
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.capedwarf.datastore.test;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import org.jboss.arquillian.junit.Arquillian;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaults;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+@RunWith(Arquillian.class)
+public class AsyncDatastoreServiceTestCase extends AbstractTest {
+
+    private AsyncDatastoreService asyncService;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+        asyncService = DatastoreServiceFactory.getAsyncDatastoreService();
+    }
+
+    @Test
+    public void putStoresEntity() throws Exception {
+        Entity entity = createTestEntity();
+        Key key = asyncService.put(entity).get();
+        assertEquals(entity.getKey(), key);
+        assertStoreContains(entity);
+    }
+
+    @Test
+    public void putStoresAllGivenEntities() throws Exception {
+        Collection<Entity> entities = createTestEntities();
+        List<Key> keys = asyncService.put(entities).get();
+        assertEquals(extractKeys(entities), keys);
+        assertStoreContainsAll(entities);
+    }
+
+    @Test
+    public void putAssignsIdToIncompleteKey() throws Exception {
+        Entity entity = new Entity("KIND");
+        Key key = asyncService.put(entity).get();
+        assertTrue(key.isComplete());
+        assertStoreContains(entity);
+    }
+
+    @Test
+    public void getReturnsStoredEntity() throws Exception {
+        Entity entity = createTestEntity();
+        service.put(entity);
+        assertEquals(entity, asyncService.get(entity.getKey()).get());
+    }
+
+    @Test
+    public void getThrowsNotFoundExceptionWhenKeyIsNotFound() throws Exception {
+        Key nonExistingKey = KeyFactory.createKey("NonExistingKey", 1);
+        try {
+            asyncService.get(nonExistingKey).get();
+            fail("Expected EntityNotFoundException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof EntityNotFoundException);
+        }
+    }
+
+    @Test
+    public void getSkipsMissingKeys() throws Exception {
+        Entity entity = createTestEntity();
+        service.put(entity);
+        Key nonExistingKey = KeyFactory.createKey("NonExistingKey", 1);
+
+        Map<Key, Entity> result = asyncService.get(Arrays.asList(entity.getKey(), nonExistingKey)).get();
+        assertEquals(1, result.size());
+        assertEquals(entity, result.get(entity.getKey()));
+        assertFalse(result.containsKey(nonExistingKey));
+    }
+
+    @Test
+    public void deleteRemovesAllGivenEntities() throws Exception {
+        Collection<Entity> entities = createTestEntities();
+        Collection<Key> keys = extractKeys(entities);
+        service.put(entities);
+
+        asyncService.delete(keys).get();
+        assertStoreDoesNotContain(keys);
+    }
+
+    @Test
+    public void queryAfterPutSeesEntity() throws Exception {
+        Entity entity = new Entity("AsyncIndexed");
+        entity.setProperty("prop", "value");
+        asyncService.put(entity).get();
+
+        Query query = new Query("AsyncIndexed").addFilter("prop", Query.FilterOperator.EQUAL, "value");
+        assertEquals(entity, service.prepare(query).asSingleEntity());
+    }
+
+    @Test
+    public void queryAfterDeleteDoesNotSeeEntity() throws Exception {
+        Entity entity = new Entity("AsyncIndexed");
+        entity.setProperty("prop", "value");
+        service.put(entity);
+
+        asyncService.delete(entity.getKey()).get();
+        assertEquals(0, service.prepare(new Query("AsyncIndexed")).countEntities(withDefaults()));
+    }
+
+    @Test
+    public void putInRolledBackTransactionIsDiscarded() throws Exception {
+        Entity entity = createTestEntity();
+        Transaction tx = asyncService.beginTransaction().get();
+        asyncService.put(tx, entity).get();
+        tx.rollback();
+
+        assertStoreDoesNotContain(entity);
+    }
+
+    @Test
+    public void putInCommittedTransactionIsStored() throws Exception {
+        Entity entity = createTestEntity();
+        Transaction tx = asyncService.beginTransaction().get();
+        asyncService.put(tx, entity).get();
+        tx.commit();
+
+        assertStoreContains(entity);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonCurrentTransactionIsRejected() throws Exception {
+        Transaction outer = asyncService.beginTransaction().get();
+        Transaction inner = asyncService.beginTransaction().get();
+        try {
+            asyncService.put(outer, createTestEntity());
+        } finally {
+            inner.rollback();
+            outer.rollback();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.test.capedwarf.datastore.test;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Query;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.capedwarf.datastore.JBossDatastoreService;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.StringAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaults;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Queries answered by walking a composite index.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+@RunWith(Arquillian.class)
+public class CompositeIndexQueryTestCase {
+
+    private static final String XML = "<datastore-indexes autoGenerate=\"true\">" +
+            "    <datastore-index kind=\"Person\" ancestor=\"false\">" +
+            "        <property name=\"lastName\" direction=\"asc\" />" +
+            "        <property name=\"age\" direction=\"desc\" />" +
+            "    </datastore-index>" +
+            "</datastore-indexes>";
+
+    private static final long SERVING_TIMEOUT = 30000;
+
+    private DatastoreService service;
+    private String originalNamespace;
+
+    @Deployment
+    public static Archive getDeployment() {
+        return ShrinkWrap.create(JavaArchive.class)
+                .addAsResource(new StringAsset(XML), "datastore-indexes.xml")
+                .addAsManifestResource("jboss/jboss-deployment-structure.xml", "jboss-deployment-structure.xml");
+    }
+
+    @Before
+    public void setUp() {
+        service = DatastoreServiceFactory.getDatastoreService();
+        originalNamespace = NamespaceManager.get();
+        awaitServing();
+    }
+
+    @After
+    public void tearDown() {
+        NamespaceManager.set(originalNamespace);
+        ((JBossDatastoreService) service).clearCache();
+    }
+
+    @Test
+    public void testIndexWalkStaysWithinNamespace() throws Exception {
+        NamespaceManager.set("one");
+        Entity older = storePerson(1, "Smith", 40L);
+        Entity younger = storePerson(2, "Smith", 20L);
+
+        NamespaceManager.set("two");
+        Entity other = storePerson(3, "Smith", 30L);
+
+        Query query = new Query("Person")
+                .addFilter("lastName", Query.FilterOperator.EQUAL, "Smith")
+                .addSort("age", Query.SortDirection.DESCENDING);
+
+        NamespaceManager.set("one");
+        assertEquals(Arrays.asList(older, younger), service.prepare(query).asList(withDefaults()));
+
+        NamespaceManager.set("two");
+        assertEquals(Arrays.asList(other), service.prepare(query).asList(withDefaults()));
+    }
+
+    private Entity storePerson(int id, String lastName, long age) {
+        Entity person = new Entity("Person", id);
+        person.setProperty("lastName", lastName);
+        person.setProperty("age", age);
+        service.put(person);
+        return person;
+    }
+
+    private void awaitServing() {
+        long deadline = System.currentTimeMillis() + SERVING_TIMEOUT;
+        while (true) {
+            Map<Index, Index.IndexState> states = service.getIndexes();
+            if (states.isEmpty() == false && states.values().iterator().next() == Index.IndexState.SERVING)
+                return;
+            if (System.currentTimeMillis() > deadline)
+                fail("Composite index is not serving: " + states);
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("Interrupted");
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.test.capedwarf.datastore.test;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.capedwarf.datastore.query.CompositeIndex;
+import org.jboss.capedwarf.datastore.query.DatastoreIndexesParser;
+import org.jboss.capedwarf.datastore.query.KeyFieldBridge;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+@RunWith(Arquillian.class)
+public class CompositeIndexTestCase {
+
+    private static final String XML = "<datastore-indexes autoGenerate=\"true\">" +
+            "    <datastore-index kind=\"Person\" ancestor=\"false\">" +
+            "        <property name=\"lastName\" direction=\"asc\" />" +
+            "        <property name=\"age\" direction=\"desc\" />" +
+            "    </datastore-index>" +
+            "    <datastore-index kind=\"Person\" ancestor=\"true\">" +
+            "        <property name=\"age\" />" +
+            "    </datastore-index>" +
+            "</datastore-indexes>";
+
+    @Deployment
+    public static Archive getDeployment() {
+        return ShrinkWrap.create(JavaArchive.class)
+                .addAsManifestResource("jboss/jboss-deployment-structure.xml", "jboss-deployment-structure.xml");
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        List<CompositeIndex> indexes = parse();
+        assertEquals(2, indexes.size());
+        assertEquals("Person", indexes.get(0).getKind());
+        assertFalse(indexes.get(0).getId() == indexes.get(1).getId());
+    }
+
+    @Test
+    public void testIdDependsOnDefinitionOnly() throws Exception {
+        List<CompositeIndex> indexes = parse();
+        CompositeIndex first = indexes.get(0);
+        CompositeIndex same = new CompositeIndex("Person", false, Arrays.asList(
+                new Query.SortPredicate("lastName", Query.SortDirection.ASCENDING),
+                new Query.SortPredicate("age", Query.SortDirection.DESCENDING)));
+        CompositeIndex otherDirection = new CompositeIndex("Person", false, Arrays.asList(
+                new Query.SortPredicate("lastName", Query.SortDirection.ASCENDING),
+                new Query.SortPredicate("age", Query.SortDirection.ASCENDING)));
+
+        assertEquals(first.getId(), same.getId());
+        assertEquals(first.getFieldName(), same.getFieldName());
+        assertFalse(first.getId() == otherDirection.getId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExplodingEntityIsRefused() throws Exception {
+        List<Long> ages = new ArrayList<Long>();
+        List<String> lastNames = new ArrayList<String>();
+        for (int i = 0; i < 40; i++) {
+            ages.add((long) i);
+            lastNames.add("Smith" + i);
+        }
+        Entity entity = new Entity("Person", 1);
+        entity.setProperty("lastName", lastNames);
+        entity.setProperty("age", ages);
+        parse().get(0).checkRows(entity);
+    }
+
+    @Test
+    public void testMatches() throws Exception {
+        CompositeIndex index = parse().get(0);
+
+        assertTrue(index.matches(new Query("Person")
+                .addFilter("lastName", Query.FilterOperator.EQUAL, "Smith")
+                .addSort("age", Query.SortDirection.DESCENDING)));
+        assertTrue(index.matches(new Query("Person")
+                .addSort("lastName")
+                .addSort("age", Query.SortDirection.DESCENDING)));
+
+        assertFalse(index.matches(new Query("Person")
+                .addFilter("lastName", Query.FilterOperator.EQUAL, "Smith")
+                .addSort("age")));
+        assertFalse(index.matches(new Query("Person")
+                .addFilter("lastName", Query.FilterOperator.GREATER_THAN, "Smith")
+                .addSort("age", Query.SortDirection.DESCENDING)));
+        assertFalse(index.matches(new Query("Animal")
+                .addSort("lastName")
+                .addSort("age", Query.SortDirection.DESCENDING)));
+        assertFalse(parse().get(1).matches(new Query("Person").addSort("age")));
+    }
+
+    @Test
+    public void testTermsSortInIndexOrder() throws Exception {
+        CompositeIndex index = parse().get(0);
+
+        String smith30 = term(index, "Smith", 30L);
+        String smith5 = term(index, "Smith", 5L);
+        String smithNegative = term(index, "Smith", -5L);
+        String smithson = term(index, "Smithson", 50L);
+
+        assertTrue(smith30.compareTo(smith5) < 0);
+        assertTrue(smith5.compareTo(smithNegative) < 0);
+        assertTrue(smithNegative.compareTo(smithson) < 0);
+
+        Query query = new Query("Person")
+                .addFilter("lastName", Query.FilterOperator.EQUAL, "Smith")
+                .addSort("age", Query.SortDirection.DESCENDING);
+        String prefix = index.getPrefix(query, KeyFieldBridge.toNamespacePrefix(KeyFactory.createKey("Person", 1)));
+        assertTrue(smith30.startsWith(prefix));
+        assertTrue(smithNegative.startsWith(prefix));
+        assertFalse(smithson.startsWith(prefix));
+    }
+
+    @Test
+    public void testTermsOfOtherNamespaceDoNotShareThePrefix() throws Exception {
+        CompositeIndex index = parse().get(0);
+        String originalNamespace = NamespaceManager.get();
+        try {
+            NamespaceManager.set("one");
+            String one = term(index, "Smith", 30L);
+            String prefix = index.getPrefix(new Query("Person")
+                    .addFilter("lastName", Query.FilterOperator.EQUAL, "Smith")
+                    .addSort("age", Query.SortDirection.DESCENDING),
+                    KeyFieldBridge.toNamespacePrefix(KeyFactory.createKey("Person", 1)));
+
+            NamespaceManager.set("two");
+            String two = term(index, "Smith", 30L);
+
+            assertTrue(one.startsWith(prefix));
+            assertFalse(two.startsWith(prefix));
+        } finally {
+            NamespaceManager.set(originalNamespace);
+        }
+    }
+
+    @Test
+    public void testEntityWithoutIndexedPropertyIsNotInIndex() throws Exception {
+        Entity entity = new Entity("Person");
+        entity.setProperty("lastName", "Smith");
+        assertTrue(parse().get(0).getTerms(entity).isEmpty());
+    }
+
+    private static String term(CompositeIndex index, String lastName, long age) {
+        Entity entity = new Entity("Person", 1);
+        entity.setProperty("lastName", lastName);
+        entity.setProperty("age", age);
+        List<String> terms = index.getTerms(entity);
+        assertEquals(1, terms.size());
+        return terms.get(0);
+    }
+
+    private static List<CompositeIndex> parse() throws Exception {
+        return DatastoreIndexesParser.parse(new ByteArrayInputStream(XML.getBytes()));
+    }
+}
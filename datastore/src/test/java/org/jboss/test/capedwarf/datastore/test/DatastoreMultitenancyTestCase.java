@@ -27,8 +27,10 @@ package org.jboss.test.capedwarf.datastore.test;
 import com.google.appengine.api.NamespaceManager;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.capedwarf.datastore.query.GAEKeyTransformer;
 import org.junit.After;
@@ -36,6 +38,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.Arrays;
+
 import static org.junit.Assert.*;
 
 /**
@@ -114,4 +118,25 @@ public class DatastoreMultitenancyTestCase extends AbstractTest {
         NamespaceManager.set("one");
         assertEquals(entity1, service.get(key1));
     }
+
+    @Test
+    public void testKeyQueriesStayWithinNamespace() throws Exception {
+        NamespaceManager.set("one");
+        Entity parent1 = new Entity("Test", 1);
+        Entity child1 = new Entity("Test", 2, parent1.getKey());
+        service.put(Arrays.asList(parent1, child1));
+
+        NamespaceManager.set("two");
+        Entity parent2 = new Entity("Test", 1);
+        Entity child2 = new Entity("Test", 2, parent2.getKey());
+        service.put(Arrays.asList(parent2, child2));
+
+        Query ancestorQuery = new Query("Test", parent1.getKey()).addSort(Entity.KEY_RESERVED_PROPERTY);
+        assertEquals(Arrays.asList(parent1, child1), service.prepare(ancestorQuery).asList(FetchOptions.Builder.withDefaults()));
+
+        Query keyQuery = new Query("Test")
+                .addFilter(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.LESS_THAN_OR_EQUAL, parent2.getKey())
+                .addSort(Entity.KEY_RESERVED_PROPERTY);
+        assertEquals(Arrays.asList(parent2), service.prepare(keyQuery).asList(FetchOptions.Builder.withDefaults()));
+    }
 }
@@ -0,0 +1,205 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.test.capedwarf.datastore.test;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Category;
+import com.google.appengine.api.datastore.Email;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.IMHandle;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.PhoneNumber;
+import com.google.appengine.api.datastore.PostalAddress;
+import com.google.appengine.api.datastore.Rating;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.users.User;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.capedwarf.datastore.marshall.EntityExternalizer;
+import org.jboss.capedwarf.datastore.marshall.KeyExternalizer;
+import org.jboss.capedwarf.datastore.marshall.NameDictionary;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+@RunWith(Arquillian.class)
+public class EntityExternalizerTestCase {
+
+    private EntityExternalizer externalizer = new EntityExternalizer();
+
+    @Deployment
+    public static Archive getDeployment() {
+        return ShrinkWrap.create(JavaArchive.class)
+                .addAsManifestResource("jboss/jboss-deployment-structure.xml", "jboss-deployment-structure.xml");
+    }
+
+    @Test
+    public void testAllPropertyTypes() throws Exception {
+        Key parent = KeyFactory.createKey("Parent", "parentName");
+        Entity entity = new Entity("Test", 42, parent);
+        entity.setProperty("string", "foo");
+        entity.setProperty("long", -123456789L);
+        entity.setProperty("integer", 7);
+        entity.setProperty("short", (short) -3);
+        entity.setProperty("byte", (byte) 5);
+        entity.setProperty("double", 3.14);
+        entity.setProperty("float", 2.5f);
+        entity.setProperty("boolean", true);
+        entity.setProperty("date", new Date(1234567890L));
+        entity.setProperty("key", KeyFactory.createKey(parent, "Child", 3));
+        entity.setProperty("text", new Text("some text"));
+        entity.setProperty("blob", new Blob(new byte[]{1, -2, 3}));
+        entity.setProperty("shortBlob", new ShortBlob(new byte[]{-1, 0, 1}));
+        entity.setProperty("geoPt", new GeoPt(45.5f, -13.25f));
+        entity.setProperty("user", new User("someone@example.com", "example.com", "12345"));
+        entity.setProperty("category", new Category("cat"));
+        entity.setProperty("email", new Email("someone@example.com"));
+        entity.setProperty("link", new Link("http://example.com"));
+        entity.setProperty("phoneNumber", new PhoneNumber("+1 555 1234"));
+        entity.setProperty("postalAddress", new PostalAddress("Some Street 1"));
+        entity.setProperty("rating", new Rating(55));
+        entity.setProperty("imHandle", new IMHandle(IMHandle.Scheme.xmpp, "someone@example.com"));
+        entity.setProperty("urlImHandle", new IMHandle(new URL("http://example.com"), "someone"));
+        entity.setProperty("blobKey", new BlobKey("blobKey"));
+        entity.setProperty("list", Arrays.asList("a", 1L, null));
+        entity.setProperty("null", null);
+        entity.setUnindexedProperty("unindexed", "bar");
+
+        Entity copy = roundTrip(entity);
+        assertEquals(entity.getKey(), copy.getKey());
+        assertEquals(entity.getProperties(), copy.getProperties());
+        assertTrue(copy.isUnindexedProperty("unindexed"));
+        assertFalse(copy.isUnindexedProperty("string"));
+    }
+
+    @Test
+    public void testIncompleteKey() throws Exception {
+        Entity entity = new Entity("Test");
+        Entity copy = roundTrip(entity);
+        assertEquals("Test", copy.getKey().getKind());
+        assertFalse(copy.getKey().isComplete());
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        Key key = KeyFactory.createKey(KeyFactory.createKey("Parent", 1), "Child", "name");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        new KeyExternalizer().writeObject(output, key);
+        output.close();
+
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(key, new KeyExternalizer().readObject(input));
+    }
+
+    @Test
+    public void testNamesReadBackAreShared() throws Exception {
+        Entity copy1 = roundTrip(new Entity(new String("Shared"), 1));
+        Entity copy2 = roundTrip(new Entity(new String("Shared"), 2));
+        assertSame(copy1.getKey().getKind(), copy2.getKey().getKind());
+    }
+
+    @Test
+    public void testSmallerThanJavaSerialization() throws Exception {
+        Entity entity = new Entity("Person", 1);
+        entity.setProperty("firstName", "John");
+        entity.setProperty("lastName", "Doe");
+        entity.setProperty("age", 42L);
+        entity.setProperty("friend", KeyFactory.createKey("Person", 2));
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(serialized);
+        output.writeObject(entity);
+        output.close();
+
+        assertTrue(write(entity).length < serialized.size() / 2);
+    }
+
+    @Test
+    public void testUnregisteredNamesAreWrittenInline() throws Exception {
+        Entity entity = new Entity("NeverStored", 1);
+        entity.setProperty("neverStoredProperty", "foo");
+
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(write(entity, false)));
+        Entity copy = externalizer.readObject(input);
+        assertEquals(entity.getKey(), copy.getKey());
+        assertEquals(entity.getProperties(), copy.getProperties());
+    }
+
+    @Test
+    public void testRegisteredNamesAreShorter() throws Exception {
+        Entity entity = new Entity("RegisteredLater", 1);
+        entity.setProperty("registeredLaterProperty", "foo");
+        int inline = write(entity, false).length;
+        int registered = write(entity).length;
+        assertTrue(registered < inline);
+    }
+
+    private Entity roundTrip(Entity entity) throws Exception {
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(write(entity)));
+        return externalizer.readObject(input);
+    }
+
+    /**
+     * Names are registered like when the entity is stored.
+     */
+    private byte[] write(Entity entity) throws Exception {
+        return write(entity, true);
+    }
+
+    private byte[] write(Entity entity, boolean register) throws Exception {
+        if (register)
+            NameDictionary.register(entity);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        externalizer.writeObject(output, entity);
+        output.close();
+        return bytes.toByteArray();
+    }
+}
@@ -30,11 +30,19 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaults;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withOffset;
 import static com.google.appengine.api.datastore.Query.FilterOperator.EQUAL;
 import static org.junit.Assert.*;
 
@@ -72,6 +80,50 @@ public class PreparedQueryTestCase extends QueryTestCase {
         assertEquals("number of results", 1, preparedQuery.countEntities(withDefaults()));
     }
 
+    @Test
+    public void testCountEntitiesHonorsLimitAndOffset() throws Exception {
+        createEntity("Person", 2).withProperty("name", "John").store();
+        createEntity("Person", 3).withProperty("name", "John").store();
+
+        assertEquals("number of results", 3, preparedQuery.countEntities(withDefaults()));
+        assertEquals("number of results", 2, preparedQuery.countEntities(withLimit(2)));
+        assertEquals("number of results", 1, preparedQuery.countEntities(withOffset(2)));
+        assertEquals("number of results", 0, preparedQuery.countEntities(withOffset(5)));
+    }
+
+    @Test
+    public void testPreparedQueryCanBeRunWithDifferentFetchOptions() throws Exception {
+        Entity jack = createEntity("Person", 2).withProperty("name", "John").store();
+
+        assertEquals(Arrays.asList(john, jack), preparedQuery.asList(withDefaults()));
+        assertEquals(Collections.singletonList(john), preparedQuery.asList(withLimit(1)));
+        assertEquals(Collections.singletonList(jack), preparedQuery.asList(withOffset(1)));
+        assertEquals(Arrays.asList(john, jack), preparedQuery.asList(withDefaults()));
+    }
+
+    @Test
+    public void testPreparedQueryCanBeRunConcurrently() throws Exception {
+        createEntity("Person", 2).withProperty("name", "John").store();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 20; i++) {
+                final FetchOptions fetchOptions = (i % 2 == 0) ? withLimit(1) : withDefaults();
+                futures.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        return preparedQuery.asList(fetchOptions).size();
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals("number of results", (i % 2 == 0) ? 1 : 2, futures.get(i).get().intValue());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Test
     public void testAsIteratorWithOptionstestCountEntities() throws Exception {
         Iterator<Entity> iterator = preparedQuery.asIterator();
@@ -0,0 +1,153 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.test.capedwarf.datastore.test;
+
+import com.google.appengine.api.datastore.ShortBlob;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.capedwarf.datastore.query.PropertyMapBridge;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.sql.Timestamp;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+@RunWith(Arquillian.class)
+public class PropertyMapBridgeTestCase {
+
+    @Deployment
+    public static Archive getDeployment() {
+        return ShrinkWrap.create(JavaArchive.class)
+                .addAsManifestResource("jboss/jboss-deployment-structure.xml", "jboss-deployment-structure.xml");
+    }
+
+    @Test
+    public void testShortBlobIsEncodedAsUnsignedHex() throws Exception {
+        ShortBlob blob = new ShortBlob(new byte[]{0, 1, 0x0f, 0x10, 0x7f, (byte) 0x80, (byte) 0xfe, -1});
+        assertEquals("00010f107f80feff", PropertyMapBridge.SHORT_BLOB_BRIDGE.objectToString(blob));
+    }
+
+    @Test
+    public void testShortBlobEncodingPreservesUnsignedOrder() throws Exception {
+        String low = PropertyMapBridge.SHORT_BLOB_BRIDGE.objectToString(new ShortBlob(new byte[]{0x7f}));
+        String high = PropertyMapBridge.SHORT_BLOB_BRIDGE.objectToString(new ShortBlob(new byte[]{(byte) 0x80}));
+        assertTrue(low.compareTo(high) < 0);
+    }
+
+    @Test
+    public void testLargeShortBlobsAreEncodedWhole() throws Exception {
+        byte[] bytes = new byte[1024];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) i;
+        String hex = PropertyMapBridge.SHORT_BLOB_BRIDGE.objectToString(new ShortBlob(bytes));
+        assertEquals(2048, hex.length());
+        assertEquals("ff00", hex.substring(510, 514));
+
+        // reused buffer must not leak a longer previous result
+        assertEquals("ab", PropertyMapBridge.SHORT_BLOB_BRIDGE.objectToString(new ShortBlob(new byte[]{(byte) 0xab})));
+    }
+
+    @Test
+    public void testSubclassesUseBridgeOfTheirSuperclass() throws Exception {
+        PropertyMapBridge bridge = new PropertyMapBridge();
+        long time = 1234567890L;
+        assertEquals(bridge.convertToString(new Date(time)), bridge.convertToString(new Timestamp(time)));
+    }
+
+    @Test
+    public void testRegisteredBridgeIsUsedForCustomType() throws Exception {
+        try {
+            PropertyMapBridge.registerBridge(Temperature.class, new PropertyMapBridge.ObjectToStringFieldBridge() {
+                public String objectToString(Object object) {
+                    return ((Temperature) object).celsius + "C";
+                }
+            });
+            assertEquals("21C", new PropertyMapBridge().convertToString(new Temperature(21)));
+        } finally {
+            PropertyMapBridge.release(Temperature.class.getClassLoader());
+        }
+    }
+
+    @Test
+    public void testLaterRegistrationReplacesResolvedBridge() throws Exception {
+        try {
+            PropertyMapBridge.registerBridge(Temperature.class, new PropertyMapBridge.ObjectToStringFieldBridge() {
+                public String objectToString(Object object) {
+                    return ((Temperature) object).celsius + "C";
+                }
+            });
+            PropertyMapBridge bridge = new PropertyMapBridge();
+            assertEquals("40C", bridge.convertToString(new HotTemperature(40)));
+
+            PropertyMapBridge.registerBridge(HotTemperature.class, new PropertyMapBridge.ObjectToStringFieldBridge() {
+                public String objectToString(Object object) {
+                    return ((Temperature) object).celsius + "C!";
+                }
+            });
+            assertEquals("40C!", bridge.convertToString(new HotTemperature(40)));
+        } finally {
+            PropertyMapBridge.release(Temperature.class.getClassLoader());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleasedBridgesAreDropped() throws Exception {
+        PropertyMapBridge.registerBridge(Temperature.class, new PropertyMapBridge.ObjectToStringFieldBridge() {
+            public String objectToString(Object object) {
+                return ((Temperature) object).celsius + "C";
+            }
+        });
+        PropertyMapBridge.release(Temperature.class.getClassLoader());
+        new PropertyMapBridge().convertToString(new Temperature(21));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedTypeIsRejected() throws Exception {
+        new PropertyMapBridge().convertToString(new Object());
+    }
+
+    private static class Temperature {
+        private final int celsius;
+
+        private Temperature(int celsius) {
+            this.celsius = celsius;
+        }
+    }
+
+    private static class HotTemperature extends Temperature {
+        private HotTemperature(int celsius) {
+            super(celsius);
+        }
+    }
+}
@@ -25,15 +25,28 @@
 package org.jboss.test.capedwarf.datastore.test;
 
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
 import org.jboss.arquillian.junit.Arquillian;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaults;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withOffset;
 import static com.google.appengine.api.datastore.Query.FilterOperator.EQUAL;
+import static com.google.appengine.api.datastore.Query.FilterOperator.IN;
+import static com.google.appengine.api.datastore.Query.FilterOperator.NOT_EQUAL;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Datastore querying basic tests.
@@ -87,6 +100,101 @@ public class QueryBasicsTestCase extends QueryTestCase {
         assertSingleResult(johnDoe, query);
     }
 
+    @Test
+    public void testMultipleEqualityFiltersOfDifferentTypes() throws Exception {
+        Entity john = createEntity("Person", 1)
+                .withProperty("active", true)
+                .withProperty("age", 30)
+                .withProperty("score", 1.5)
+                .store();
+
+        createEntity("Person", 2)
+                .withProperty("active", true)
+                .withProperty("age", 30)
+                .withProperty("score", 2.5)
+                .store();
+
+        createEntity("Person", 3)
+                .withProperty("active", false)
+                .withProperty("age", 30)
+                .withProperty("score", 1.5)
+                .store();
+
+        Query query = new Query("Person")
+                .addFilter("active", EQUAL, true)
+                .addFilter("age", EQUAL, 30)
+                .addFilter("score", EQUAL, 1.5);
+
+        assertSingleResult(john, query);
+    }
+
+    @Test
+    public void testInAndNotEqualResultsAreMergedInSortOrder() throws Exception {
+        Entity john = createEntity("Person", 1).withProperty("name", "John").withProperty("age", 30).store();
+        Entity jane = createEntity("Person", 2).withProperty("name", "Jane").withProperty("age", 10).store();
+        Entity joe = createEntity("Person", 3).withProperty("name", "Joe").withProperty("age", 20).store();
+        createEntity("Person", 4).withProperty("name", "Jack").withProperty("age", 40).store();
+
+        Query inQuery = new Query("Person")
+                .addFilter("name", IN, Arrays.asList("John", "Jane", "Joe", "John"))
+                .addSort("age");
+        assertEquals(Arrays.asList(jane, joe, john), service.prepare(inQuery).asList(withDefaults()));
+        assertEquals(Arrays.asList(joe), service.prepare(inQuery).asList(withOffset(1).limit(1)));
+        assertEquals(3, service.prepare(inQuery).countEntities(withDefaults()));
+
+        Query notEqualQuery = new Query("Person")
+                .addFilter("age", NOT_EQUAL, 40)
+                .addSort("age", Query.SortDirection.DESCENDING);
+        assertEquals(Arrays.asList(john, joe, jane), service.prepare(notEqualQuery).asList(withDefaults()));
+    }
+
+    @Test
+    public void testNotEqualNullMatchesEntitiesHavingProperty() throws Exception {
+        Entity john = createEntity("Person", 1).withProperty("nickname", "Johnny").store();
+        Entity jane = createEntity("Person", 2).withProperty("nickname", 7L).store();
+        createEntity("Person", 3).withProperty("nickname", null).store();
+        createEntity("Person", 4).withProperty("name", "Joe").store();
+
+        Query query = new Query("Person").addFilter("nickname", NOT_EQUAL, null);
+        assertEquals(new HashSet<Entity>(Arrays.asList(john, jane)), new HashSet<Entity>(service.prepare(query).asList(withDefaults())));
+    }
+
+    @Test
+    public void testAncestorQueryReturnsAncestorAndDescendants() throws Exception {
+        Key parentKey = KeyFactory.createKey("Person", "parent");
+        Entity parent = new Entity(parentKey);
+        service.put(parent);
+
+        Entity child = new Entity("Person", "child", parentKey);
+        service.put(child);
+
+        Entity grandChild = new Entity("Person", "grandChild", child.getKey());
+        service.put(grandChild);
+
+        Entity similarlyNamed = new Entity(KeyFactory.createKey("Person", "parent2"));
+        service.put(similarlyNamed);
+
+        Entity otherKind = new Entity("Address", "address", parentKey);
+        service.put(otherKind);
+
+        Query query = new Query("Person", parentKey).addSort(Entity.KEY_RESERVED_PROPERTY);
+        assertEquals(Arrays.asList(parent, child, grandChild), service.prepare(query).asList(withDefaults()));
+
+        assertSingleResult(grandChild, new Query("Person", child.getKey()).addFilter(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.GREATER_THAN, child.getKey()));
+
+        Query kindlessQuery = new Query(parentKey).addSort(Entity.KEY_RESERVED_PROPERTY);
+        assertEquals(Arrays.asList(parent, otherKind, child, grandChild), service.prepare(kindlessQuery).asList(withDefaults()));
+    }
+
+    @Test
+    public void testQueriesOfSameShapeBindTheirOwnValues() throws Exception {
+        Entity john = createEntity("Person", 1).withProperty("name", "John").store();
+        Entity jane = createEntity("Person", 2).withProperty("name", "Jane").store();
+
+        assertSingleResult(john, new Query("Person").addFilter("name", EQUAL, "John"));
+        assertSingleResult(jane, new Query("Person").addFilter("name", EQUAL, "Jane"));
+    }
+
     @Test
     public void testKeysOnly() throws Exception {
         Entity john = createEntity("Person", 1)
@@ -99,6 +207,52 @@ public class QueryBasicsTestCase extends QueryTestCase {
 
         Entity entity = preparedQuery.asSingleEntity();
         assertEquals(john.getKey(), entity.getKey());
+        assertTrue(entity.getProperties().isEmpty());
+    }
+
+    @Test
+    public void testKeysOnlyHonorsSortAndCursor() throws Exception {
+        Entity john = createEntity("Person", 1).withProperty("age", 30).store();
+        Entity jane = createEntity("Person", 2).withProperty("age", 20).store();
+        Entity joe = createEntity("Person", 3).withProperty("age", 10).store();
+
+        PreparedQuery preparedQuery = service.prepare(new Query("Person").addSort("age").setKeysOnly());
+
+        QueryResultList<Entity> firstPage = preparedQuery.asQueryResultList(withLimit(2));
+        assertEquals(Arrays.asList(joe.getKey(), jane.getKey()), keysOf(firstPage));
+
+        QueryResultList<Entity> secondPage = preparedQuery.asQueryResultList(withLimit(2).startCursor(firstPage.getCursor()));
+        assertEquals(Arrays.asList(john.getKey()), keysOf(secondPage));
+    }
+
+    @Test
+    public void testUnindexedPropertyIsNotQueryable() throws Exception {
+        Entity john = new Entity("Person", 1);
+        john.setUnindexedProperty("name", "John");
+        service.put(john);
+        Entity jane = createEntity("Person", 2).withProperty("name", "Jane").store();
+
+        assertNoResults(new Query("Person").addFilter("name", EQUAL, "John"));
+        assertSingleResult(jane, new Query("Person").addFilter("name", EQUAL, "Jane"));
+        assertEquals(john, service.get(john.getKey()));
+    }
+
+    @Test
+    public void testMultiValuedPropertyMatchesEachValue() throws Exception {
+        Entity john = createEntity("Person", 1).withProperty("tags", Arrays.asList("red", "green")).store();
+        Entity jane = createEntity("Person", 2).withProperty("tags", Arrays.asList(10L, 20L)).store();
+
+        assertSingleResult(john, new Query("Person").addFilter("tags", EQUAL, "red"));
+        assertSingleResult(john, new Query("Person").addFilter("tags", EQUAL, "green"));
+        assertSingleResult(jane, new Query("Person").addFilter("tags", EQUAL, 20L));
+        assertNoResults(new Query("Person").addFilter("tags", EQUAL, "blue"));
+    }
+
+    private static List<Key> keysOf(List<Entity> entities) {
+        List<Key> keys = new ArrayList<Key>();
+        for (Entity entity : entities)
+            keys.add(entity.getKey());
+        return keys;
     }
 
 }
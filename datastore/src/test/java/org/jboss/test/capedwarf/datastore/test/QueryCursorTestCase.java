@@ -0,0 +1,190 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2011, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.test.capedwarf.datastore.test;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+import org.jboss.arquillian.junit.Arquillian;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+@RunWith(Arquillian.class)
+public class QueryCursorTestCase extends QueryTestCase {
+
+    @Test
+    public void testPagingWithListCursor() {
+        List<Entity> entities = storeEntities(7);
+        PreparedQuery preparedQuery = service.prepare(createQuery().addSort(SINGLE_PROPERTY_NAME));
+
+        List<Entity> results = new ArrayList<Entity>();
+        FetchOptions fetchOptions = withLimit(3);
+        while (true) {
+            QueryResultList<Entity> page = preparedQuery.asQueryResultList(fetchOptions);
+            if (page.isEmpty())
+                break;
+            results.addAll(page);
+            fetchOptions = withLimit(3).startCursor(page.getCursor());
+        }
+        assertEquals(entities, results);
+    }
+
+    @Test
+    public void testPagingWithDescendingSort() {
+        List<Entity> entities = storeEntities(5);
+        PreparedQuery preparedQuery = service.prepare(createQuery().addSort(SINGLE_PROPERTY_NAME, Query.SortDirection.DESCENDING));
+
+        QueryResultList<Entity> firstPage = preparedQuery.asQueryResultList(withLimit(2));
+        assertEquals(entities.subList(3, 5), reverse(firstPage));
+
+        QueryResultList<Entity> secondPage = preparedQuery.asQueryResultList(withLimit(2).startCursor(firstPage.getCursor()));
+        assertEquals(entities.subList(1, 3), reverse(secondPage));
+    }
+
+    @Test
+    public void testIteratorCursor() {
+        List<Entity> entities = storeEntities(4);
+        PreparedQuery preparedQuery = service.prepare(createQuery().addSort(SINGLE_PROPERTY_NAME));
+
+        QueryResultIterator<Entity> iterator = preparedQuery.asQueryResultIterator();
+        iterator.next();
+        iterator.next();
+        Cursor cursor = iterator.getCursor();
+        assertNotNull(cursor);
+
+        List<Entity> rest = preparedQuery.asList(FetchOptions.Builder.withStartCursor(cursor));
+        assertEquals(entities.subList(2, 4), rest);
+    }
+
+    @Test
+    public void testWebSafeStringRoundTrip() {
+        List<Entity> entities = storeEntities(3);
+        PreparedQuery preparedQuery = service.prepare(createQuery().addSort(SINGLE_PROPERTY_NAME));
+
+        Cursor cursor = preparedQuery.asQueryResultList(withLimit(1)).getCursor();
+        Cursor copy = Cursor.fromWebSafeString(cursor.toWebSafeString());
+        assertEquals(cursor, copy);
+        assertEquals(entities.subList(1, 3), preparedQuery.asList(FetchOptions.Builder.withStartCursor(copy)));
+    }
+
+    @Test
+    public void testEndCursor() {
+        List<Entity> entities = storeEntities(4);
+        PreparedQuery preparedQuery = service.prepare(createQuery().addSort(SINGLE_PROPERTY_NAME));
+
+        Cursor cursor = preparedQuery.asQueryResultList(withLimit(2)).getCursor();
+        List<Entity> results = preparedQuery.asList(FetchOptions.Builder.withEndCursor(cursor));
+        assertEquals(entities.subList(0, 2), results);
+    }
+
+    @Test
+    public void testCursorOnUnsortedQueryFollowsKeyOrder() {
+        storeEntities(3);
+        PreparedQuery preparedQuery = service.prepare(createQuery());
+
+        QueryResultList<Entity> firstPage = preparedQuery.asQueryResultList(withLimit(2));
+        QueryResultList<Entity> secondPage = preparedQuery.asQueryResultList(withLimit(2).startCursor(firstPage.getCursor()));
+        assertEquals(1, secondPage.size());
+        assertFalse(firstPage.contains(secondPage.get(0)));
+    }
+
+    @Test
+    public void testPagingOverNegativeValuesSkipsEntitiesWithoutSortedProperty() {
+        Entity minusTwo = storeTestEntityWithSingleProperty(-2L);
+        createTestEntity().withProperty("other", 1L).store();
+        Entity minusOne = storeTestEntityWithSingleProperty(-1L);
+        Entity zero = storeTestEntityWithSingleProperty(0L);
+        Entity one = storeTestEntityWithSingleProperty(1L);
+
+        for (Query.SortDirection direction : Query.SortDirection.values()) {
+            PreparedQuery preparedQuery = service.prepare(createQuery().addSort(SINGLE_PROPERTY_NAME, direction));
+            List<Entity> results = new ArrayList<Entity>();
+            FetchOptions fetchOptions = withLimit(2);
+            while (true) {
+                QueryResultList<Entity> page = preparedQuery.asQueryResultList(fetchOptions);
+                if (page.isEmpty())
+                    break;
+                results.addAll(page);
+                fetchOptions = withLimit(2).startCursor(page.getCursor());
+            }
+
+            List<Entity> expected = Arrays.asList(minusTwo, minusOne, zero, one);
+            assertEquals(direction == Query.SortDirection.ASCENDING ? expected : reverse(expected), results);
+        }
+    }
+
+    @Test
+    public void testPagingOverMultiValuedProperty() {
+        Entity oneAndFive = storeTestEntityWithSingleProperty(Arrays.asList("1", "5"));
+        Entity twoAndThree = storeTestEntityWithSingleProperty(Arrays.asList("3", "2"));
+        Entity four = storeTestEntityWithSingleProperty("4");
+
+        for (Query.SortDirection direction : Query.SortDirection.values()) {
+            PreparedQuery preparedQuery = service.prepare(createQuery().addSort(SINGLE_PROPERTY_NAME, direction));
+            List<Entity> results = new ArrayList<Entity>();
+            FetchOptions fetchOptions = withLimit(1);
+            while (true) {
+                QueryResultList<Entity> page = preparedQuery.asQueryResultList(fetchOptions);
+                if (page.isEmpty())
+                    break;
+                results.addAll(page);
+                fetchOptions = withLimit(1).startCursor(page.getCursor());
+            }
+
+            if (direction == Query.SortDirection.ASCENDING)
+                assertEquals(Arrays.asList(oneAndFive, twoAndThree, four), results);
+            else
+                assertEquals(Arrays.asList(oneAndFive, four, twoAndThree), results);
+        }
+    }
+
+    private List<Entity> storeEntities(int count) {
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int i = 0; i < count; i++)
+            entities.add(storeTestEntityWithSingleProperty("value" + i));
+        return entities;
+    }
+
+    private List<Entity> reverse(List<Entity> entities) {
+        List<Entity> reversed = new ArrayList<Entity>(entities);
+        Collections.reverse(reversed);
+        return reversed;
+    }
+}
@@ -24,30 +24,114 @@
 
 package org.jboss.test.capedwarf.datastore.test;
 
-import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
 import org.jboss.arquillian.junit.Arquillian;
-import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withChunkSize;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withOffset;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withStartCursor;
+import static org.junit.Assert.assertEquals;
+
 /**
  * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
  */
 @RunWith(Arquillian.class)
 public class QueryFetchOptionsTestCase extends QueryTestCase {
 
-    @Ignore("not implemented yet")
     @Test
     public void testLimit() {
-        // TODO
-        FetchOptions.Builder.withLimit(1);
+        List<Entity> entities = storeEntitiesWithProperty(5, 3, 1, 4, 2);
+
+        List<Entity> results = service.prepare(createSortedQuery()).asList(withLimit(2));
+        assertEquals(Arrays.asList(entities.get(2), entities.get(4)), results);
     }
 
-    @Ignore("not implemented yet")
     @Test
     public void testOffset() {
-        // TODO
-        FetchOptions.Builder.withOffset(1);
+        List<Entity> entities = storeEntitiesWithProperty(5, 3, 1, 4, 2);
+
+        List<Entity> results = service.prepare(createSortedQuery()).asList(withOffset(1).limit(3));
+        assertEquals(Arrays.asList(entities.get(4), entities.get(1), entities.get(3)), results);
+    }
+
+    @Test
+    public void testOffsetBeyondResults() {
+        storeEntitiesWithProperty(1, 2);
+
+        List<Entity> results = service.prepare(createSortedQuery()).asList(withOffset(5).limit(3));
+        assertEquals(Collections.<Entity>emptyList(), results);
+    }
+
+    @Test
+    public void testLimitWithDescendingSort() {
+        List<Entity> entities = storeEntitiesWithProperty(5, 3, 1, 4, 2);
+
+        Query query = createQuery().addSort(SINGLE_PROPERTY_NAME, Query.SortDirection.DESCENDING);
+        List<Entity> results = service.prepare(query).asList(withLimit(2));
+        assertEquals(Arrays.asList(entities.get(0), entities.get(3)), results);
+    }
+
+    @Test
+    public void testIteratorReadsAllChunks() {
+        List<Entity> entities = storeEntitiesWithProperty(7, 3, 1, 6, 2, 5, 4);
+
+        Iterator<Entity> iterator = service.prepare(createSortedQuery()).asIterator(withChunkSize(2).prefetchSize(3));
+        assertEquals(Arrays.asList(
+                entities.get(2), entities.get(4), entities.get(1), entities.get(6),
+                entities.get(5), entities.get(3), entities.get(0)), toList(iterator));
+    }
+
+    @Test
+    public void testIteratorWithOffsetAndLimitSpanningChunks() {
+        List<Entity> entities = storeEntitiesWithProperty(7, 3, 1, 6, 2, 5, 4);
+
+        Iterator<Entity> iterator = service.prepare(createSortedQuery()).asIterator(withChunkSize(2).offset(2).limit(4));
+        assertEquals(Arrays.asList(entities.get(1), entities.get(6), entities.get(5), entities.get(3)), toList(iterator));
+    }
+
+    @Test
+    public void testIteratorCursorPointsAfterLastReturnedEntity() {
+        List<Entity> entities = storeEntitiesWithProperty(3, 1, 2);
+
+        QueryResultIterator<Entity> iterator = service.prepare(createSortedQuery()).asQueryResultIterator(withChunkSize(1));
+        iterator.next();
+        iterator.next();
+        Cursor cursor = iterator.getCursor();
+
+        List<Entity> rest = service.prepare(createSortedQuery()).asList(withStartCursor(cursor));
+        assertEquals(Collections.singletonList(entities.get(0)), rest);
+    }
+
+    private static List<Entity> toList(Iterator<Entity> iterator) {
+        List<Entity> list = new ArrayList<Entity>();
+        while (iterator.hasNext()) {
+            list.add(iterator.next());
+        }
+        return list;
+    }
+
+    private Query createSortedQuery() {
+        return createQuery().addSort(SINGLE_PROPERTY_NAME);
+    }
+
+    private List<Entity> storeEntitiesWithProperty(int... values) {
+        List<Entity> entities = new ArrayList<Entity>();
+        for (int value : values) {
+            entities.add(storeTestEntityWithSingleProperty(value));
+        }
+        return entities;
     }
 
 }
@@ -41,11 +41,10 @@ import org.junit.runner.RunWith;
 @RunWith(Arquillian.class)
 public class QueryFilteringByGAEPropertyTypesTestCase extends QueryTestCase {
 
-    @Ignore("Need hibernate-search-4.0.0.CR2 for this to work")
     @Test
-    public void testTextProperty() {
-        testEqualityQueries(new Text("foo"), new Text("bar"));
-        testInequalityQueries(new Text("aaa"), new Text("bbb"), new Text("ccc"));
+    public void testTextPropertyIsNotIndexed() {
+        storeTestEntityWithSingleProperty(new Text("foo"));
+        assertNoResults(createQuery(Query.FilterOperator.EQUAL, new Text("foo")));
     }
 
     @Ignore("Need hibernate-search-4.0.0.CR2 for this to work")
@@ -86,6 +85,8 @@ public class QueryFilteringByGAEPropertyTypesTestCase extends QueryTestCase {
     @Test
     public void testKeyProperty() {
         testEqualityQueries(KeyFactory.createKey("foo", "foo"), KeyFactory.createKey("bar", "bar"));
+        testEqualityQueries(KeyFactory.createKey("foo", "foo"), KeyFactory.createKey("foo", "bar"));
+        testInequalityQueries(KeyFactory.createKey("foo", 1), KeyFactory.createKey("foo", 2), KeyFactory.createKey("foo", 10));
     }
 
     @Ignore("Need hibernate-search-4.0.0.CR2 for this to work")
@@ -118,11 +119,13 @@ public class QueryFilteringByGAEPropertyTypesTestCase extends QueryTestCase {
     @Test
     public void testShortBlobProperty() {
         testEqualityQueries(new ShortBlob("foo".getBytes()), new ShortBlob("bar".getBytes()));
+        testInequalityQueries(new ShortBlob(new byte[]{1}), new ShortBlob(new byte[]{0x7f}), new ShortBlob(new byte[]{(byte) 0x80}));
     }
 
     @Test
-    public void testBlobProperty() {
-        testEqualityQueries(new Blob("foo".getBytes()), new Blob("bar".getBytes()));
+    public void testBlobPropertyIsNotIndexed() {
+        storeTestEntityWithSingleProperty(new Blob("foo".getBytes()));
+        assertNoResults(createQuery(Query.FilterOperator.EQUAL, new Blob("foo".getBytes())));
     }
 
     @Ignore("Need hibernate-search-4.0.0.CR2 for this to work")
@@ -29,16 +29,17 @@ import com.google.appengine.api.datastore.Query;
 import org.hamcrest.Matcher;
 import org.hamcrest.core.IsEqual;
 import org.jboss.arquillian.junit.Arquillian;
-import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 
 import static com.google.appengine.api.datastore.FetchOptions.Builder.withDefaults;
 import static com.google.appengine.api.datastore.Query.SortDirection.ASCENDING;
 import static com.google.appengine.api.datastore.Query.SortDirection.DESCENDING;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -71,7 +72,6 @@ public class QuerySortingTestCase extends QueryTestCase {
         assertThat(whenSortingByTheSingleProperty(DESCENDING), queryReturnsList(three, two, one));
     }
 
-    @Ignore("Doesn't work, since sorting is still only lexicographic")
     @Test
     public void testSortingByFloatProperty() throws Exception {
         Entity thirty = storeTestEntityWithSingleProperty(30f);
@@ -82,7 +82,6 @@ public class QuerySortingTestCase extends QueryTestCase {
         assertThat(whenSortingByTheSingleProperty(DESCENDING), queryReturnsList(hundred, thirty, two));
     }
 
-    @Ignore("Doesn't work, since sorting is still only lexicographic")
     @Test
     public void testIntegerPropertySortingIsNotLexicographic() throws Exception {
         Entity ten = storeTestEntityWithSingleProperty(10);
@@ -104,6 +103,49 @@ public class QuerySortingTestCase extends QueryTestCase {
         assertThat(whenSortingByTheSingleProperty(DESCENDING), queryReturnsList(march3, february2, january1));
     }
 
+    @Test
+    public void testSortingByMultiValuedProperty() throws Exception {
+        Entity oneAndFive = storeTestEntityWithSingleProperty(Arrays.asList(1L, 5L));
+        Entity twoAndThree = storeTestEntityWithSingleProperty(Arrays.asList(3L, 2L));
+        Entity four = storeTestEntityWithSingleProperty(4L);
+
+        // ascending sort orders by the lowest value, descending one by the highest
+        assertThat(whenSortingByTheSingleProperty(ASCENDING), queryReturnsList(oneAndFive, twoAndThree, four));
+        assertThat(whenSortingByTheSingleProperty(DESCENDING), queryReturnsList(oneAndFive, four, twoAndThree));
+    }
+
+    @Test
+    public void testSortTypeIsResolvedWithinQueryKind() throws Exception {
+        createEntity("Player", 1).withProperty("score", 10L).store();
+        Entity low = createEntity("Team", 1).withProperty("score", 1.5).store();
+        Entity high = createEntity("Team", 2).withProperty("score", 2.5).store();
+
+        Query query = new Query("Team").addSort("score", ASCENDING);
+        assertEquals(Arrays.asList(low, high), service.prepare(query).asList(withDefaults()));
+    }
+
+    @Test
+    public void testSortTypeFollowsNewlyStoredTypes() throws Exception {
+        Entity b = storeTestEntityWithSingleProperty("b");
+        Entity a = storeTestEntityWithSingleProperty("a");
+        assertThat(whenSortingByTheSingleProperty(ASCENDING), queryReturnsList(a, b));
+
+        service.delete(a.getKey(), b.getKey());
+        Entity two = storeTestEntityWithSingleProperty(2L);
+        Entity one = storeTestEntityWithSingleProperty(1L);
+        assertThat(whenSortingByTheSingleProperty(ASCENDING), queryReturnsList(one, two));
+    }
+
+    @Test
+    public void testSortKeepsEntitiesWithValuesOfOtherTypes() throws Exception {
+        Entity number = storeTestEntityWithSingleProperty(10L);
+        Entity string = storeTestEntityWithSingleProperty("ten");
+        createTestEntity().withProperty("other", 1L).store();
+
+        Query query = createQuery().addSort(SINGLE_PROPERTY_NAME, ASCENDING);
+        List<Entity> results = service.prepare(query).asList(withDefaults());
+        assertEquals(new HashSet<Entity>(Arrays.asList(number, string)), new HashSet<Entity>(results));
+    }
 
     private Matcher<List<Entity>> queryReturnsList(Entity... entities) {
         return new IsEqual<List<Entity>>(Arrays.asList(entities));
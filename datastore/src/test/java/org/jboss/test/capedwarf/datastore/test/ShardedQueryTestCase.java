@@ -0,0 +1,165 @@
+/*
+ *
+ *  * JBoss, Home of Professional Open Source.
+ *  * Copyright 2011, Red Hat, Inc., and individual contributors
+ *  * as indicated by the @author tags. See the copyright.txt file in the
+ *  * distribution for a full listing of individual contributors.
+ *  *
+ *  * This is free software; you can redistribute it and/or modify it
+ *  * under the terms of the GNU Lesser General Public License as
+ *  * published by the Free Software Foundation; either version 2.1 of
+ *  * the License, or (at your option) any later version.
+ *  *
+ *  * This software is distributed in the hope that it will be useful,
+ *  * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  * Lesser General Public License for more details.
+ *  *
+ *  * You should have received a copy of the GNU Lesser General Public
+ *  * License along with this software; if not, write to the Free
+ *  * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ *  * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+
+package org.jboss.test.capedwarf.datastore.test;
+
+import com.google.appengine.api.NamespaceManager;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Sort;
+import org.hibernate.search.indexes.spi.IndexManager;
+import org.hibernate.search.spi.SearchFactoryIntegrator;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.cache.IndexingConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.query.Search;
+import org.infinispan.query.SearchManager;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.capedwarf.datastore.query.AsyncIndexer;
+import org.jboss.capedwarf.datastore.query.CompositeIndexes;
+import org.jboss.capedwarf.datastore.query.EntityShardingStrategy;
+import org.jboss.capedwarf.datastore.query.IndexScope;
+import org.jboss.capedwarf.datastore.query.QueryConverter;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queries against an entity index sharded by namespace and kind.
+ *
+ * @author <a href="mailto:marko.luksa@gmail.com">Marko Luksa</a>
+ */
+@RunWith(Arquillian.class)
+public class ShardedQueryTestCase {
+
+    private static final int SHARDS = 4;
+    private static final String NAMESPACE = "tenant";
+
+    private DefaultCacheManager manager;
+    private Cache<Key, Entity> store;
+    private SearchManager searchManager;
+    private CompositeIndexes compositeIndexes;
+    private QueryConverter queryConverter;
+
+    @Deployment
+    public static Archive getDeployment() {
+        return ShrinkWrap.create(JavaArchive.class)
+                .addAsManifestResource("jboss/jboss-deployment-structure.xml", "jboss-deployment-structure.xml");
+    }
+
+    @Before
+    public void setUp() {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+        IndexingConfigurationBuilder indexing = builder.indexing().enable().indexLocalOnly(true)
+                .addProperty("hibernate.search.default.directory_provider", "ram");
+        EntityShardingStrategy.enable(indexing, SHARDS);
+
+        manager = new DefaultCacheManager(builder.build());
+        store = manager.getCache();
+        searchManager = Search.getSearchManager(store);
+        compositeIndexes = CompositeIndexes.load("sharded-query-test", getClass().getClassLoader());
+        queryConverter = new QueryConverter(store, searchManager, new AsyncIndexer(store, searchManager, false), compositeIndexes);
+    }
+
+    @After
+    public void tearDown() {
+        queryConverter.stop();
+        compositeIndexes.stop();
+        manager.stop();
+    }
+
+    @Test
+    public void testQueriesStayWithinNamespaceAndKind() throws Exception {
+        List<Key> keys = Arrays.asList(
+                KeyFactory.createKey("Person", 1),
+                KeyFactory.createKey("Address", 1),
+                createKey(NAMESPACE, "Person", 1),
+                createKey(NAMESPACE, "Address", 1));
+
+        Set<IndexManager> shards = new HashSet<IndexManager>();
+        for (Key key : keys)
+            shards.add(getShardingStrategy().getIndexManagers(key.getNamespace(), key.getKind())[0]);
+        assertEquals("each namespace and kind needs its own shard", keys.size(), shards.size());
+
+        for (Key key : keys)
+            store.put(key, new Entity(key));
+
+        // matches every document, so anything outside the shard would show up
+        assertEquals(keys.size(), searchManager.getQuery(new MatchAllDocsQuery(), Entity.class).getResultSize());
+
+        for (Key key : keys) {
+            IndexScope scope = queryConverter.getIndexScope(key.getNamespace(), key.getKind());
+
+            List<Object> entities = queryConverter.getCacheQuery(scope, new MatchAllDocsQuery(), new Sort()).list();
+            assertEquals(Arrays.<Object>asList(new Entity(key)), entities);
+
+            assertEquals(1, queryConverter.getIndexQuery(scope, new MatchAllDocsQuery(), new Sort()).count());
+        }
+    }
+
+    @Test
+    public void testKindlessQueriesSpanAllShards() throws Exception {
+        Key person = KeyFactory.createKey("Person", 1);
+        Key address = createKey(NAMESPACE, "Address", 1);
+        store.put(person, new Entity(person));
+        store.put(address, new Entity(address));
+
+        IndexScope scope = queryConverter.getIndexScope("", null);
+        List<Object> entities = queryConverter.getCacheQuery(scope, new MatchAllDocsQuery(), new Sort()).list();
+        assertEquals(2, entities.size());
+        assertTrue(entities.contains(new Entity(person)));
+        assertTrue(entities.contains(new Entity(address)));
+    }
+
+    private EntityShardingStrategy getShardingStrategy() {
+        SearchFactoryIntegrator searchFactory = (SearchFactoryIntegrator) searchManager.getSearchFactory();
+        return (EntityShardingStrategy) searchFactory.getIndexBindingForEntity(Entity.class).getSelectionStrategy();
+    }
+
+    private static Key createKey(String namespace, String kind, long id) {
+        String previous = NamespaceManager.get();
+        NamespaceManager.set(namespace);
+        try {
+            return KeyFactory.createKey(kind, id);
+        } finally {
+            NamespaceManager.set(previous);
+        }
+    }
+}
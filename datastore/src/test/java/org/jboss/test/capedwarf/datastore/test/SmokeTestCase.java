@@ -27,10 +27,15 @@ import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import org.jboss.arquillian.junit.Arquillian;
+import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 /**
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
@@ -53,6 +58,39 @@ public class SmokeTestCase extends AbstractTest {
         assertStoreContainsAll(entities);
     }
 
+    @Test
+    public void putAssignsDistinctIdsToIncompleteKeys() throws Exception {
+        List<Entity> entities = Arrays.asList(new Entity("KIND"), new Entity("KIND"), new Entity("OTHER_KIND"));
+        List<Key> keys = service.put(entities);
+        Assert.assertEquals(entities.size(), keys.size());
+        Assert.assertEquals(keys.size(), new HashSet<Key>(keys).size());
+        for (Key key : keys)
+            Assert.assertTrue(key.isComplete());
+        assertStoreContainsAll(entities);
+    }
+
+    @Test
+    public void getReturnsAllGivenEntities() throws Exception {
+        Collection<Entity> entities = createTestEntities();
+        service.put(entities);
+
+        Map<Key, Entity> result = service.get(extractKeys(entities));
+        Assert.assertEquals(entities.size(), result.size());
+        for (Entity entity : entities)
+            Assert.assertEquals(entity, result.get(entity.getKey()));
+    }
+
+    @Test
+    public void getSkipsMissingKeys() throws Exception {
+        Entity entity = createTestEntity();
+        service.put(entity);
+        Key nonExistingKey = KeyFactory.createKey("NonExistingKey", 1);
+
+        Map<Key, Entity> result = service.get(Arrays.asList(entity.getKey(), nonExistingKey));
+        Assert.assertEquals(1, result.size());
+        Assert.assertFalse(result.containsKey(nonExistingKey));
+    }
+
     @Test(expected = EntityNotFoundException.class)
     public void getThrowsNotFoundExceptionWhenKeyIsNotFound() throws Exception {
         Key nonExistingKey = KeyFactory.createKey("NonExistingKey", 1);